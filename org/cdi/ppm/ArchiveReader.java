@@ -0,0 +1,236 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.util.*;
+
+/** Lee un archivo empaquetado por <code>ArchiveWriter</code>: lista su contenido
+ * y extrae todos los archivos o solo algunos.
+ * 
+ * Como cada grupo es un único flujo con un modelo continuo, para extraer un archivo
+ * hay que descomprimir también los anteriores de su grupo (aunque se descartan).
+ * 
+ * @author Javier y Maldo
+ */
+public class ArchiveReader
+{
+	/** El archivo empaquetado */
+	protected final File archivo;
+	/** Los grupos, según el índice */
+	protected final List<Grupo> grupos = new ArrayList<Grupo>();
+	
+	/** Abre un archivo empaquetado y lee su índice
+	 * 
+	 * @param archivo el archivo empaquetado
+	 * @throws IOException si no se puede leer o no es un archivo empaquetado
+	 */
+	public ArchiveReader(File archivo) throws IOException
+	{
+		this.archivo = archivo;
+		
+		RandomAccessFile raf = new RandomAccessFile(archivo, "r");
+		byte[] m = new byte[ArchiveWriter.magic.length];
+		
+		try
+		{
+			if (raf.length() < 2 * m.length + 12)
+				throw new IOException("No es un archivo empaquetado");
+			
+			raf.readFully(m);
+			if (!Arrays.equals(m, ArchiveWriter.magic))
+				throw new IOException("No es un archivo empaquetado");
+			
+			raf.seek(raf.length() - m.length - 8);
+			long indice = raf.readLong();
+			raf.readFully(m);
+			if (!Arrays.equals(m, ArchiveWriter.magic) || indice < m.length || indice > raf.length())
+				throw new IOException("Archivo empaquetado incompleto");
+			
+			raf.seek(indice);
+			DataInputStream din = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(raf.getFD())));
+			
+			int n = din.readInt();
+			for (int i = 0; i < n; i++)
+			{
+				Grupo g = new Grupo();
+				g.posicion = din.readLong();
+				g.longitud = din.readLong();
+				g.orden = din.readUnsignedByte();
+				
+				int archivos = din.readInt();
+				for (int j = 0; j < archivos; j++)
+				{
+					g.nombres.add(din.readUTF());
+					g.tamaños.add(din.readLong());
+				}
+				grupos.add(g);
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/** Devuelve los nombres (rutas relativas) de todos los archivos empaquetados
+	 * 
+	 * @return los nombres, en el orden en que están empaquetados
+	 */
+	public List<String> list()
+	{
+		List<String> nombres = new ArrayList<String>();
+		for (Grupo g : grupos)
+			nombres.addAll(g.nombres);
+		return nombres;
+	}
+	
+	/** Devuelve el tamaño original de un archivo empaquetado
+	 * 
+	 * @param nombre la ruta relativa del archivo
+	 * @return su tamaño, o -1 si no está
+	 */
+	public long size(String nombre)
+	{
+		for (Grupo g : grupos)
+		{
+			int i = g.nombres.indexOf(nombre);
+			if (i >= 0)
+				return g.tamaños.get(i);
+		}
+		return -1;
+	}
+	
+	/** Extrae todos los archivos
+	 * 
+	 * @param destino el directorio donde extraerlos (se crea si no existe)
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	public void extractAll(File destino) throws IOException
+	{
+		for (Grupo g : grupos)
+			extraer(g, destino, null);
+	}
+	
+	/** Extrae un solo archivo
+	 * 
+	 * @param nombre la ruta relativa del archivo
+	 * @param destino el directorio donde extraerlo (se crea si no existe)
+	 * @throws IOException si hay un problema de entrada/salida
+	 * @throws FileNotFoundException si el archivo no está empaquetado
+	 */
+	public void extract(String nombre, File destino) throws IOException
+	{
+		for (Grupo g : grupos)
+		{
+			if (g.nombres.contains(nombre))
+			{
+				extraer(g, destino, nombre);
+				return;
+			}
+		}
+		throw new FileNotFoundException(nombre + " no está en " + archivo);
+	}
+	
+	/** Descomprime un grupo, guardando sus archivos o solo uno de ellos
+	 * 
+	 * @param g el grupo
+	 * @param destino el directorio donde extraer
+	 * @param solo el único archivo a guardar, o null para guardarlos todos
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	protected void extraer(Grupo g, File destino, String solo) throws IOException
+	{
+		FileInputStream fin = new FileInputStream(archivo);
+		byte[] buf = new byte[64 * 1024];
+		long descomprimidos = 0;
+		
+		BlockEvent evento = new BlockEvent();
+		evento.begin();
+		
+		try
+		{
+			fin.getChannel().position(g.posicion);
+			Decoder dec = new HuffmanDecoder(new BufferedInputStream(fin), g.orden);
+			
+			for (int i = 0; i < g.nombres.size(); i++)
+			{
+				String nombre = g.nombres.get(i);
+				long pendiente = g.tamaños.get(i);
+				OutputStream out = null;
+				
+				if (solo == null || solo.equals(nombre))
+					out = new BufferedOutputStream(new FileOutputStream(crear(destino, nombre)));
+				
+				try
+				{
+					while (pendiente > 0)
+					{
+						int read = dec.read(buf, 0, (int) Math.min(buf.length, pendiente));
+						if (read <= 0)
+							throw new EOFException("Grupo truncado en " + nombre);
+						if (out != null)
+							out.write(buf, 0, read);
+						pendiente -= read;
+						descomprimidos += read;
+					}
+				}
+				finally
+				{
+					if (out != null)
+						out.close();
+				}
+				
+				if (nombre.equals(solo))
+					break;
+			}
+			
+			dec.publishMetrics();
+			Metrics.global.addBytes(g.longitud, descomprimidos);
+			
+			evento.end();
+			if (evento.shouldCommit())
+				evento.commit(false, g.orden, descomprimidos, g.longitud, dec.stats);
+		}
+		finally
+		{
+			fin.close();
+		}
+	}
+	
+	/** Prepara el archivo de salida para una ruta relativa, creando sus directorios
+	 * 
+	 * @param destino el directorio donde extraer
+	 * @param nombre la ruta relativa, con '/'
+	 * @return el archivo a crear
+	 * @throws IOException si la ruta se sale del directorio de destino
+	 */
+	protected static File crear(File destino, String nombre) throws IOException
+	{
+		//No permitir salirse del directorio de destino
+		if (nombre.startsWith("/") || nombre.indexOf('\\') >= 0 || nombre.indexOf(':') >= 0
+				|| ("/" + nombre + "/").contains("/../"))
+			throw new IOException("Ruta no permitida: " + nombre);
+		
+		File f = new File(destino, nombre.replace('/', File.separatorChar));
+		File padre = f.getParentFile();
+		if (!padre.isDirectory() && !padre.mkdirs())
+			throw new IOException("No se puede crear el directorio " + padre);
+		
+		return f;
+	}
+	
+	/** Un grupo de archivos comprimidos juntos
+	 */
+	protected static class Grupo
+	{
+		/** Dónde empieza su flujo comprimido */
+		long posicion;
+		/** La longitud de su flujo comprimido */
+		long longitud;
+		/** El orden del modelo */
+		int orden;
+		/** Las rutas relativas de sus archivos, en orden */
+		final List<String> nombres = new ArrayList<String>();
+		/** Los tamaños originales de sus archivos */
+		final List<Long> tamaños = new ArrayList<Long>();
+	}
+}
@@ -0,0 +1,391 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.util.*;
+
+/** Empaqueta todos los archivos de un directorio (y sus subdirectorios) en un solo archivo.
+ * 
+ * Los archivos se agrupan por tipo: por extensión, o si no tienen, por el nombre sin
+ * los números finales (así <code>paper1</code> ... <code>paper6</code> van juntos);
+ * los que se quedan solos se juntan según parezcan texto o binario. Cada grupo se
+ * comprime como un único flujo, con un modelo que continúa de un archivo al siguiente,
+ * de forma que los últimos aprovechan las estadísticas de los primeros.
+ * 
+ * Formato (enteros en big-endian, nombres con <code>writeUTF</code>):
+ * <pre>
+ * cabecera:  'P' 'P' 'A' versión
+ * grupos:    un flujo de HuffmanEncoder por grupo, uno detrás de otro
+ * índice:    int número de grupos
+ *            por grupo: long posición, long longitud comprimida, byte orden,
+ *                       int número de archivos,
+ *                       por archivo: nombre (ruta relativa con '/'), long tamaño
+ * final:     long posición del índice, 'P' 'P' 'A' versión
+ * </pre>
+ * Para extraer un archivo hay que descomprimir su grupo hasta él (ver <code>ArchiveReader</code>).
+ * 
+ * @author Javier y Maldo
+ */
+public class ArchiveWriter
+{
+	/** Los bytes con los que empieza y termina todo archivo empaquetado */
+	static final byte[] magic = {'P', 'P', 'A', 1};
+	
+	/** Tamaño máximo de un grupo; los mayores se parten para que el modelo no crezca sin límite */
+	public static final long maxGroupSize = 64L * 1024 * 1024;
+	
+	/** El orden fijo, si no hay selector */
+	protected final int order;
+	/** El selector de orden automático (uno por grupo), o null */
+	protected final OrderSelector selector;
+	
+	/** Crea un empaquetador con un orden fijo
+	 * 
+	 * @param order orden del modelo PPM
+	 */
+	public ArchiveWriter(int order)
+	{
+		this(order, null);
+	}
+	
+	/** Crea un empaquetador
+	 * 
+	 * @param order orden del modelo PPM (si no hay selector)
+	 * @param selector el selector de orden automático, que elige con el principio de cada grupo, o null
+	 */
+	public ArchiveWriter(int order, OrderSelector selector)
+	{
+		this.order = order;
+		this.selector = selector;
+	}
+	
+	/** Empaqueta un directorio
+	 * 
+	 * @param dir el directorio a empaquetar
+	 * @param destino el archivo a crear
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	public void write(File dir, File destino) throws IOException
+	{
+		List<String> nombres = new ArrayList<String>();
+		listar(dir, "", nombres);
+		
+		List<List<String>> grupos = agrupar(dir, nombres);
+		
+		CountingOutputStream contador = new CountingOutputStream(
+				new BufferedOutputStream(new FileOutputStream(destino)));
+		DataOutputStream dout = new DataOutputStream(contador);
+		
+		long[] posiciones = new long[grupos.size()];
+		long[] longitudes = new long[grupos.size()];
+		int[] ordenes = new int[grupos.size()];
+		int i;
+		
+		try
+		{
+			dout.write(magic);
+			
+			for (i = 0; i < grupos.size(); i++)
+			{
+				posiciones[i] = contador.count;
+				ordenes[i] = elegirOrden(dir, grupos.get(i));
+				
+				BlockEvent evento = new BlockEvent();
+				evento.begin();
+				
+				Encoder enc = new HuffmanEncoder(new NoCloseOutputStream(contador), ordenes[i]);
+				for (String nombre : grupos.get(i))
+					copiar(new File(dir, nombre), enc);
+				enc.finish();
+				
+				longitudes[i] = contador.count - posiciones[i];
+				Metrics.global.addBytes(tamaño(dir, grupos.get(i)), longitudes[i]);
+				
+				evento.end();
+				if (evento.shouldCommit())
+					evento.commit(true, ordenes[i], tamaño(dir, grupos.get(i)), longitudes[i], enc.stats);
+			}
+			
+			//El índice
+			long indice = contador.count;
+			dout.writeInt(grupos.size());
+			for (i = 0; i < grupos.size(); i++)
+			{
+				dout.writeLong(posiciones[i]);
+				dout.writeLong(longitudes[i]);
+				dout.writeByte(ordenes[i]);
+				dout.writeInt(grupos.get(i).size());
+				for (String nombre : grupos.get(i))
+				{
+					dout.writeUTF(nombre);
+					dout.writeLong(new File(dir, nombre).length());
+				}
+			}
+			dout.writeLong(indice);
+			dout.write(magic);
+		}
+		finally
+		{
+			dout.close();
+		}
+	}
+	
+	/** Busca recursivamente todos los archivos de un directorio
+	 * 
+	 * @param dir el directorio
+	 * @param prefijo la ruta relativa del directorio ("" o terminada en '/')
+	 * @param nombres donde añadir las rutas relativas de los archivos
+	 * @throws IOException si no se puede leer el directorio
+	 */
+	protected void listar(File dir, String prefijo, List<String> nombres) throws IOException
+	{
+		File[] archivos = dir.listFiles();
+		if (archivos == null)
+			throw new IOException("No se puede leer el directorio " + dir);
+		
+		Arrays.sort(archivos);
+		for (File f : archivos)
+		{
+			if (f.isDirectory())
+				listar(f, prefijo + f.getName() + "/", nombres);
+			else if (f.isFile())
+				nombres.add(prefijo + f.getName());
+		}
+	}
+	
+	/** Reparte los archivos en grupos de archivos parecidos
+	 * 
+	 * @param dir el directorio base
+	 * @param nombres las rutas relativas de los archivos
+	 * @return los grupos, cada uno ordenado por nombre
+	 * @throws IOException si no se puede leer algún archivo
+	 */
+	protected List<List<String>> agrupar(File dir, List<String> nombres) throws IOException
+	{
+		Map<String, List<String>> tipos = new TreeMap<String, List<String>>();
+		List<String> grupo;
+		
+		for (String nombre : nombres)
+		{
+			String tipo = tipo(nombre);
+			grupo = tipos.get(tipo);
+			if (grupo == null)
+			{
+				grupo = new ArrayList<String>();
+				tipos.put(tipo, grupo);
+			}
+			grupo.add(nombre);
+		}
+		
+		//Los que se han quedado solos, juntarlos por su contenido
+		List<String> textos = new ArrayList<String>();
+		List<String> binarios = new ArrayList<String>();
+		List<List<String>> grupos = new ArrayList<List<String>>();
+		
+		for (List<String> g : tipos.values())
+		{
+			if (g.size() > 1)
+				grupos.add(g);
+			else if (esTexto(new File(dir, g.get(0))))
+				textos.add(g.get(0));
+			else
+				binarios.add(g.get(0));
+		}
+		if (!textos.isEmpty())
+			grupos.add(textos);
+		if (!binarios.isEmpty())
+			grupos.add(binarios);
+		
+		//Partir los grupos demasiado grandes
+		List<List<String>> partidos = new ArrayList<List<String>>();
+		for (List<String> g : grupos)
+		{
+			Collections.sort(g);
+			
+			long total = 0;
+			grupo = new ArrayList<String>();
+			for (String nombre : g)
+			{
+				long size = new File(dir, nombre).length();
+				if (!grupo.isEmpty() && total + size > maxGroupSize)
+				{
+					partidos.add(grupo);
+					grupo = new ArrayList<String>();
+					total = 0;
+				}
+				grupo.add(nombre);
+				total += size;
+			}
+			partidos.add(grupo);
+		}
+		
+		return partidos;
+	}
+	
+	/** Suma los tamaños de los archivos de un grupo
+	 * 
+	 * @param dir el directorio base
+	 * @param grupo los archivos del grupo
+	 * @return el tamaño total
+	 */
+	protected static long tamaño(File dir, List<String> grupo)
+	{
+		long total = 0;
+		for (String nombre : grupo)
+			total += new File(dir, nombre).length();
+		return total;
+	}
+	
+	/** Devuelve el tipo de un archivo según su nombre: la extensión,
+	 * o si no tiene, el nombre sin los dígitos finales
+	 * 
+	 * @param nombre la ruta relativa del archivo
+	 * @return el tipo
+	 */
+	protected static String tipo(String nombre)
+	{
+		String base = nombre.substring(nombre.lastIndexOf('/') + 1);
+		int punto = base.lastIndexOf('.');
+		
+		if (punto > 0)
+			return "." + base.substring(punto + 1).toLowerCase();
+		
+		int fin = base.length();
+		while (fin > 1 && Character.isDigit(base.charAt(fin - 1)))
+			fin--;
+		
+		return base.substring(0, fin).toLowerCase();
+	}
+	
+	/** Decide si un archivo parece texto, mirando su principio
+	 * 
+	 * @param f el archivo
+	 * @return true si casi todos sus primeros bytes son imprimibles
+	 * @throws IOException si no se puede leer
+	 */
+	protected static boolean esTexto(File f) throws IOException
+	{
+		byte[] b = new byte[4096];
+		InputStream in = new FileInputStream(f);
+		int n, i, imprimibles = 0;
+		
+		try
+		{
+			n = Math.max(0, in.read(b));
+		}
+		finally
+		{
+			in.close();
+		}
+		
+		for (i = 0; i < n; i++)
+		{
+			int c = b[i] & 0xFF;
+			if (c >= 32 || c == '\n' || c == '\r' || c == '\t')
+				imprimibles++;
+		}
+		
+		return imprimibles >= n * 0.95;
+	}
+	
+	/** Elige el orden de un grupo, con el selector si lo hay
+	 * 
+	 * @param dir el directorio base
+	 * @param grupo los archivos del grupo
+	 * @return el orden
+	 * @throws IOException si no se puede leer algún archivo
+	 */
+	protected int elegirOrden(File dir, List<String> grupo) throws IOException
+	{
+		if (selector == null)
+			return order;
+		
+		//Una muestra del principio del grupo
+		byte[] muestra = new byte[OrderSelector.defaultSampleSize];
+		int len = 0, n;
+		
+		for (String nombre : grupo)
+		{
+			InputStream in = new FileInputStream(new File(dir, nombre));
+			try
+			{
+				while (len < muestra.length && (n = in.read(muestra, len, muestra.length - len)) > 0)
+					len += n;
+			}
+			finally
+			{
+				in.close();
+			}
+			if (len == muestra.length)
+				break;
+		}
+		
+		return selector.choose(muestra, 0, len);
+	}
+	
+	/** Copia un archivo entero en el codificador
+	 * 
+	 * @param f el archivo
+	 * @param enc el codificador
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	private static void copiar(File f, OutputStream enc) throws IOException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(f));
+		byte[] buf = new byte[64 * 1024];
+		int read;
+		
+		try
+		{
+			while ((read = in.read(buf)) > 0)
+				enc.write(buf, 0, read);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	/** Cuenta los bytes escritos, para saber dónde empieza cada grupo
+	 */
+	protected static class CountingOutputStream extends FilterOutputStream
+	{
+		/** Bytes escritos hasta ahora */
+		long count = 0;
+		
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+		
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+	
+	/** Evita que los codificadores de cada grupo cierren la salida común
+	 */
+	protected static class NoCloseOutputStream extends FilterOutputStream
+	{
+		NoCloseOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+		}
+		
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+}
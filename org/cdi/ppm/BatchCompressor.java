@@ -0,0 +1,439 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Comprime o descomprime muchas entradas en un mismo proceso, repartiéndolas
+ * entre un número fijo de hilos (cada uno reutiliza su coder, ver <code>CoderPool</code>).
+ * 
+ * Las entradas pueden ser los archivos de un directorio, una lista de archivos
+ * o peticiones enmarcadas en una stream (ver <code>serve</code>). Para no quedarse
+ * sin memoria, antes de aceptar cada entrada se reserva una estimación de lo que
+ * va a ocupar su modelo; si no hay bastante libre se espera a que terminen otras.
+ * 
+ * @author Javier y Maldo
+ */
+public class BatchCompressor
+{
+	/** Lo que ocupa, más o menos, un nodo del modelo con su hueco en la arena */
+	private static final int bytesPorNodo = 40;
+	
+	/** Los hilos que hacen el trabajo */
+	protected final ExecutorService pool;
+	/** Número de hilos */
+	protected final int threads;
+	/** La memoria libre para nuevos trabajos, en KB */
+	protected final Semaphore memoria;
+	/** La memoria total para trabajos, en KB */
+	protected final int memoriaTotal;
+	
+	/** Si se comprime (o si no, se descomprime) */
+	protected final boolean compress;
+	/** El orden fijo, si no hay selector */
+	protected final int order;
+	/** El selector de orden automático, o null */
+	protected final OrderSelector selector;
+	
+	/** Entradas terminadas */
+	protected final AtomicLong entradas = new AtomicLong();
+	/** Entradas que han fallado */
+	protected final AtomicLong errores = new AtomicLong();
+	/** Bytes leídos */
+	protected final AtomicLong bytesIn = new AtomicLong();
+	/** Bytes escritos */
+	protected final AtomicLong bytesOut = new AtomicLong();
+	
+	/** Crea un servicio de compresión
+	 * 
+	 * @param compress true para comprimir, false para descomprimir
+	 * @param order el orden del modelo (si no hay selector)
+	 * @param selector el selector de orden automático, o null
+	 * @param threads el número de hilos
+	 * @param memoryBudget la memoria (en bytes) que pueden ocupar a la vez los trabajos
+	 */
+	public BatchCompressor(boolean compress, int order, OrderSelector selector, int threads, long memoryBudget)
+	{
+		if (threads <= 0)
+			throw new IllegalArgumentException("Número de hilos inválido");
+		
+		this.compress = compress;
+		this.order = order;
+		this.selector = selector;
+		this.threads = threads;
+		
+		//Lo que conservan los coders de cada hilo entre un trabajo y otro (ver CoderPool.trim)
+		long retenido = (long) threads * 2 * CoderPool.maxNodosRetenidos * bytesPorNodo;
+		memoriaTotal = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (memoryBudget - retenido) / 1024));
+		memoria = new Semaphore(memoriaTotal, true);
+		
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int n = 0;
+			public synchronized Thread newThread(Runnable r)
+			{
+				return new Thread(r, "PPM-lote-" + (n++));
+			}
+		});
+	}
+	
+	/** Crea un servicio de compresión con un hilo por procesador
+	 * y la mitad de la memoria máxima de la máquina virtual
+	 * 
+	 * @param compress true para comprimir, false para descomprimir
+	 * @param order el orden del modelo (si no hay selector)
+	 * @param selector el selector de orden automático, o null
+	 */
+	public BatchCompressor(boolean compress, int order, OrderSelector selector)
+	{
+		this(compress, order, selector, Runtime.getRuntime().availableProcessors(),
+				Runtime.getRuntime().maxMemory() / 2);
+	}
+	
+	/** Estima, en KB, la memoria que hace falta para procesar una entrada:
+	 * el bloque, su resultado y como mucho (orden + 1) nodos por byte del bloque.
+	 * Nunca pide más que el total, para que las entradas enormes puedan ir solas.
+	 * 
+	 * @param size tamaño de la entrada
+	 * @return KB a reservar
+	 */
+	protected int estimate(long size)
+	{
+		long bloque = Math.min(compress ? size : size * 4, PPMOutputStream.defaultBlockSize);
+		int nodos = (selector != null) ? OrderSelector.defaultOrders.length + 1 : order + 1;
+		long bytes = bloque * (2 + (long) bytesPorNodo * nodos);
+		
+		return (int) Math.max(1, Math.min(memoriaTotal, bytes / 1024));
+	}
+	
+	/** Encola un archivo, esperando si no hay memoria suficiente.
+	 * El resultado se escribe al lado, con la extensión ".ppm" (o ".ppmdec").
+	 * 
+	 * @param origen el archivo a procesar
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	public void submit(final File origen) throws InterruptedException
+	{
+		final File destino = new File(origen.getPath() + (compress ? ".ppm" : ".ppmdec"));
+		final int kb = estimate(origen.length());
+		
+		memoria.acquire(kb);
+		
+		pool.execute(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					InputStream in = new BufferedInputStream(new FileInputStream(origen));
+					try
+					{
+						OutputStream out = new BufferedOutputStream(new FileOutputStream(destino));
+						try
+						{
+							process(in, out);
+						}
+						finally
+						{
+							out.close();
+						}
+					}
+					finally
+					{
+						in.close();
+					}
+					
+					bytesIn.addAndGet(origen.length());
+					bytesOut.addAndGet(destino.length());
+					entradas.incrementAndGet();
+				}
+				catch (IOException e)
+				{
+					errores.incrementAndGet();
+					System.err.println("Problema con " + origen + ": " + e.getMessage());
+				}
+				catch (RuntimeException e)
+				{
+					//Un fallo del propio compresor también cuenta como error de esa entrada
+					errores.incrementAndGet();
+					System.err.println("Problema con " + origen + ": " + e);
+				}
+				finally
+				{
+					CoderPool.trim();
+					memoria.release(kb);
+				}
+			}
+		});
+	}
+	
+	/** Encola todos los archivos de un directorio (no de sus subdirectorios).
+	 * Al comprimir se saltan los ".ppm"; al descomprimir solo se toman esos.
+	 * 
+	 * @param dir el directorio
+	 * @throws IOException si no se puede leer el directorio
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	public void submitDirectory(File dir) throws IOException, InterruptedException
+	{
+		File[] archivos = dir.listFiles();
+		if (archivos == null)
+			throw new IOException("No se puede leer el directorio " + dir);
+		
+		Arrays.sort(archivos);
+		for (File f : archivos)
+		{
+			if (!f.isFile() || compress == f.getName().endsWith(".ppm"))
+				continue;
+			submit(f);
+		}
+	}
+	
+	/** Encola todos los archivos de una lista (un nombre por línea)
+	 * 
+	 * @param lista el archivo con la lista
+	 * @throws IOException si no se puede leer la lista
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	public void submitList(File lista) throws IOException, InterruptedException
+	{
+		BufferedReader br = new BufferedReader(new FileReader(lista));
+		String linea;
+		
+		try
+		{
+			while ((linea = br.readLine()) != null)
+			{
+				if (linea.trim().length() > 0)
+					submit(new File(linea.trim()));
+			}
+		}
+		finally
+		{
+			br.close();
+		}
+	}
+	
+	/** Atiende peticiones enmarcadas hasta el final de la entrada.
+	 * Cada petición es un entero (big-endian) con su longitud seguido de los datos;
+	 * una longitud negativa también termina. Las respuestas se escriben en el mismo
+	 * orden y con el mismo formato, con longitud -1 si la petición ha fallado.
+	 * Si no se puede escribir una respuesta se dejan de aceptar peticiones y se
+	 * lanza ese error (las que ya estaban en marcha terminan, pero se descartan).
+	 * 
+	 * @param in de donde leer las peticiones
+	 * @param out donde escribir las respuestas
+	 * @throws IOException si hay un problema de entrada/salida
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException, InterruptedException
+	{
+		DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+		final DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+		final BlockingQueue<Future<byte[]>> respuestas = new ArrayBlockingQueue<Future<byte[]>>(threads * 4);
+		final FutureTask<byte[]> fin = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call()
+			{
+				return null;
+			}
+		});
+		final IOException[] fallo = new IOException[1];
+		
+		//Las respuestas se escriben desde otro hilo, en orden
+		Thread escritor = new Thread("PPM-respuestas") {
+			public void run()
+			{
+				try
+				{
+					Future<byte[]> f;
+					while ((f = respuestas.take()) != fin)
+					{
+						byte[] respuesta;
+						try
+						{
+							respuesta = f.get();
+						}
+						catch (ExecutionException e)
+						{
+							respuesta = null;
+						}
+						
+						if (respuesta == null)
+						{
+							dout.writeInt(-1);
+						}
+						else
+						{
+							dout.writeInt(respuesta.length);
+							dout.write(respuesta);
+						}
+						if (respuestas.isEmpty())
+							dout.flush();
+					}
+					dout.flush();
+				}
+				catch (IOException e)
+				{
+					fallo[0] = e;
+				}
+				catch (InterruptedException e)
+				{
+					//Terminar
+				}
+			}
+		};
+		escritor.start();
+		
+		try
+		{
+			//Si el escritor ha muerto nadie va a sacar las respuestas de la cola
+			while (escritor.isAlive())
+			{
+				int len;
+				try
+				{
+					len = din.readInt();
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				if (len < 0)
+					break;
+				
+				final int kb = estimate(len);
+				memoria.acquire(kb);
+				
+				final byte[] peticion = new byte[len];
+				try
+				{
+					din.readFully(peticion);
+				}
+				catch (IOException e)
+				{
+					memoria.release(kb);
+					throw e;
+				}
+				
+				Future<byte[]> respuesta = pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException
+					{
+						try
+						{
+							ByteArrayOutputStream res = new ByteArrayOutputStream();
+							process(new ByteArrayInputStream(peticion), res);
+							
+							bytesIn.addAndGet(peticion.length);
+							bytesOut.addAndGet(res.size());
+							entradas.incrementAndGet();
+							return res.toByteArray();
+						}
+						catch (IOException e)
+						{
+							errores.incrementAndGet();
+							throw e;
+						}
+						catch (RuntimeException e)
+						{
+							errores.incrementAndGet();
+							throw e;
+						}
+						finally
+						{
+							CoderPool.trim();
+							memoria.release(kb);
+						}
+					}
+				});
+				
+				if (!encolar(respuestas, respuesta, escritor))
+					break;
+			}
+		}
+		finally
+		{
+			try
+			{
+				if (!encolar(respuestas, fin, escritor))
+					respuestas.clear();
+				escritor.join();
+			}
+			catch (InterruptedException e)
+			{
+				//Que el escritor no se quede esperando para siempre
+				escritor.interrupt();
+				throw e;
+			}
+		}
+		
+		if (fallo[0] != null)
+			throw fallo[0];
+	}
+	
+	/** Mete una respuesta en la cola, esperando a que haya hueco mientras el escritor siga vivo
+	 * 
+	 * @param respuestas la cola de respuestas pendientes
+	 * @param respuesta la respuesta a encolar
+	 * @param escritor el hilo que vacía la cola
+	 * @return false si el escritor ha terminado y la respuesta no se ha encolado
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	private static boolean encolar(BlockingQueue<Future<byte[]>> respuestas, Future<byte[]> respuesta,
+			Thread escritor) throws InterruptedException
+	{
+		while (!respuestas.offer(respuesta, 100, TimeUnit.MILLISECONDS))
+		{
+			if (!escritor.isAlive())
+				return false;
+		}
+		return true;
+	}
+	
+	/** Comprime o descomprime una entrada completa
+	 * 
+	 * @param in desde donde
+	 * @param out hacia donde
+	 * @throws IOException si hay un problema de entrada/salida o defecto con los datos
+	 */
+	protected void process(InputStream in, OutputStream out) throws IOException
+	{
+		if (!compress)
+		{
+			//Una entrada con bloques dañados saltados está incompleta: cuenta como error
+			if (PPM.decompress(in, out) > 0)
+				throw new IOException("Entrada con bloques dañados");
+		}
+		else if (selector != null)
+			PPM.compress(in, out, selector);
+		else
+			PPM.compress(in, out, order);
+	}
+	
+	/** Espera a que terminen todos los trabajos encolados y termina los hilos
+	 * 
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	public void shutdown() throws InterruptedException
+	{
+		pool.shutdown();
+		while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+			;
+	}
+	
+	/** Devuelve un resumen de lo hecho hasta ahora
+	 * 
+	 * @return entradas, errores y bytes procesados
+	 */
+	public String summary()
+	{
+		return entradas.get() + " entradas, " + errores.get() + " errores, "
+			+ bytesIn.get() + " -> " + bytesOut.get() + " bytes";
+	}
+	
+	/** Devuelve cuántas entradas han fallado
+	 * 
+	 * @return el número de errores
+	 */
+	public long getErrors()
+	{
+		return errores.get();
+	}
+}
@@ -0,0 +1,78 @@
+package org.cdi.ppm;
+import jdk.jfr.*;
+
+/** Evento de Java Flight Recorder para cada bloque comprimido o descomprimido
+ * (o cada grupo de un archivo empaquetado).
+ * 
+ * Solo se graba si hay una grabación de JFR activa con el evento habilitado
+ * (por ejemplo, <code>jcmd &lt;pid&gt; JFR.start</code>); si no, no cuesta más que
+ * crear el objeto y comprobar <code>shouldCommit()</code>.
+ * 
+ * Los tiempos del modelo y de la codificación son estimaciones por muestreo
+ * (ver <code>Metrics</code>); la duración del evento es el tiempo real del bloque.
+ * 
+ * @author Javier y Maldo
+ */
+@Name("org.cdi.ppm.Block")
+@Label("Bloque PPM")
+@Category({"PPM"})
+@Description("Compresión o descompresión de un bloque")
+@StackTrace(false)
+public class BlockEvent extends Event
+{
+	@Label("Compresión")
+	@Description("true si se comprime, false si se descomprime")
+	boolean compress;
+	
+	@Label("Orden")
+	int order;
+	
+	@Label("Bytes originales")
+	@DataAmount
+	long rawBytes;
+	
+	@Label("Bytes comprimidos")
+	@DataAmount
+	long compressedBytes;
+	
+	@Label("Escapes")
+	long escapes;
+	
+	@Label("Literales")
+	@Description("Carácteres enviados en orden -1")
+	long literals;
+	
+	@Label("Nodos creados")
+	long nodes;
+	
+	@Label("Tiempo del modelo")
+	@Timespan(Timespan.NANOSECONDS)
+	long modelTime;
+	
+	@Label("Tiempo de codificación")
+	@Timespan(Timespan.NANOSECONDS)
+	long codingTime;
+	
+	/** Rellena el evento con un bloque ya terminado y lo graba
+	 * (solo hay que llamarlo si <code>shouldCommit()</code>)
+	 * 
+	 * @param compress si se ha comprimido
+	 * @param order el orden del modelo
+	 * @param rawBytes los bytes originales
+	 * @param compressedBytes los bytes comprimidos
+	 * @param stats las métricas del codificador, ya publicadas
+	 */
+	void commit(boolean compress, int order, long rawBytes, long compressedBytes, Metrics.Local stats)
+	{
+		this.compress = compress;
+		this.order = order;
+		this.rawBytes = rawBytes;
+		this.compressedBytes = compressedBytes;
+		this.escapes = stats.lastEscapes;
+		this.literals = stats.lastLiterals;
+		this.nodes = stats.lastNodes;
+		this.modelTime = stats.lastModelNanos;
+		this.codingTime = stats.lastCodingNanos;
+		commit();
+	}
+}
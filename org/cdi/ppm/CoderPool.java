@@ -0,0 +1,98 @@
+package org.cdi.ppm;
+import java.io.*;
+
+/** Guarda, para cada hilo, un codificador y un decodificador ya construidos,
+ * para no reservar un modelo nuevo cada vez que se comprime un bloque o un mensaje.
+ * 
+ * Los coders que devuelve están vaciados con <code>reset</code> y apuntan a la
+ * stream pedida; se pueden usar hasta la siguiente llamada desde el mismo hilo.
+ * Cada hilo conserva la memoria del último modelo que usó (ver <code>release()</code>),
+ * salvo que haya crecido más de <code>maxNodosRetenidos</code> (ver <code>trim()</code>).
+ * 
+ * @author Javier y Maldo
+ */
+public final class CoderPool
+{
+	/** Nodos que puede tener, como mucho, la arena de un coder que se conserva
+	 * entre trabajos con <code>trim()</code> (unos 2,5 MB en el heap) */
+	public static final int maxNodosRetenidos = 64 * 1024;
+	
+	/** El último codificador de cada hilo */
+	private static final ThreadLocal<HuffmanEncoder> encoders = new ThreadLocal<HuffmanEncoder>();
+	/** El último decodificador de cada hilo */
+	private static final ThreadLocal<HuffmanDecoder> decoders = new ThreadLocal<HuffmanDecoder>();
+	
+	/** No se instancia */
+	private CoderPool()
+	{
+	}
+	
+	/** Devuelve un codificador vacío del orden pedido, reutilizando el del hilo si es posible
+	 * 
+	 * @param out donde guardar los datos codificados
+	 * @param order orden del modelo PPM
+	 * @return el codificador
+	 */
+	public static HuffmanEncoder getEncoder(OutputStream out, int order)
+	{
+		HuffmanEncoder enc = encoders.get();
+		
+		if (enc == null || enc.maxOrder != order)
+		{
+			enc = new HuffmanEncoder(out, order);
+			encoders.set(enc);
+		}
+		else
+		{
+			enc.reset(out);
+		}
+		
+		return enc;
+	}
+	
+	/** Devuelve un decodificador vacío del orden pedido, reutilizando el del hilo si es posible
+	 * 
+	 * @param in de donde leer los datos codificados
+	 * @param order orden del modelo PPM
+	 * @return el decodificador
+	 */
+	public static HuffmanDecoder getDecoder(InputStream in, int order)
+	{
+		HuffmanDecoder dec = decoders.get();
+		
+		if (dec == null || dec.maxOrder != order)
+		{
+			dec = new HuffmanDecoder(in, order);
+			decoders.set(dec);
+		}
+		else
+		{
+			dec.reset(in);
+		}
+		
+		return dec;
+	}
+	
+	/** Olvida los coders del hilo actual cuyos modelos han crecido más de
+	 * <code>maxNodosRetenidos</code>, para que un trabajo grande no deje su memoria
+	 * reservada en el hilo. Se llama al terminar cada trabajo.
+	 */
+	public static void trim()
+	{
+		HuffmanEncoder enc = encoders.get();
+		HuffmanDecoder dec = decoders.get();
+		
+		if (enc != null && enc.model.getArenaSize() > maxNodosRetenidos)
+			encoders.remove();
+		if (dec != null && dec.model.getArenaSize() > maxNodosRetenidos)
+			decoders.remove();
+	}
+	
+	/** Olvida los coders del hilo actual, liberando la memoria de sus modelos
+	 */
+	public static void release()
+	{
+		encoders.remove();
+		decoders.remove();
+	}
+}
@@ -0,0 +1,78 @@
+package org.cdi.ppm;
+import java.io.*;
+
+/** Indica que un bloque de un archivo PPM no coincide con su CRC32C
+ * (ver <code>PPMOutputStream.setChecksum</code>): se ha dañado después de comprimirlo.
+ * 
+ * Se detecta antes de descomprimir el bloque. Si solo se han dañado los datos,
+ * <code>PPMInputStream</code> queda preparada para seguir leyendo desde el bloque siguiente,
+ * perdiendo solo este. Si se ha dañado la cabecera (ver <code>isRecoverable</code>),
+ * no se sabe dónde empieza el bloque siguiente y se pierde el resto del archivo.
+ * 
+ * @author Javier y Maldo
+ */
+public class CorruptBlockException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+	
+	/** El número del bloque dañado, empezando por 0 */
+	private final long bloque;
+	/** Cuántos bytes sin comprimir tenía el bloque (los que se pierden), o -1 si no se sabe */
+	private final int longitud;
+	/** Si se puede seguir leyendo desde el bloque siguiente */
+	private final boolean recuperable;
+	
+	/** Crea la excepción
+	 * 
+	 * @param bloque el número del bloque dañado, empezando por 0
+	 * @param longitud cuántos bytes sin comprimir tenía el bloque
+	 */
+	public CorruptBlockException(long bloque, int longitud)
+	{
+		super("Bloque " + bloque + " dañado (no coincide su CRC32C)");
+		this.bloque = bloque;
+		this.longitud = longitud;
+		this.recuperable = true;
+	}
+	
+	/** Crea la excepción para un bloque con la cabecera dañada, tras el que no se puede seguir
+	 * 
+	 * @param bloque el número del bloque dañado, empezando por 0
+	 */
+	public CorruptBlockException(long bloque)
+	{
+		super("Cabecera del bloque " + bloque + " dañada (no coincide su CRC32C)");
+		this.bloque = bloque;
+		this.longitud = -1;
+		this.recuperable = false;
+	}
+	
+	/** Devuelve el número del bloque dañado
+	 * 
+	 * @return el número del bloque, empezando por 0
+	 */
+	public long getBlock()
+	{
+		return bloque;
+	}
+	
+	/** Devuelve cuántos bytes sin comprimir tenía el bloque dañado, que son los que se pierden
+	 * si se sigue leyendo
+	 * 
+	 * @return la longitud del bloque, o -1 si se ha dañado la cabecera
+	 */
+	public int getLength()
+	{
+		return longitud;
+	}
+	
+	/** Indica si se puede seguir leyendo desde el bloque siguiente
+	 * 
+	 * @return true si solo se han dañado los datos del bloque; false si se ha dañado
+	 *         su cabecera, y con ella dónde empieza el siguiente
+	 */
+	public boolean isRecoverable()
+	{
+		return recuperable;
+	}
+}
@@ -17,7 +17,12 @@ public class Decoder extends FilterInputStream
 	
 	/** El contexto actual
 	 */
-	protected final Context currentContext;
+	protected Context currentContext;
+	
+	/** El contexto de los últimos carácteres seguidos, que es el que se usa salvo
+	 * que se pida uno disperso (ver <code>setSparseContext</code>)
+	 */
+	protected final Context contiguo;
 	
 	/** El modelo usado
 	 */
@@ -26,6 +31,36 @@ public class Decoder extends FilterInputStream
 	/** Indica si hemos recibido un carácter EOF
 	 */
 	protected boolean eofReached = false;
+	
+	/** Indica si el modelo está congelado (modo estático): se decodifica sin actualizarlo
+	 */
+	protected boolean frozen = false;
+	
+	/** Indica si se actualizan solo los órdenes desde el que ha codificado cada carácter
+	 * (exclusión de actualización, ver <code>setUpdateExclusion</code>)
+	 */
+	protected boolean updateExclusion = false;
+	
+	/** El modelo de coincidencias largas, si se ha usado alguna vez (ver <code>setMatchModel</code>)
+	 */
+	protected MatchModel match = null;
+	/** Indica si se usa el modelo de coincidencias
+	 */
+	protected boolean usarMatch = false;
+	/** Cuántos carácteres de la coincidencia en curso quedan por copiar
+	 */
+	protected int pendientes = 0;
+	
+	/** Las métricas de este decompresor, que se suman a las globales al terminar
+	 */
+	protected final Metrics.Local stats = new Metrics.Local();
+	
+	/** A quién avisar del progreso, o null
+	 */
+	protected Progreso progreso = null;
+	/** Bytes decodificados desde el último reset, y cuántos tiene que haber para el siguiente aviso de progreso
+	 */
+	protected long procesados = 0, siguienteAviso = Long.MAX_VALUE;
 
 	/** Crea una nueva instancia del decompresor
 	 * 
@@ -38,8 +73,9 @@ public class Decoder extends FilterInputStream
 		
 		maxOrder = order;
 		
-		currentContext = new Context(order);
-		model = new Model();
+		contiguo = new Context(order);
+		currentContext = contiguo;
+		model = Model.create();
 		
 		//debug = System.out;
 		/*try {
@@ -60,7 +96,7 @@ public class Decoder extends FilterInputStream
 		byte[] buf = new byte[1];
 		int lenread = read(buf, 0, 1);
 		if (lenread < 1) return -1;
-		return buf[0];
+		return buf[0] & 0xFF;
 	}
 	
 	/** Decodifica hasta <code>len</code> bytes en el array especificado
@@ -77,6 +113,9 @@ public class Decoder extends FilterInputStream
 		Excluder exclusions = new Excluder();
 		List<ModelNode> list;
 		int pos, max, read = 0;
+		boolean medir, prediccion;
+		long inicio = 0, t = 0, codif = 0;
+		long llamada = System.nanoTime();
 		
 		pos = off;
 		max = off + len;
@@ -86,56 +125,110 @@ public class Decoder extends FilterInputStream
 		while (pos < max)
 		{
 			ModelNode node;
+			int rank;
 			byte car;
 			
+			if (pendientes > 0)
+			{
+				//Seguir copiando la coincidencia, sin actualizar el modelo
+				car = match.copiar();
+				currentContext.append(car);
+				match.append(car);
+				pendientes--;
+				
+				b[pos] = car;
+				pos++;
+				read++;
+				
+				if (++procesados >= siguienteAviso)
+					avisarProgreso();
+				continue;
+			}
+			
 			testContext = currentContext.clone();
 			exclusions.clear();
 			
+			//Si el modelo de coincidencias predice algo, se ofrece en la primera lista
+			prediccion = usarMatch && match.predice();
+			
+			medir = stats.sample();
+			if (medir)
+			{
+				inicio = System.nanoTime();
+				codif = 0;
+			}
+			
 			while (true)
 			{		
 				//debug.print("En orden" + testContext.order());
 				
 				list = model.getNodeListFor(testContext, exclusions);
 				
-				assert list != null && list.size() > 0: "No hay nodos?";
+				if (list == null)
+				{
+					//El contexto no está (con un modelo estático podado o con exclusión
+					//de actualización): bajar sin escapar
+					testContext.drop();
+					continue;
+				}
+				
+				assert list.size() > 0: "No hay nodos?";
 				
-				node = decodeChar(list);
+				if (medir) t = System.nanoTime();
+				node = decodeChar(prediccion ? match.ofrecer(list) : list);
+				if (medir) codif += System.nanoTime() - t;
 				
 				if (node == null)
 				{
 					throw new IOException("Origen inválido");
 				}
 				
+				if (prediccion && node == match.node)
+				{
+					//Coincidencia larga: se copia en las siguientes vueltas
+					if (medir) t = System.nanoTime();
+					pendientes = decodeMatchLength();
+					if (medir) codif += System.nanoTime() - t;
+					match.usar();
+					car = 0;
+					break;
+				}
+				prediccion = false;
+				
 				if (model.isEscape(node))
 				{
 					//Ha habido un escape
 					
 					//Realizar exclusiones
 					model.excludeAll(list, exclusions);
+					stats.escape(testContext.order());
 					
 					//Escapar y reducir contexto en uno			
 					if (testContext.order() == 0)
 					{
 						//Hemos llegado al orden -1 y nada
 						//Leer carácter literal
-						list = model.getAllCharsList(exclusions);
-						
-						node = decodeChar(list);
+						if (medir) t = System.nanoTime();
+						rank = decodeLiteral(model.getLiteralCount(exclusions));
+						if (medir) codif += System.nanoTime() - t;
 						
-						if (model.isEscape(node))
-						{
-							throw new IOException("Llegado a orden -2");
-						}
-						else if (model.isEOF(node))
+						if (rank == model.getEOFRank(exclusions))
 						{
 							//Fin del archivo!!
 							eofReached = true;
+							//El EOF no es un carácter
+							stats.symbols--;
+							stats.nanos += System.nanoTime() - llamada;
+							publishMetrics();
+							if (progreso != null)
+								progreso.avisar(procesados, compressedBits() / 8);
 							return read;
 						}
 						else
 						{
-							car = node.car;
+							car = model.getLiteralAt(rank, exclusions);
 						}
+						stats.literals++;
 						break;
 					}
 					else
@@ -155,8 +248,22 @@ public class Decoder extends FilterInputStream
 				}
 			}
 			
-			model.add(currentContext, car);
+			if (pendientes > 0)
+			{
+				if (medir)
+					stats.time(System.nanoTime() - inicio, codif);
+				continue;
+			}
+			
+			//Con exclusión de actualización, solo desde el orden en que se ha codificado
+			if (!frozen)
+				model.add(currentContext, car, updateExclusion ? testContext.order() : 0);
 			currentContext.append(car);
+			if (usarMatch)
+				match.append(car);
+			
+			if (medir)
+				stats.time(System.nanoTime() - inicio, codif);
 			
 			//Guardar carácter decodificado
 			b[pos] = car;
@@ -165,12 +272,149 @@ public class Decoder extends FilterInputStream
 
 			pos++;
 			read++;
+			
+			if (++procesados >= siguienteAviso)
+				avisarProgreso();
 			//debug.println();
 		}
 		
+		stats.nanos += System.nanoTime() - llamada;
 		return read;
 	}
 	
+	/** Prepara el decompresor para descomprimir datos nuevos desde otra entrada,
+	 * vaciando el modelo y el contexto pero reutilizando su memoria
+	 * 
+	 * @param in La stream donde está el nuevo archivo comprimido
+	 */
+	public void reset(InputStream in)
+	{
+		this.in = in;
+		publishMetrics();
+		model.reset();
+		stats.nodes = 0;
+		procesados = 0;
+		setProgreso(null);
+		contiguo.clear();
+		currentContext = contiguo;
+		eofReached = false;
+		frozen = false;
+		updateExclusion = false;
+		usarMatch = false;
+		pendientes = 0;
+	}
+	
+	/** Indica si se usa exclusión de actualización: tras codificar un carácter, el modelo
+	 * se actualiza solo en el orden en que se ha codificado y los superiores, en lugar de
+	 * en todos. Hay mucho menos trabajo por carácter y suele comprimir algo mejor, pero
+	 * el codificador y el decodificador tienen que usar lo mismo.
+	 * Se llama antes de decodificar nada, y se quita con un <code>reset</code>.
+	 * 
+	 * @param b true para usar exclusión de actualización
+	 */
+	public void setUpdateExclusion(boolean b)
+	{
+		updateExclusion = b;
+	}
+	
+	/** Indica si se usa el modelo de coincidencias largas (ver <code>MatchModel</code>),
+	 * como hizo el codificador con <code>Encoder.setMatchModel</code>.
+	 * Se llama antes de decodificar nada, y se quita con un <code>reset</code>.
+	 * 
+	 * @param b true para usar el modelo de coincidencias
+	 */
+	public void setMatchModel(boolean b)
+	{
+		if (b && match == null)
+			match = new MatchModel();
+		else if (b)
+			match.reset();
+		usarMatch = b;
+	}
+	
+	/** Indica si se usa un contexto disperso (ver <code>SparseContext</code>),
+	 * como hizo el codificador con <code>Encoder.setSparseContext</code>.
+	 * Se llama antes de decodificar nada (también antes de <code>freeze</code>), y se quita con un <code>reset</code>.
+	 * 
+	 * @param distancias las distancias, de mayor a menor (tantas como el orden máximo),
+	 *        o null para el contexto contiguo
+	 * @throws IllegalArgumentException si las distancias no son válidas o no son tantas como el orden
+	 */
+	public void setSparseContext(int[] distancias)
+	{
+		if (distancias == null)
+		{
+			currentContext = contiguo;
+			return;
+		}
+		
+		if (distancias.length != maxOrder)
+			throw new IllegalArgumentException("Hacen falta tantas distancias como el orden");
+		currentContext = new SparseContext(distancias);
+	}
+	
+	/** Lee el modelo que guardó <code>Encoder.freeze</code> y lo congela:
+	 * a partir de entonces se decodifica sin actualizarlo (hasta el siguiente <code>reset</code>),
+	 * así que no se repite ninguna de las actualizaciones que hizo el codificador.
+	 * 
+	 * Se llama antes de decodificar nada.
+	 * 
+	 * @param src de donde leer el modelo (normalmente la misma entrada, antes de los datos)
+	 * @throws IOException si hay un error de entrada o el modelo no es válido
+	 */
+	public void freeze(DataInput src) throws IOException
+	{
+		model.read(src, maxOrder + 1);
+		currentContext.clear();
+		frozen = true;
+	}
+	
+	/** Pide que se avise del progreso cada cierto número de bytes decodificados.
+	 * Se quita con un <code>reset</code>.
+	 * 
+	 * @param listener a quién avisar, o null para dejar de hacerlo
+	 * @param cada cada cuántos bytes sin comprimir
+	 */
+	public void setProgressListener(ProgressListener listener, long cada)
+	{
+		setProgreso(listener == null ? null : new Progreso(listener, cada));
+	}
+	
+	/** Usa un contador de progreso ya creado (el de la stream que contiene varios bloques)
+	 * 
+	 * @param p el contador, o null
+	 */
+	void setProgreso(Progreso p)
+	{
+		progreso = p;
+		siguienteAviso = (p == null) ? Long.MAX_VALUE : procesados + p.cada;
+	}
+	
+	/** Avisa del progreso y calcula cuándo toca el siguiente aviso
+	 */
+	protected void avisarProgreso()
+	{
+		progreso.avisar(procesados, compressedBits() / 8);
+		siguienteAviso = procesados + progreso.cada;
+	}
+	
+	/** Devuelve cuántos bits comprimidos se han leído desde el último reset,
+	 * para el progreso (debe ser sobrecargada; si no, se cuentan como 0)
+	 * 
+	 * @return el número de bits
+	 */
+	protected long compressedBits()
+	{
+		return 0;
+	}
+	
+	/** Suma lo contado por este decompresor a las métricas globales (<code>Metrics.global</code>)
+	 */
+	public void publishMetrics()
+	{
+		Metrics.global.add(stats, model);
+	}
+	
 	/** Decodifica un carácter, dada una lista con los carácteres posibles
 	 * (debe ser sobrecargada por un decodificador)
 	 * 
@@ -182,4 +426,32 @@ public class Decoder extends FilterInputStream
 	{
 		throw new ClassCastException();
 	}
+	
+	/** Decodifica un símbolo de orden -1, donde todos los símbolos posibles son equiprobables
+	 * (debe ser sobrecargada por un decodificador)
+	 * 
+	 * @param total el número de símbolos posibles
+	 * @return la posición del símbolo decodificado
+	 * @throws IOException si hay algun error de e/s
+	 */
+	protected int decodeLiteral(int total) throws IOException
+	{
+		throw new ClassCastException();
+	}
+	
+	/** Decodifica la longitud de una coincidencia (ver <code>Encoder.encodeMatchLength</code>)
+	 * 
+	 * @return la longitud
+	 * @throws IOException si hay algun error de e/s
+	 */
+	protected int decodeMatchLength() throws IOException
+	{
+		int bits = decodeLiteral(MatchModel.lengthBits) + 1;
+		int v = 1;
+		
+		if (bits > 1)
+			v = (1 << (bits - 1)) + decodeLiteral(1 << (bits - 1));
+		
+		return v + MatchModel.minLength - 1;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package org.cdi.ppm;
+import java.io.*;
+
+/** Filtro reversible para datos en registros de tamaño fijo (imágenes, tablas numéricas):
+ * cambia cada byte por su diferencia (o su XOR) con el byte que está un registro antes.
+ * 
+ * En estos datos el byte que más se parece a cada uno es el de la fila o el registro anterior,
+ * que el contexto de los últimos bytes no ve; tras el filtro, lo que se repite de un registro
+ * al siguiente se convierte en ceros, que el modelo predice bien.
+ * 
+ * El tamaño del registro (la distancia) se busca con la entropía de orden 0 de las diferencias
+ * en unos trozos repartidos por el bloque, y el filtro solo se usa si al comprimir de prueba
+ * una muestra del centro del bloque sale mejor (el principio de un archivo suele ser una
+ * cabecera, o en una imagen, el margen).
+ * El filtro elegido se representa con un código: la distancia por dos, más uno si es XOR.
+ * 
+ * @author Javier y Maldo
+ */
+public final class DeltaFilter
+{
+	/** La mayor distancia que se prueba */
+	static final int maxStride = 1024;
+	/** Cuántos trozos del bloque se usan para buscar la distancia, y de qué tamaño */
+	static final int trozos = 4, muestraDistancia = 4 * 1024;
+	/** Cuántos bytes se comprimen de prueba */
+	static final int muestraPrueba = 64 * 1024;
+	/** Orden con el que se comprime de prueba (basta para comparar) */
+	static final int ordenPrueba = 2;
+	/** Cuánto tiene que mejorar la compresión de prueba para usar el filtro (0.01 = 1%) */
+	static final double minGanancia = 0.01;
+	
+	/** No se instancia */
+	private DeltaFilter()
+	{
+	}
+	
+	/** Elige el filtro para un bloque
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @return el código del filtro (ver <code>encode</code>), o 0 si no merece la pena
+	 * @throws IOException si falla alguna compresión de prueba
+	 */
+	public static int choose(byte[] b, int off, int len) throws IOException
+	{
+		int n = Math.min(len / trozos, muestraDistancia);
+		int[] inicios = new int[trozos];
+		int s, mejor = 0;
+		
+		//Los trozos, centrados en 1/8, 3/8, 5/8 y 7/8 del bloque
+		for (s = 0; s < trozos; s++)
+			inicios[s] = off + (int) ((long) len * (2 * s + 1) / (2 * trozos)) - n / 2;
+		
+		double entropia, minima = entropia(b, inicios, n, 0);
+		
+		//La distancia con menos entropía, si tiene menos que los datos sin filtrar
+		for (s = 1; s <= maxStride && s < n / 2; s++)
+		{
+			entropia = entropia(b, inicios, n, s);
+			if (entropia < minima)
+			{
+				minima = entropia;
+				mejor = s;
+			}
+		}
+		
+		if (mejor == 0)
+			return 0;
+		
+		//Comprimir de prueba sin filtro, con diferencias y con XOR
+		n = Math.min(len, muestraPrueba);
+		int centro = off + (len - n) / 2;
+		long sin = prueba(b, centro, n, 0);
+		long resta = prueba(b, centro, n, mejor << 1);
+		long xor = prueba(b, centro, n, mejor << 1 | 1);
+		
+		if (Math.min(resta, xor) > sin * (1 - minGanancia))
+			return 0;
+		
+		return (xor < resta) ? (mejor << 1 | 1) : (mejor << 1);
+	}
+	
+	/** Aplica un filtro a un bloque, sobre el mismo array
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @param codigo el filtro: la distancia por dos, más uno para XOR en lugar de diferencia
+	 */
+	public static void encode(byte[] b, int off, int len, int codigo)
+	{
+		int s = codigo >>> 1;
+		int i;
+		
+		//De atrás adelante, para restar siempre los bytes originales
+		if ((codigo & 1) != 0)
+			for (i = off + len - 1; i >= off + s; i--)
+				b[i] ^= b[i - s];
+		else
+			for (i = off + len - 1; i >= off + s; i--)
+				b[i] -= b[i - s];
+	}
+	
+	/** Deshace un filtro de un bloque, sobre el mismo array
+	 * 
+	 * @param b el array con el bloque filtrado
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @param codigo el filtro con el que se filtró
+	 */
+	public static void decode(byte[] b, int off, int len, int codigo)
+	{
+		int s = codigo >>> 1;
+		int i;
+		
+		//De delante atrás, para sumar siempre los bytes ya recuperados
+		if ((codigo & 1) != 0)
+			for (i = off + s; i < off + len; i++)
+				b[i] ^= b[i - s];
+		else
+			for (i = off + s; i < off + len; i++)
+				b[i] += b[i - s];
+	}
+	
+	/** Calcula la entropía de orden 0 (en bits por byte) de las diferencias a una distancia,
+	 * juntando varios trozos
+	 * 
+	 * @param b el array
+	 * @param inicios el índice del primer byte de cada trozo
+	 * @param len cuántos bytes tiene cada trozo
+	 * @param s la distancia (0 para los bytes sin filtrar)
+	 * @return la entropía
+	 */
+	private static double entropia(byte[] b, int[] inicios, int len, int s)
+	{
+		int[] cuentas = new int[Excluder.byteRange];
+		int i, total = 0;
+		
+		for (int off : inicios)
+		{
+			//Los primeros s bytes (o todos, si s es 0) van sin filtrar
+			for (i = off; i < off + (s == 0 ? len : s); i++)
+				cuentas[b[i] & 0xFF]++;
+			for (; i < off + len; i++)
+				cuentas[(b[i] - b[i - s]) & 0xFF]++;
+			total += len;
+		}
+		
+		double h = 0;
+		for (int c : cuentas)
+			if (c > 0)
+				h -= c * Math.log((double) c / total);
+		
+		return h / (total * Math.log(2));
+	}
+	
+	/** Comprime de prueba una muestra con un filtro
+	 * 
+	 * @param b el array
+	 * @param off el índice del primer byte
+	 * @param len cuántos bytes
+	 * @param codigo el filtro, o 0 para ninguno
+	 * @return el tamaño comprimido
+	 * @throws IOException si falla la compresión
+	 */
+	private static long prueba(byte[] b, int off, int len, int codigo) throws IOException
+	{
+		byte[] muestra = new byte[len];
+		System.arraycopy(b, off, muestra, 0, len);
+		if (codigo != 0)
+			encode(muestra, 0, len, codigo);
+		
+		HuffmanEncoder enc = CoderPool.getEncoder(new ByteArrayOutputStream(len), ordenPrueba);
+		enc.write(muestra, 0, len);
+		enc.finish();
+		
+		return (enc.compressedBits() + 7) / 8;
+	}
+}
@@ -17,11 +17,47 @@ public class Encoder extends FilterOutputStream
 	
 	/** El contexto actual
 	 */
-	protected final Context currentContext;
+	protected Context currentContext;
+	
+	/** El contexto de los últimos carácteres seguidos, que es el que se usa salvo
+	 * que se pida uno disperso (ver <code>setSparseContext</code>)
+	 */
+	protected final Context contiguo;
 	
 	/** El modelo usado
 	 */
 	protected final Model model;
+	
+	/** Indica si ya se ha enviado el carácter de fin de archivo
+	 */
+	protected boolean finished = false;
+	
+	/** Indica si el modelo está congelado (modo estático): se codifica sin actualizarlo
+	 */
+	protected boolean frozen = false;
+	
+	/** Indica si se actualizan solo los órdenes desde el que ha codificado cada carácter
+	 * (exclusión de actualización, ver <code>setUpdateExclusion</code>)
+	 */
+	protected boolean updateExclusion = false;
+	
+	/** El modelo de coincidencias largas, si se ha usado alguna vez (ver <code>setMatchModel</code>)
+	 */
+	protected MatchModel match = null;
+	/** Indica si se usa el modelo de coincidencias
+	 */
+	protected boolean usarMatch = false;
+	
+	/** Las métricas de este compresor, que se suman a las globales al terminar
+	 */
+	protected final Metrics.Local stats = new Metrics.Local();
+	
+	/** A quién avisar del progreso, o null
+	 */
+	protected Progreso progreso = null;
+	/** Bytes codificados desde el último reset, y cuántos tiene que haber para el siguiente aviso de progreso
+	 */
+	protected long procesados = 0, siguienteAviso = Long.MAX_VALUE;
 
 	/** Crea una nueva instancia del compresor PPM
 	 * 
@@ -34,8 +70,9 @@ public class Encoder extends FilterOutputStream
 		
 		maxOrder = order;
 		
-		currentContext = new Context(order);
-		model = new Model();
+		contiguo = new Context(order);
+		currentContext = contiguo;
+		model = Model.create();
 		
 		/*try {
 			debug = new PrintStream(new BufferedOutputStream(new FileOutputStream("debug.txt")), true);
@@ -66,11 +103,17 @@ public class Encoder extends FilterOutputStream
 	 */
 	public void write(byte[] b, int off, int len) throws IOException
 	{
+		if (finished)
+			throw new IOException("Compresión ya terminada");
+		
 		Context testContext;
 		Excluder exclusions = new Excluder();
-		List<ModelNode> list;
+		List<ModelNode> list, codificar;
 		ModelNode toEncode;
-		int pos, max;
+		int pos, max, largo;
+		boolean medir, prediccion;
+		long inicio = 0, t = 0, codif = 0;
+		long llamada = System.nanoTime();
 		
 		pos = off;
 		max = off + len;
@@ -81,15 +124,55 @@ public class Encoder extends FilterOutputStream
 
 			//debug.print((char) car + ": ");
 			
+			medir = stats.sample();
+			if (medir)
+			{
+				inicio = System.nanoTime();
+				codif = 0;
+			}
+			
 			testContext = currentContext.clone();
 			exclusions.clear();
 			
+			//Si el modelo de coincidencias predice algo, se ofrece en la primera lista
+			prediccion = usarMatch && match.predice();
+			largo = 0;
+			
 			while (true)
 			{
 				//debug.print(", contexto " + testContext.order() + " ");
 				
 				//Obtiene la lista de carácteres para el contexto actual
 				list = model.getNodeListFor(testContext, exclusions);
+				
+				if (list == null)
+				{
+					//El contexto no está (con un modelo estático podado o con exclusión
+					//de actualización): bajar sin escapar
+					testContext.drop();
+					continue;
+				}
+				
+				codificar = list;
+				if (prediccion)
+				{
+					prediccion = false;
+					codificar = match.ofrecer(list);
+					largo = match.longitud(b, pos, max);
+					
+					if (largo >= MatchModel.minLength)
+					{
+						//Coincidencia larga: el símbolo especial y su longitud, en lugar del carácter
+						if (medir) t = System.nanoTime();
+						encodeChar(codificar, match.node);
+						encodeMatchLength(largo);
+						if (medir) codif += System.nanoTime() - t;
+						match.usar();
+						break;
+					}
+					largo = 0;
+				}
+				
 				//Busca el carácter a comprimir en esa lista
 				toEncode = model.searchNode(list, car);
 				
@@ -104,18 +187,20 @@ public class Encoder extends FilterOutputStream
 					//debug.print("\\ " + Math.round(model.escape(testContext) * 100) + " % - ");
 					toEncode = model.searchEscapeNode(list);
 					assert toEncode != null: "El carácter de escape siempre está";
-					encodeChar(list, toEncode);
+					if (medir) t = System.nanoTime();
+					encodeChar(codificar, toEncode);
+					if (medir) codif += System.nanoTime() - t;
+					stats.escape(testContext.order());
 					
 					if (testContext.order() == 0)
 					{
 						//Hemos llegado al orden -1 y nada
-						//Escribir carácter literal (1/todos los carácteres)
+						//Escribir carácter literal (1/todos los carácteres no excluidos)
 						//debug.print("Literal");
-						list = model.getAllCharsList(exclusions);
-						
-						toEncode = model.searchNode(list, car);
-						assert toEncode != null: "Todos los carácteres debe contener todos los cars";
-						encodeChar(list, toEncode);
+						if (medir) t = System.nanoTime();
+						encodeLiteral(model.getLiteralRank(car, exclusions), model.getLiteralCount(exclusions));
+						if (medir) codif += System.nanoTime() - t;
+						stats.literals++;
 						break;
 					}
 					else
@@ -131,20 +216,99 @@ public class Encoder extends FilterOutputStream
 				{
 					//Hay compresión
 					//debug.print("Comprimido, " + Math.round(prob * 100) + " %");
-					encodeChar(list, toEncode);
+					if (medir) t = System.nanoTime();
+					encodeChar(codificar, toEncode);
+					if (medir) codif += System.nanoTime() - t;
 					break;
 				}
 			}
 			
 			//debug.println("");
 			
-			model.add(currentContext, car);
+			if (largo > 0)
+			{
+				//Los carácteres de la coincidencia no actualizan el modelo, solo el contexto
+				for (; largo > 0; largo--)
+				{
+					currentContext.append(b[pos]);
+					match.append(b[pos]);
+					pos++;
+					
+					if (++procesados >= siguienteAviso)
+						avisarProgreso();
+				}
+				
+				if (medir)
+					stats.time(System.nanoTime() - inicio, codif);
+				continue;
+			}
+			
+			//Con exclusión de actualización, solo desde el orden en que se ha codificado
+			if (!frozen)
+				model.add(currentContext, car, updateExclusion ? testContext.order() : 0);
 			currentContext.append(car);
+			if (usarMatch)
+				match.append(car);
 
+			if (medir)
+				stats.time(System.nanoTime() - inicio, codif);
+			
 			pos++;
+			
+			if (++procesados >= siguienteAviso)
+				avisarProgreso();
+		}
+		
+		stats.nanos += System.nanoTime() - llamada;
+	}
+	
+	/** Primera pasada del modo estático: construye el modelo con todos los datos
+	 * que se van a codificar, sin codificar nada (ver <code>freeze</code>)
+	 * 
+	 * @param b el array de bytes
+	 * @param off el índice del primer byte del array
+	 * @param len el número de bytes
+	 */
+	public void train(byte[] b, int off, int len)
+	{
+		int pos;
+		
+		if (frozen)
+			throw new IllegalStateException("Modelo ya congelado");
+		
+		for (pos = off; pos < off + len; pos++)
+		{
+			model.add(currentContext, b[pos]);
+			currentContext.append(b[pos]);
 		}
 	}
 	
+	/** Congela el modelo para codificar con él en una segunda pasada: lo escribe
+	 * (podado) en <code>dest</code>, para que el decodificador lo lea con <code>Decoder.freeze</code>,
+	 * y a partir de entonces codifica sin actualizarlo (hasta el siguiente <code>reset</code>).
+	 * Como el decodificador nunca actualiza el modelo, descomprimir es mucho más rápido,
+	 * a cambio de guardar el modelo en el archivo.
+	 * 
+	 * Se llama antes de codificar nada, normalmente tras <code>train</code>.
+	 * 
+	 * @param dest donde escribir el modelo (normalmente la misma salida, antes de los datos)
+	 * @param minCount la cuenta mínima de los nodos que se guardan (1 para guardarlos todos)
+	 * @throws IOException si hay un error de salida al escribir
+	 */
+	public void freeze(DataOutput dest, int minCount) throws IOException
+	{
+		ByteArrayOutputStream guardado = new ByteArrayOutputStream();
+		
+		model.write(new DataOutputStream(guardado), maxOrder + 1, minCount);
+		
+		//Quedarse con el modelo tal y como lo leerá el decodificador (podado)
+		model.read(new DataInputStream(new ByteArrayInputStream(guardado.toByteArray())), maxOrder + 1);
+		currentContext.clear();
+		frozen = true;
+		
+		dest.write(guardado.toByteArray());
+	}
+	
 	/** Codifica un carácter dada una tabla de probabilidades
 	 * (debe ser sobrecargada)
 	 * 
@@ -157,31 +321,145 @@ public class Encoder extends FilterOutputStream
 		throw new ClassCastException();
 	}
 	
+	/** Codifica un símbolo de orden -1, donde todos los símbolos posibles son equiprobables
+	 * (debe ser sobrecargada)
+	 * 
+	 * @param rank la posición del símbolo a codificar
+	 * @param total el número de símbolos posibles
+	 * @throws IOException si hay un error de salida al escribir
+	 */
+	protected void encodeLiteral(int rank, int total) throws IOException
+	{
+		throw new ClassCastException();
+	}
+	
+	/** Codifica la longitud de una coincidencia: cuántos bits tiene (menos <code>MatchModel.minLength</code>,
+	 * más 1) y después esos bits, menos el primero, que siempre es 1
+	 * 
+	 * @param largo la longitud, entre <code>MatchModel.minLength</code> y <code>MatchModel.maxLength</code>
+	 * @throws IOException si hay un error de salida al escribir
+	 */
+	protected void encodeMatchLength(int largo) throws IOException
+	{
+		int v = largo - MatchModel.minLength + 1;
+		int bits = 32 - Integer.numberOfLeadingZeros(v);
+		
+		encodeLiteral(bits - 1, MatchModel.lengthBits);
+		if (bits > 1)
+			encodeLiteral(v - (1 << (bits - 1)), 1 << (bits - 1));
+	}
+	
+	/** Prepara el compresor para comprimir datos nuevos hacia otra salida,
+	 * vaciando el modelo y el contexto pero reutilizando su memoria
+	 * 
+	 * @param out La stream donde se escribirá el nuevo archivo resultante
+	 */
+	public void reset(OutputStream out)
+	{
+		this.out = out;
+		publishMetrics();
+		model.reset();
+		stats.nodes = 0;
+		procesados = 0;
+		setProgreso(null);
+		contiguo.clear();
+		currentContext = contiguo;
+		finished = false;
+		frozen = false;
+		updateExclusion = false;
+		usarMatch = false;
+	}
+	
+	/** Indica si se usa exclusión de actualización: tras codificar un carácter, el modelo
+	 * se actualiza solo en el orden en que se ha codificado y los superiores, en lugar de
+	 * en todos. Hay mucho menos trabajo por carácter y suele comprimir algo mejor, pero
+	 * el codificador y el decodificador tienen que usar lo mismo.
+	 * Se llama antes de codificar nada, y se quita con un <code>reset</code>.
+	 * 
+	 * @param b true para usar exclusión de actualización
+	 */
+	public void setUpdateExclusion(boolean b)
+	{
+		updateExclusion = b;
+	}
+	
+	/** Indica si se usa el modelo de coincidencias largas (ver <code>MatchModel</code>): cuando los
+	 * últimos carácteres ya se vieron antes y lo que sigue se repite, se codifica cuánto se repite
+	 * en lugar de carácter a carácter, sin actualizar el modelo. Con datos muy repetitivos comprime
+	 * más y mucho más rápido, pero el codificador y el decodificador tienen que usar lo mismo.
+	 * Se llama antes de codificar nada, y se quita con un <code>reset</code>.
+	 * 
+	 * @param b true para usar el modelo de coincidencias
+	 */
+	public void setMatchModel(boolean b)
+	{
+		if (b && match == null)
+			match = new MatchModel();
+		else if (b)
+			match.reset();
+		usarMatch = b;
+	}
+	
+	/** Indica si se usa un contexto disperso (ver <code>SparseContext</code>) en lugar de los
+	 * últimos carácteres seguidos: el modelo ve entonces los carácteres que están a esas
+	 * distancias, y al escapar olvida primero el más lejano. En datos en filas de tamaño fijo,
+	 * con {ancho, 2, 1} un orden bajo comprime casi como uno mucho más alto. El codificador
+	 * y el decodificador tienen que usar lo mismo.
+	 * Se llama antes de codificar nada (también antes de <code>train</code>), y se quita con un <code>reset</code>.
+	 * 
+	 * @param distancias las distancias, de mayor a menor (tantas como el orden máximo),
+	 *        o null para el contexto contiguo
+	 * @throws IllegalArgumentException si las distancias no son válidas o no son tantas como el orden
+	 */
+	public void setSparseContext(int[] distancias)
+	{
+		if (distancias == null)
+		{
+			currentContext = contiguo;
+			return;
+		}
+		
+		if (distancias.length != maxOrder)
+			throw new IllegalArgumentException("Hacen falta tantas distancias como el orden");
+		currentContext = new SparseContext(distancias);
+	}
+	
 	/** Termina la compresión, enviando el carácter de fin de archivo
-	 * (no cierra el fichero de salida, debe hacerlo la subclase)
+	 * sin cerrar la salida (la subclase debe completar los últimos bits)
+	 * 
+	 * @throws IOException si hay un error de salida al escribir
 	 */
-	public void close() throws IOException
+	public void finish() throws IOException
 	{
+		if (finished) return;
+		finished = true;
+		
 		//Hay que enviar un EOF
 		// para hacer eso necesitamos bajar al contexto literal, orden -1
 		Excluder exclusions = new Excluder();
 		List<ModelNode> list;
 		ModelNode toEncode;
+		boolean prediccion = usarMatch && match.predice();
 		
 		//Reducir el contexto a orden -1
 		while ( true )
 		{
 			//Obtiene la lista de carácteres para el contexto actual
 			list = model.getNodeListFor(currentContext, exclusions);
-			//Busca el carácter a comprimir en esa lista
-			toEncode = model.searchEscapeNode(list);
-			
-			//Excluir todos los carácteres del contexto actual
-			model.excludeAll(list, exclusions);
-			//	Todos, así reducimos el tamaño de la lista de carácteres
 			
-			//Enviar un escape
-			encodeChar(list, toEncode);
+			if (list != null) //Si no está, se baja sin escapar (como al codificar)
+			{
+				//Busca el carácter a comprimir en esa lista
+				toEncode = model.searchEscapeNode(list);
+				
+				//Excluir todos los carácteres del contexto actual
+				model.excludeAll(list, exclusions);
+				//	Todos, así reducimos el tamaño de la lista de carácteres
+				
+				//Enviar un escape (en la lista en la que el decodificador espera la coincidencia, si la hay)
+				encodeChar(prediccion ? match.ofrecer(list) : list, toEncode);
+				prediccion = false;
+			}
 			
 			//Y bajar el contexto, si aún se puede físicamente
 			if ( currentContext.order() > 0 )
@@ -193,10 +471,67 @@ public class Encoder extends FilterOutputStream
 		//Ahora el orden es -1
 		
 		//Enviar EOF, literal
-		list = model.getAllCharsList(exclusions);
+		encodeLiteral(model.getEOFRank(exclusions), model.getLiteralCount(exclusions));
 		
-		toEncode = model.searchEOFNode(list);
-		assert toEncode != null: "Todo contexto debe contener a EOF";
-		encodeChar(list, toEncode);
+		publishMetrics();
+		
+		if (progreso != null)
+			progreso.avisar(procesados, (compressedBits() + 7) / 8);
+	}
+	
+	/** Pide que se avise del progreso cada cierto número de bytes codificados.
+	 * Se quita con un <code>reset</code>.
+	 * 
+	 * @param listener a quién avisar, o null para dejar de hacerlo
+	 * @param cada cada cuántos bytes sin comprimir
+	 */
+	public void setProgressListener(ProgressListener listener, long cada)
+	{
+		setProgreso(listener == null ? null : new Progreso(listener, cada));
+	}
+	
+	/** Usa un contador de progreso ya creado (el de la stream que contiene varios bloques)
+	 * 
+	 * @param p el contador, o null
+	 */
+	void setProgreso(Progreso p)
+	{
+		progreso = p;
+		siguienteAviso = (p == null) ? Long.MAX_VALUE : procesados + p.cada;
+	}
+	
+	/** Avisa del progreso y calcula cuándo toca el siguiente aviso
+	 */
+	protected void avisarProgreso()
+	{
+		progreso.avisar(procesados, compressedBits() / 8);
+		siguienteAviso = procesados + progreso.cada;
+	}
+	
+	/** Devuelve cuántos bits comprimidos se han escrito desde el último reset,
+	 * para el progreso (debe ser sobrecargada; si no, se cuentan como 0)
+	 * 
+	 * @return el número de bits
+	 */
+	protected long compressedBits()
+	{
+		return 0;
+	}
+	
+	/** Suma lo contado por este compresor a las métricas globales (<code>Metrics.global</code>)
+	 */
+	public void publishMetrics()
+	{
+		Metrics.global.add(stats, model);
+	}
+	
+	/** Termina la compresión y cierra la salida
+	 * 
+	 * @throws IOException si hay un error de salida
+	 */
+	public void close() throws IOException
+	{
+		finish();
+		out.close();
 	}
 }
@@ -10,10 +10,10 @@ public class Excluder {
 	/** El número de valores máximos posibles para un tipo Byte.
 	 */
 	protected static final int byteRange =  Byte.MAX_VALUE - Byte.MIN_VALUE + 1;
-	/** Un array de booleanos.
-	 * excluded[i] es cierto si el byte I está excluido
+	/** Un mapa de bits de 256 posiciones.
+	 * El bit i (de la palabra i / 64) está activo si el byte I está excluido
 	 */
-	protected boolean[] excluded = new boolean[byteRange];
+	protected long[] excluded = new long[byteRange / 64];
 	/** Cuenta el total de carácteres excluidos
 	 */
 	protected int exclusionsCount = 0;
@@ -27,8 +27,8 @@ public class Excluder {
 		if (exclusionsCount == 0) return;
 		
 		int i;
-		for (i = 0; i < byteRange; i++)
-			excluded[i] = false;
+		for (i = 0; i < excluded.length; i++)
+			excluded[i] = 0;
 		
 		exclusionsCount = 0;
 	}
@@ -40,13 +40,31 @@ public class Excluder {
 	public void exclude(byte b)
 	{
 		short i = unsignByte(b);
-		if (!excluded[i])
+		long mask = 1L << i;
+		if ((excluded[i >>> 6] & mask) == 0)
 		{
 			exclusionsCount++;
-			excluded[i] = true;
+			excluded[i >>> 6] |= mask;
 		}		
 	}
 	
+	/** Excluye de una vez todos los bytes de un mapa de bits
+	 * 
+	 * @param bits el mapa de bits, con el mismo formato que <code>excluded</code>
+	 */
+	public void exclude(long[] bits)
+	{
+		int w;
+		long nuevos;
+		
+		for (w = 0; w < excluded.length; w++)
+		{
+			nuevos = bits[w] & ~excluded[w];
+			exclusionsCount += Long.bitCount(nuevos);
+			excluded[w] |= nuevos;
+		}
+	}
+	
 	/** Determina si un byte está excluido
 	 * 
 	 * @param b byte a determinar
@@ -55,7 +73,67 @@ public class Excluder {
 	public boolean isExcluded(byte b)
 	{
 		short i = unsignByte(b);
-		return excluded[i];
+		return (excluded[i >>> 6] & (1L << i)) != 0;
+	}
+	
+	/** Cuenta los bytes que no están excluidos
+	 * 
+	 * @return número de bytes no excluidos
+	 */
+	public int countIncluded()
+	{
+		return byteRange - exclusionsCount;
+	}
+	
+	/** Devuelve la posición de un byte entre los no excluidos
+	 * (su valor sin signo menos los excluidos por debajo de él)
+	 * 
+	 * @param b byte, que no debe estar excluido
+	 * @return posición del byte, entre 0 y <code>countIncluded() - 1</code>
+	 */
+	public int rankOf(byte b)
+	{
+		short i = unsignByte(b);
+		int below = 0;
+		int w;
+		
+		for (w = 0; w < (i >>> 6); w++)
+			below += Long.bitCount(excluded[w]);
+		below += Long.bitCount(excluded[i >>> 6] & ((1L << i) - 1));
+		
+		return i - below;
+	}
+	
+	/** Devuelve el byte no excluido que ocupa una posición determinada
+	 * (la operación inversa a <code>rankOf</code>)
+	 * 
+	 * @param rank posición, entre 0 y <code>countIncluded() - 1</code>
+	 * @return el byte en esa posición
+	 * @throws IndexOutOfBoundsException si no hay tantos bytes sin excluir
+	 */
+	public byte getIncluded(int rank)
+	{
+		int w, n;
+		long libres;
+		
+		for (w = 0; w < excluded.length; w++)
+		{
+			libres = ~excluded[w];
+			n = Long.bitCount(libres);
+		
+			if (rank < n)
+			{
+				//Quitar los rank bits libres más bajos
+				for (; rank > 0; rank--)
+					libres &= libres - 1;
+		
+				return (byte) ((w << 6) + Long.numberOfTrailingZeros(libres));
+			}
+		
+			rank -= n;
+		}
+		
+		throw new IndexOutOfBoundsException();
 	}
 	
 	/** Función auxiliar para convertir un byte en un indice de array
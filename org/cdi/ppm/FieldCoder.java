@@ -0,0 +1,222 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Comprime y descomprime las columnas de un bloque separado por campos (ver <code>FieldFilter</code>),
+ * cada una con su propio codificador y su propio modelo, en paralelo si hay varios procesadores.
+ * 
+ * Cada columna es independiente: no comparten modelo ni contexto, así que da igual en qué hilo
+ * y en qué orden se hagan. Cada hilo usa sus coders de <code>CoderPool</code>, y reutiliza su
+ * modelo de una columna a la siguiente.
+ * 
+ * @author Javier y Maldo
+ */
+final class FieldCoder
+{
+	/** Los hilos que comprimen las columnas, o null si aún no hacen falta */
+	private static ExecutorService pool = null;
+	
+	/** No se instancia */
+	private FieldCoder()
+	{
+	}
+	
+	/** Comprime las columnas de un bloque
+	 * 
+	 * @param partes las columnas
+	 * @param order el orden del modelo
+	 * @param contexto las distancias del contexto disperso, o null
+	 * @param flags los flags del bloque (ver <code>PPMOutputStream.codificar</code>)
+	 * @param minCount la cuenta mínima de los nodos del modelo estático
+	 * @param stats donde sumar las métricas de todas las columnas
+	 * @return cada columna comprimida
+	 * @throws IOException si falla alguna compresión
+	 */
+	static byte[][] encode(byte[][] partes, int order, int[] contexto, int flags, int minCount,
+			Metrics.Local stats) throws IOException
+	{
+		Columna[] columnas = new Columna[partes.length];
+		int j;
+		
+		for (j = 0; j < partes.length; j++)
+			columnas[j] = new Compresion(partes[j], order, contexto, flags, minCount);
+		
+		return ejecutar(columnas, stats);
+	}
+	
+	/** Descomprime las columnas de un bloque
+	 * 
+	 * @param datos el array con las columnas comprimidas, seguidas
+	 * @param off el índice de la primera columna comprimida
+	 * @param comprimidas lo que ocupa comprimida cada columna
+	 * @param longitudes lo que ocupa cada columna sin comprimir
+	 * @param order el orden del modelo
+	 * @param contexto las distancias del contexto disperso, o null
+	 * @param flags los flags del bloque
+	 * @param stats donde sumar las métricas de todas las columnas
+	 * @return cada columna
+	 * @throws IOException si alguna columna no es válida
+	 */
+	static byte[][] decode(byte[] datos, int off, int[] comprimidas, int[] longitudes, int order,
+			int[] contexto, int flags, Metrics.Local stats) throws IOException
+	{
+		Columna[] columnas = new Columna[comprimidas.length];
+		int j;
+		
+		for (j = 0; j < columnas.length; j++)
+		{
+			columnas[j] = new Descompresion(datos, off, comprimidas[j], longitudes[j], order, contexto, flags);
+			off += comprimidas[j];
+		}
+		
+		return ejecutar(columnas, stats);
+	}
+	
+	/** Hace el trabajo de todas las columnas, en los hilos si hay más de un procesador
+	 * 
+	 * @param columnas el trabajo de cada columna
+	 * @param stats donde sumar las métricas de todas las columnas
+	 * @return el resultado de cada columna
+	 * @throws IOException si falla alguna columna
+	 */
+	private static byte[][] ejecutar(Columna[] columnas, Metrics.Local stats) throws IOException
+	{
+		byte[][] ret = new byte[columnas.length][];
+		ExecutorService hilos = pool();
+		int j;
+		
+		if (hilos == null)
+		{
+			for (j = 0; j < columnas.length; j++)
+				ret[j] = columnas[j].call();
+		}
+		else
+		{
+			try
+			{
+				List<Future<byte[]>> resultados = hilos.invokeAll(Arrays.asList(columnas));
+				for (j = 0; j < columnas.length; j++)
+					ret[j] = resultados.get(j).get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Compresión por campos interrumpida");
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				IOException ex = new IOException("Problema al comprimir una columna");
+				ex.initCause(e.getCause());
+				throw ex;
+			}
+		}
+		
+		for (j = 0; j < columnas.length; j++)
+			stats.addLast(columnas[j].stats);
+		
+		return ret;
+	}
+	
+	/** Devuelve los hilos para las columnas, creándolos la primera vez
+	 * 
+	 * @return los hilos, o null si hay un solo procesador
+	 */
+	private static synchronized ExecutorService pool()
+	{
+		int n = Runtime.getRuntime().availableProcessors();
+		
+		if (n == 1)
+			return null;
+		
+		if (pool == null)
+		{
+			pool = Executors.newFixedThreadPool(n, new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					//Que no impidan terminar al programa
+					Thread t = new Thread(r, "PPM-campos");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		
+		return pool;
+	}
+	
+	/** El trabajo de una columna, que deja en <code>stats</code> lo que ha contado su coder
+	 */
+	private abstract static class Columna implements Callable<byte[]>
+	{
+		final Metrics.Local stats = new Metrics.Local();
+		
+		public abstract byte[] call() throws IOException;
+	}
+	
+	/** Comprime una columna
+	 */
+	private static class Compresion extends Columna
+	{
+		private final byte[] parte;
+		private final int order, flags, minCount;
+		private final int[] contexto;
+		
+		Compresion(byte[] parte, int order, int[] contexto, int flags, int minCount)
+		{
+			this.parte = parte;
+			this.order = order;
+			this.contexto = contexto;
+			this.flags = flags;
+			this.minCount = minCount;
+		}
+		
+		public byte[] call() throws IOException
+		{
+			ByteArrayOutputStream salida = new ByteArrayOutputStream(parte.length / 2 + 16);
+			HuffmanEncoder enc = CoderPool.getEncoder(salida, order);
+			
+			enc.setSparseContext(contexto);
+			PPMOutputStream.codificar(enc, salida, parte, 0, parte.length, flags, minCount);
+			stats.addLast(enc.stats);
+			
+			return salida.toByteArray();
+		}
+	}
+	
+	/** Descomprime una columna
+	 */
+	private static class Descompresion extends Columna
+	{
+		private final byte[] datos;
+		private final int off, len, longitud, order, flags;
+		private final int[] contexto;
+		
+		Descompresion(byte[] datos, int off, int len, int longitud, int order, int[] contexto, int flags)
+		{
+			this.datos = datos;
+			this.off = off;
+			this.len = len;
+			this.longitud = longitud;
+			this.order = order;
+			this.contexto = contexto;
+			this.flags = flags;
+		}
+		
+		public byte[] call() throws IOException
+		{
+			ByteArrayInputStream entrada = new ByteArrayInputStream(datos, off, len);
+			HuffmanDecoder dec = CoderPool.getDecoder(entrada, order);
+			byte[] parte = new byte[longitud];
+			
+			dec.setSparseContext(contexto);
+			PPMInputStream.decodificar(dec, entrada, flags, parte, longitud);
+			dec.publishMetrics();
+			stats.addLast(dec.stats);
+			
+			return parte;
+		}
+	}
+}
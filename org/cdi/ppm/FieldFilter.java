@@ -0,0 +1,237 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.util.*;
+
+/** Transformación reversible para registros de texto separados por campos (CSV, líneas JSON, logs):
+ * reparte el bloque en columnas, una por campo, para comprimir cada una con su propio modelo
+ * (ver <code>FieldCoder</code>).
+ * 
+ * Cada byte va a la columna del campo en el que está, separador incluido: tras un separador
+ * se pasa a la columna siguiente, y tras un salto de línea se vuelve a la primera. La última
+ * columna se queda con el resto de la línea, tenga los separadores que tenga, así que los
+ * registros no tienen por qué tener todos los mismos campos. Para deshacerla basta con ir
+ * tomando bytes de cada columna siguiendo la misma regla.
+ * 
+ * Así, fechas, identificadores y texto libre no se mezclan en los mismos contextos, y cada
+ * modelo es pequeño. Las comillas no se interpretan: un separador dentro de un campo entre
+ * comillas también cambia de columna, lo que solo empeora algo la compresión.
+ * 
+ * El reparto elegido se representa con un código: el número de columnas por 256, más el separador.
+ * 
+ * @author Javier y Maldo
+ */
+public final class FieldFilter
+{
+	/** Los separadores que se prueban */
+	static final byte[] separadores = {'\t', ',', ';', '|', ' '};
+	/** El máximo de columnas */
+	public static final int maxFields = 32;
+	/** Cuántos bytes se comprimen de prueba */
+	static final int muestraPrueba = 64 * 1024;
+	/** Cuántas líneas tiene que haber en la muestra, como mínimo */
+	static final int minLineas = 32;
+	/** Orden con el que se comprime de prueba (basta para comparar) */
+	static final int ordenPrueba = 2;
+	/** Cuánto tiene que mejorar la compresión de prueba para separar los campos (0.01 = 1%) */
+	static final double minGanancia = 0.01;
+	
+	/** No se instancia */
+	private FieldFilter()
+	{
+	}
+	
+	/** Elige el reparto para un bloque: para cada separador, tantas columnas como separadores
+	 * tienen casi todas las líneas (el 90%) más una, y de ellos el que mejor comprime de prueba
+	 * una muestra del centro del bloque, si mejora lo bastante la compresión sin separar
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @return el código del reparto (ver <code>encode</code>), o 0 si no merece la pena
+	 * @throws IOException si falla alguna compresión de prueba
+	 */
+	public static int choose(byte[] b, int off, int len) throws IOException
+	{
+		int n = Math.min(len, muestraPrueba);
+		int ini = off + (len - n) / 2, fin = ini + n;
+		int i, s, k, codigo, lineas = 0, elegido = 0;
+		
+		//Muestra de líneas enteras
+		if (ini > off)
+		{
+			while (ini < fin && b[ini - 1] != '\n')
+				ini++;
+		}
+		while (fin > ini && b[fin - 1] != '\n')
+			fin--;
+		for (i = ini; i < fin; i++)
+		{
+			if (b[i] == '\n')
+				lineas++;
+		}
+		if (lineas < minLineas)
+			return 0;
+		
+		long sin = prueba(b, ini, fin - ini, 0);
+		long mejor = (long) (sin * (1 - minGanancia)), con;
+		
+		for (s = 0; s < separadores.length; s++)
+		{
+			k = columnas(b, ini, fin, separadores[s], lineas);
+			if (k < 2)
+				continue;
+			
+			codigo = (k << 8) | (separadores[s] & 0xFF);
+			con = prueba(b, ini, fin - ini, codigo);
+			if (con < mejor)
+			{
+				mejor = con;
+				elegido = codigo;
+			}
+		}
+		
+		return elegido;
+	}
+	
+	/** Reparte un bloque en columnas
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @param codigo el reparto: el número de columnas por 256, más el separador
+	 * @return las columnas, que entre todas tienen <code>len</code> bytes
+	 */
+	public static byte[][] encode(byte[] b, int off, int len, int codigo)
+	{
+		int k = codigo >>> 8;
+		byte separador = (byte) codigo;
+		byte[][] partes = new byte[k][];
+		int[] longitudes = new int[k];
+		int pasada, i, j;
+		
+		//Primera pasada: lo que ocupa cada columna; segunda: llenarlas
+		for (pasada = 0; pasada < 2; pasada++)
+		{
+			if (pasada == 1)
+			{
+				for (j = 0; j < k; j++)
+					partes[j] = new byte[longitudes[j]];
+				Arrays.fill(longitudes, 0);
+			}
+			
+			j = 0;
+			for (i = off; i < off + len; i++)
+			{
+				if (pasada == 1)
+					partes[j][longitudes[j]] = b[i];
+				longitudes[j]++;
+				
+				if (b[i] == '\n')
+					j = 0;
+				else if (b[i] == separador && j < k - 1)
+					j++;
+			}
+		}
+		
+		return partes;
+	}
+	
+	/** Junta las columnas de un bloque
+	 * 
+	 * @param partes las columnas
+	 * @param codigo el reparto con el que se separaron
+	 * @param b donde dejar el bloque
+	 * @param len la longitud del bloque, que tiene que ser la suma de las de las columnas
+	 * @throws IOException si las columnas no corresponden a un bloque de esa longitud
+	 */
+	public static void decode(byte[][] partes, int codigo, byte[] b, int len) throws IOException
+	{
+		int k = partes.length;
+		byte separador = (byte) codigo;
+		int[] pos = new int[k];
+		int i, j = 0;
+		
+		for (i = 0; i < len; i++)
+		{
+			if (pos[j] == partes[j].length)
+				throw new IOException("Bloque inválido");
+			b[i] = partes[j][pos[j]++];
+			
+			if (b[i] == '\n')
+				j = 0;
+			else if (b[i] == separador && j < k - 1)
+				j++;
+		}
+		
+		for (j = 0; j < k; j++)
+		{
+			if (pos[j] != partes[j].length)
+				throw new IOException("Bloque inválido");
+		}
+	}
+	
+	/** Comprueba un código de reparto leído de un archivo
+	 * 
+	 * @param codigo el código
+	 * @return true si es válido
+	 */
+	static boolean valido(int codigo)
+	{
+		int k = codigo >>> 8;
+		
+		return k >= 2 && k <= maxFields && (byte) codigo != '\n';
+	}
+	
+	/** Calcula cuántas columnas usar con un separador: las que tiene casi cualquier línea
+	 * 
+	 * @param b el array
+	 * @param ini el índice del primer byte de la primera línea
+	 * @param fin el índice tras el final de la última línea
+	 * @param separador el separador
+	 * @param lineas cuántas líneas hay
+	 * @return el número de columnas, como mucho <code>maxFields</code>
+	 */
+	private static int columnas(byte[] b, int ini, int fin, byte separador, int lineas)
+	{
+		int[] cuentas = new int[lineas];
+		int i, l = 0;
+		
+		for (i = ini; i < fin; i++)
+		{
+			if (b[i] == separador)
+				cuentas[l]++;
+			else if (b[i] == '\n')
+				l++;
+		}
+		
+		//Los separadores que tienen el 90% de las líneas
+		Arrays.sort(cuentas);
+		return Math.min(cuentas[lineas / 10] + 1, maxFields);
+	}
+	
+	/** Comprime de prueba un trozo, con cada columna por separado
+	 * 
+	 * @param b el array
+	 * @param off el índice del primer byte
+	 * @param len cuántos bytes
+	 * @param codigo el reparto, o 0 para no separar
+	 * @return el tamaño comprimido
+	 * @throws IOException si falla la compresión
+	 */
+	private static long prueba(byte[] b, int off, int len, int codigo) throws IOException
+	{
+		byte[][] partes = (codigo == 0) ? new byte[][] {Arrays.copyOfRange(b, off, off + len)} : encode(b, off, len, codigo);
+		long total = 0;
+		int j;
+		
+		for (j = 0; j < partes.length; j++)
+		{
+			HuffmanEncoder enc = CoderPool.getEncoder(new ByteArrayOutputStream(partes[j].length), ordenPrueba);
+			enc.write(partes[j], 0, partes[j].length);
+			enc.finish();
+			total += (enc.compressedBits() + 7) / 8;
+		}
+		
+		return total;
+	}
+}
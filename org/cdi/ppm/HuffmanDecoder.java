@@ -13,6 +13,12 @@ public class HuffmanDecoder extends Decoder
 	/** La fuente de entrada de bits
 	 */
 	protected BitInputStream inb;
+	/** Bits leídos desde el último reset
+	 */
+	protected long bits = 0;
+	/** El árbol de Huffman, que se reconstruye para cada símbolo
+	 */
+	protected final HuffmanTree arbol = new HuffmanTree();
 	
 	/** Crea un nuevo decodificador
 	 * 
@@ -25,6 +31,26 @@ public class HuffmanDecoder extends Decoder
 		inb = new BitInputStream(in);
 	}
 	
+	/** Prepara el decodificador para descomprimir datos nuevos desde otra entrada
+	 * 
+	 * @param in de donde leer los nuevos datos codificados
+	 */
+	public void reset(InputStream in)
+	{
+		super.reset(in);
+		inb = new BitInputStream(in);
+		bits = 0;
+	}
+	
+	/** Devuelve cuántos bits se han leído desde el último reset
+	 * 
+	 * @return el número de bits
+	 */
+	protected long compressedBits()
+	{
+		return bits;
+	}
+	
 	/** Decodifica un carácter, dada una lista con los carácteres posibles
 	 * 
 	 * @param l la lista con carácteres posibles
@@ -33,98 +59,59 @@ public class HuffmanDecoder extends Decoder
 	 */
 	public ModelNode decodeChar(List<ModelNode> l) throws IOException
 	{
-		PriorityQueue<HuffmanNode> q = new PriorityQueue<HuffmanNode>();
-		
-		encapsular(l, q);
-		
-		while (q.size() > 1)
-		{
-			q.add( new HuffmanNode(q.poll(), q.poll()) );
-		}
-
-		HuffmanNode arbol = q.poll();
-		HuffmanNode decodificado = descender(arbol);
-		
-		assert decodificado.node != null;
-		
-		return decodificado.node; 
+		arbol.construir(l);
+		return arbol.nodos[descender(arbol.raiz)];
 	}
 	
-	/** Ordena los elementos de una lista en una cola de prioridad
+	/** Decodifica un símbolo de orden -1, leyendo el código binario truncado
+	 * escrito por <code>HuffmanEncoder.encodeLiteral</code>
 	 * 
-	 * @param l lista de <code>ModelNode</code>
-	 * @param c cola donde se añaden los <code>HuffmanNode</code>
+	 * @param total el número de símbolos posibles
+	 * @return la posición del símbolo decodificado
+	 * @throws IOException si hay algun error de e/s
 	 */
-	protected void encapsular(List<ModelNode> l, PriorityQueue<HuffmanNode> c)
+	protected int decodeLiteral(int total) throws IOException
 	{
-		ListIterator<ModelNode> iterator;
-		ModelNode node;
-		HuffmanNode node2;
+		int bits = 31 - Integer.numberOfLeadingZeros(total);
+		int cortos = (2 << bits) - total;
+		int rank = (int) inb.readUBits(bits);
+		this.bits += bits;
 
-		//Poner los nodos iniciales
-		for (iterator = l.listIterator() ; iterator.hasNext(); )
-		{
-			node = iterator.next();
-			node2 = new HuffmanNode(node);
-			c.add( node2 );
-		}
+		if (rank < cortos)
+			return rank;
+		
+		rank = (rank << 1) | (inb.readBit() ? 1 : 0);
+		this.bits++;
+		return rank - cortos;
 	}
 	
-	/** Desciende por el árbol de Huffman segun los bits de la entrada
+	/** Desciende por el árbol de Huffman segun los bits de la entrada, hasta una hoja
 	 * 
 	 * @param padre el nodo desde el que comenzar a descender
-	 * @throws IOException si hay algun problema de e/s
+	 * @return la hoja a la que se llega
+	 * @throws IOException si hay algun problema de e/s, o la entrada se acaba antes de llegar a una hoja
 	 */
-	protected HuffmanNode descender(HuffmanNode padre) throws IOException
+	protected int descender(int padre) throws IOException
 	{
 		boolean bit;
 		
-		inb.mark(1); //Solo "probar" el estado del bit, sin leer.
-		
-		try
-		{
-			bit = inb.readBit();
-		}
-		catch (EOFException e)
+		while (!arbol.esHoja(padre))
 		{
-			//Fin del archivo!
-			if (padre.node == null)
+			try
 			{
-				throw new IOException("Final del archivo inesperado");
+				bit = inb.readBit();
 			}
-			return padre;
-		}
-		
-		if (bit)
-		{
-			if (padre.der == null)
+			catch (EOFException e)
 			{
-				//Hemos acabado este carácter
-				inb.reset();
-				if (padre.node == null)
-				{
-					throw new IOException("Final del archivo inesperado");
-				}
-				return padre;
-			}
-			//debug.print("-");
-			return descender(padre.der);
-		}
-		else
-		{
-			if (padre.izq == null)
-			{
-				//Hemos acabado este carácter
-				inb.reset();
-				if (padre.node == null)
-				{
-					throw new IOException("Final del archivo inesperado");
-				}
-				return padre;
+				throw new IOException("Final del archivo inesperado");
 			}
+			
 			//debug.print("-");
-			return descender(padre.izq);
+			bits++;
+			padre = bit ? arbol.der[padre] : arbol.izq[padre];
 		}
+		
+		return padre;
 	}
 	
     /**
@@ -13,6 +13,15 @@ public class HuffmanEncoder extends Encoder
 	/** Salida de bits
 	 */
 	protected BitOutputStream outb;
+	/** Bits escritos desde el último reset
+	 */
+	protected long bits = 0;
+	/** El árbol de Huffman, que se reconstruye para cada símbolo
+	 */
+	protected final HuffmanTree arbol = new HuffmanTree();
+	/** Los bits del código que se está escribiendo, de la hoja a la raíz
+	 */
+	protected boolean[] camino = new boolean[Excluder.byteRange + 2];
 	
 	/** Crea un nuevo codificador
 	 * 
@@ -34,76 +43,87 @@ public class HuffmanEncoder extends Encoder
 	 */
 	protected void encodeChar(List<ModelNode> l, ModelNode encode) throws IOException
 	{
-		HuffmanNode acodificar;
-		PriorityQueue<HuffmanNode> q = new PriorityQueue<HuffmanNode>();
-
-		acodificar = encapsular(l, q, encode);
-
-		while (q.size() > 1)
-		{
-			q.add( new HuffmanNode(q.poll(), q.poll()) );
-		}
-
-		ascender(acodificar);
-
+		arbol.construir(l);
+		ascender(arbol.hojaDe(encode));
 	}
 	
-	/** Ordena los elementos de una lista en una cola de prioridad
+	/** Codifica un símbolo de orden -1, donde todos los símbolos posibles son equiprobables.
+	 * Usa un código binario truncado, que es el código de Huffman de una
+	 * distribución uniforme, sin necesidad de construir el árbol
 	 * 
-	 * @param l lista de <code>ModelNode</code>
-	 * @param c cola donde se añaden los <code>HuffmanNode</code>
-	 * @param encode el nodo del model que representa el carácter a codificar
-	 * @return el nodo de Huffman que representa el caracter a codificar
+	 * @param rank la posición del símbolo a codificar
+	 * @param total el número de símbolos posibles
+	 * @throws IOException si hay un error de salida al escribir
 	 */
-	protected HuffmanNode encapsular(List<ModelNode> l, PriorityQueue<HuffmanNode> c, ModelNode encode)
+	protected void encodeLiteral(int rank, int total) throws IOException
 	{
-		ListIterator<ModelNode> iterator;
-		ModelNode node;
-		HuffmanNode node2, acodificar = null;
-
-		//Poner los nodos iniciales
-		for (iterator = l.listIterator() ; iterator.hasNext(); )
+		int bits = 31 - Integer.numberOfLeadingZeros(total);
+		int cortos = (2 << bits) - total;
+		
+		if (rank < cortos)
 		{
-			node = iterator.next();
-			node2 = new HuffmanNode(node);
-			c.add( node2 );
-			
-			//Devolver el nodo que hay que acodificar, si lo hay
-			if (node == encode)
-				acodificar = node2;
+			outb.writeBits(rank, bits);
+			this.bits += bits;
+		}
+		else
+		{
+			outb.writeBits(rank + cortos, bits + 1);
+			this.bits += bits + 1;
 		}
-
-		return acodificar;
 	}
-
-	/** Asciende por el árbol de Huffman, y escribe los bits que 
-	 * tocan
+	
+	/** Asciende por el árbol de Huffman desde una hoja hasta la raíz, y escribe
+	 * los bits que tocan (al revés, empezando por la raíz)
 	 * 
-	 * @param node el nodo desde el que comenzar la ascensión
+	 * @param node la hoja desde la que comenzar la ascensión
 	 * @throws IOException si hay algun problema de e/s
 	 */
-	protected void ascender(HuffmanNode node) throws IOException
+	protected void ascender(int node) throws IOException
 	{
-		if (node.parent == null)
-			return;
-		else
-		{
-			ascender(node.parent);
-			if (node.parent.izq == node) outb.writeBit(false);
-			if (node.parent.der == node) outb.writeBit(true);
-		}
-
+		int n = 0;
+		
+		//Como mucho hay tantos niveles como hojas
+		if (camino.length < arbol.hojas)
+			camino = new boolean[arbol.nodos.length];
+		
+		for (; arbol.padre[node] >= 0; node = arbol.padre[node])
+			camino[n++] = (arbol.der[arbol.padre[node]] == node);
+		
+		bits += n;
+		while (n > 0)
+			outb.writeBit(camino[--n]);
 	}
 
+	/** Prepara el codificador para comprimir datos nuevos hacia otra salida
+	 * 
+	 * @param out donde guardar los nuevos datos codificados
+	 */
+	public void reset(OutputStream out)
+	{
+		super.reset(out);
+		outb = new BitOutputStream(out);
+		bits = 0;
+	}
+	
+	/** Devuelve cuántos bits se han escrito desde el último reset
+	 * 
+	 * @return el número de bits
+	 */
+	protected long compressedBits()
+	{
+		return bits;
+	}
+	
     /**
-     * Cierra el codificador, enviando los últimos bits.
+     * Termina la codificación, enviando el EOF y los últimos bits
+     * (completando el último byte), sin cerrar la salida.
 	 *
      * @exception IOException if an  I/O error occurs.
      */
-    public void close() throws IOException
+    public void finish() throws IOException
     {
-		super.close();
-    	outb.close();
-    	out.close();
+		if (finished) return;
+		super.finish();
+    	outb.padAndFlush();
     }
 }
@@ -0,0 +1,138 @@
+package org.cdi.ppm;
+import java.util.*;
+
+/** Árbol de Huffman para una lista de nodos del modelo, guardado en arrays
+ * (cuentas, padres e hijos por índice) en lugar de en objetos, para poder
+ * reconstruirlo para cada símbolo sin reservar memoria.
+ * 
+ * Las hojas son los índices 0 .. <code>hojas - 1</code>, ordenadas de menor a mayor cuenta
+ * (con orden estable para cuentas iguales), y los nodos internos van detrás, en el orden
+ * en que se crean. El árbol es siempre el mismo para la misma lista, así que el codificador
+ * y el decodificador obtienen los mismos códigos.
+ * 
+ * @author Javier y Maldo
+ */
+class HuffmanTree
+{
+	/** El nodo del modelo de cada hoja */
+	ModelNode[] nodos;
+	/** La cuenta de cada nodo (la de su nodo del modelo en las hojas, la suma de sus hijos en los internos) */
+	int[] cuenta;
+	/** El padre de cada nodo (-1 en la raíz) */
+	int[] padre;
+	/** Los hijos izquierdo (bit 0) y derecho (bit 1) de cada nodo interno */
+	int[] izq, der;
+	/** Para ordenar las hojas: la cuenta de cada una y su posición en la lista al revés */
+	private long[] claves;
+	
+	/** Cuántas hojas tiene el árbol actual */
+	int hojas = 0;
+	/** La raíz del árbol actual */
+	int raiz = -1;
+	
+	/** Crea un árbol vacío, con sitio para listas de todos los bytes más el escape
+	 */
+	HuffmanTree()
+	{
+		reservar(Excluder.byteRange + 2);
+	}
+	
+	/** Construye el árbol para una lista de nodos del modelo.
+	 * Las hojas se ordenan por cuenta y, para cuentas iguales, por su posición en la lista
+	 * al revés (que es lo que daría una ordenación estable de la lista recorrida al revés):
+	 * juntando las dos cosas en un long, basta con ordenar los longs.
+	 * Luego se unen los dos de menor cuenta usando dos colas (hojas y nodos internos),
+	 * en lugar de una cola de prioridad; las hojas ganan los empates.
+	 * 
+	 * @param l la lista de nodos, que no puede estar vacía
+	 */
+	void construir(List<ModelNode> l)
+	{
+		int n = l.size();
+		int i, h, k, a, b;
+		
+		if (n > nodos.length)
+			reservar(n);
+		
+		for (i = 0; i < n; i++)
+			claves[i] = ((long) l.get(n - 1 - i).count << 32) | i;
+		Arrays.sort(claves, 0, n);
+		
+		for (i = 0; i < n; i++)
+		{
+			cuenta[i] = (int) (claves[i] >>> 32);
+			nodos[i] = l.get(n - 1 - (int) claves[i]);
+		}
+		
+		hojas = n;
+		padre[n - 1] = -1;
+		
+		//h: siguiente hoja, k: siguiente nodo interno por unir, i: siguiente nodo interno por crear
+		h = 0;
+		k = n;
+		for (i = n; i < 2 * n - 1; i++)
+		{
+			if (k == i || (h < n && cuenta[h] <= cuenta[k]))
+				a = h++;
+			else
+				a = k++;
+			
+			if (k == i || (h < n && cuenta[h] <= cuenta[k]))
+				b = h++;
+			else
+				b = k++;
+			
+			izq[i] = a;
+			der[i] = b;
+			cuenta[i] = cuenta[a] + cuenta[b];
+			padre[a] = i;
+			padre[b] = i;
+			padre[i] = -1;
+		}
+		
+		raiz = 2 * n - 2;
+	}
+	
+	/** Busca la hoja de un nodo del modelo
+	 * 
+	 * @param node el nodo
+	 * @return el índice de su hoja, o -1 si no está
+	 */
+	int hojaDe(ModelNode node)
+	{
+		int i;
+		
+		//Empezar por el final, donde están los más probables
+		for (i = hojas - 1; i >= 0; i--)
+		{
+			if (nodos[i] == node)
+				return i;
+		}
+		
+		return -1;
+	}
+	
+	/** Indica si un nodo del árbol es una hoja
+	 * 
+	 * @param i el índice del nodo
+	 * @return true si es una hoja
+	 */
+	boolean esHoja(int i)
+	{
+		return i < hojas;
+	}
+	
+	/** Agranda los arrays para que quepan listas de <code>n</code> nodos
+	 * 
+	 * @param n el número de nodos de la lista
+	 */
+	private void reservar(int n)
+	{
+		nodos = new ModelNode[n];
+		claves = new long[n];
+		cuenta = new int[2 * n];
+		padre = new int[2 * n];
+		izq = new int[2 * n];
+		der = new int[2 * n];
+	}
+}
@@ -0,0 +1,223 @@
+package org.cdi.ppm;
+import java.util.*;
+
+/** Modelo de coincidencias largas (LZP), para avanzar rápido por las repeticiones largas.
+ * 
+ * Guarda los últimos carácteres codificados y, para cada posición, busca con un hash de los
+ * <code>minContext</code> carácteres anteriores la última vez que aparecieron. Si de verdad
+ * coinciden, predice que sigue lo mismo que la otra vez: el codificador puede entonces, en lugar
+ * de un carácter, codificar un símbolo especial (<code>node</code>) seguido de cuántos carácteres
+ * siguen coincidiendo, que se copian sin pasar por el modelo PPM.
+ * 
+ * El codificador y el decodificador tienen que ver los mismos carácteres en el mismo orden
+ * (con <code>append</code>) para tener las mismas predicciones.
+ * 
+ * @author Javier y Maldo
+ */
+public class MatchModel
+{
+	/** Cuántos carácteres anteriores tienen que coincidir para hacer una predicción */
+	static final int minContext = 6;
+	/** La coincidencia más corta que se codifica; las más cortas se codifican carácter a carácter */
+	static final int minLength = 6;
+	/** Cuántos bits puede ocupar la longitud de una coincidencia (menos <code>minLength</code>) */
+	static final int lengthBits = 16;
+	/** La coincidencia más larga que se codifica de una vez */
+	static final int maxLength = minLength + (1 << lengthBits) - 2;
+	
+	/** Tamaño por defecto del historial (se recuerdan los últimos 4 MB) */
+	public static final int defaultHistorySize = 4 * 1024 * 1024;
+	/** Bits del hash de los contextos (el número de entradas de la tabla) */
+	protected static final int hashBits = 16;
+	
+	/** El símbolo que indica que sigue una coincidencia. Su cuenta se calcula en cada lista
+	 * (ver <code>ofrecer</code>), así que solo se compara por identidad */
+	protected final ModelNode node = new ModelNode((byte) 0);
+	
+	/** Los últimos carácteres vistos, como buffer circular */
+	protected final byte[] historia;
+	/** Máscara para convertir una posición en un índice del historial */
+	protected final int mascara;
+	/** Para cada hash de contexto, la posición que le siguió la última vez (0 si ninguna) */
+	protected final int[] tabla = new int[1 << hashBits];
+	
+	/** Cuántos carácteres se han visto desde el último reset */
+	protected int pos = 0;
+	/** La posición predicha para el carácter actual, o -1 si no hay predicción */
+	protected int candidato = -1;
+	/** La siguiente posición a copiar de la coincidencia en curso */
+	protected int copia = 0;
+	
+	/** Cuántas veces se ha ofrecido una coincidencia, y cuántas se ha usado
+	 * (para calcular la cuenta de <code>node</code>) */
+	protected int ofertas = 0, usos = 0;
+	
+	/** Crea un modelo de coincidencias con el historial por defecto
+	 */
+	public MatchModel()
+	{
+		this(defaultHistorySize);
+	}
+	
+	/** Crea un modelo de coincidencias
+	 * 
+	 * @param historySize cuántos carácteres se recuerdan (potencia de 2)
+	 */
+	public MatchModel(int historySize)
+	{
+		if (historySize <= minContext || (historySize & (historySize - 1)) != 0)
+			throw new IllegalArgumentException("Tamaño de historial inválido: " + historySize);
+		
+		historia = new byte[historySize];
+		mascara = historySize - 1;
+	}
+	
+	/** Olvida todo lo visto, reutilizando la memoria
+	 */
+	public void reset()
+	{
+		Arrays.fill(tabla, 0);
+		pos = 0;
+		candidato = -1;
+		copia = 0;
+		ofertas = 0;
+		usos = 0;
+	}
+	
+	/** Añade un carácter al historial y busca la predicción para el siguiente
+	 * 
+	 * @param car el carácter
+	 */
+	public void append(byte car)
+	{
+		historia[pos & mascara] = car;
+		pos++;
+		candidato = -1;
+		
+		if (pos < minContext)
+			return;
+		
+		int h = hash();
+		int anterior = tabla[h];
+		tabla[h] = pos;
+		
+		if (anterior > 0 && pos - anterior <= historia.length - minContext && coinciden(anterior))
+			candidato = anterior;
+	}
+	
+	/** Indica si hay una predicción para el carácter actual
+	 * 
+	 * @return true si la hay
+	 */
+	public boolean predice()
+	{
+		return candidato >= 0;
+	}
+	
+	/** Cuenta cuántos carácteres de <code>b</code>, desde <code>off</code>, coinciden con la predicción.
+	 * Solo la usa el codificador, que sabe lo que viene.
+	 * 
+	 * @param b el array con los carácteres que vienen
+	 * @param off el índice del carácter actual
+	 * @param max el índice tras el último carácter que se puede mirar
+	 * @return la longitud de la coincidencia, como mucho <code>maxLength</code>
+	 */
+	public int longitud(byte[] b, int off, int max)
+	{
+		int distancia = pos - candidato;
+		int limite = Math.min(max - off, maxLength);
+		int k;
+		
+		//A partir de la distancia, la predicción son los propios carácteres que vienen
+		for (k = 0; k < limite; k++)
+		{
+			byte predicho = (k < distancia) ? historia[(candidato + k) & mascara] : b[off + k - distancia];
+			if (b[off + k] != predicho)
+				break;
+		}
+		
+		return k;
+	}
+	
+	/** Devuelve una copia de la lista con <code>node</code> al final, con una cuenta
+	 * proporcional a lo que se han usado hasta ahora las coincidencias ofrecidas
+	 * 
+	 * @param l la lista de nodos del contexto
+	 * @return la lista con la que codificar
+	 */
+	public List<ModelNode> ofrecer(List<ModelNode> l)
+	{
+		List<ModelNode> ret = new ArrayList<ModelNode>(l.size() + 1);
+		long total = 0;
+		
+		for (ModelNode n : l)
+		{
+			total += n.count;
+			ret.add(n);
+		}
+		
+		//Que la probabilidad de node sea más o menos usos / ofertas
+		node.count = (int) Math.max(1, Math.min(total * (usos + 1) / (ofertas - usos + 1), Integer.MAX_VALUE / 4));
+		ret.add(node);
+		
+		ofertas++;
+		if (ofertas > 1024)
+		{
+			//Adaptarse a los cambios
+			ofertas >>= 1;
+			usos >>= 1;
+		}
+		
+		return ret;
+	}
+	
+	/** Empieza a copiar la coincidencia predicha para el carácter actual
+	 */
+	public void usar()
+	{
+		usos++;
+		copia = candidato;
+	}
+	
+	/** Devuelve el siguiente carácter de la coincidencia en curso (sin añadirlo al historial)
+	 * 
+	 * @return el carácter
+	 */
+	public byte copiar()
+	{
+		return historia[copia++ & mascara];
+	}
+	
+	/** Calcula el hash de los <code>minContext</code> últimos carácteres
+	 * 
+	 * @return el índice en la tabla
+	 */
+	private int hash()
+	{
+		int h = 0;
+		int i;
+		
+		for (i = 1; i <= minContext; i++)
+			h = (h * 0x2F0B4A13) + historia[(pos - i) & mascara];
+		
+		return (h * 0x9E3779B1) >>> (32 - hashBits);
+	}
+	
+	/** Comprueba si los carácteres anteriores a una posición coinciden con los últimos
+	 * 
+	 * @param anterior la posición
+	 * @return true si coinciden los <code>minContext</code> anteriores
+	 */
+	private boolean coinciden(int anterior)
+	{
+		int i;
+		
+		for (i = 1; i <= minContext; i++)
+		{
+			if (historia[(anterior - i) & mascara] != historia[(pos - i) & mascara])
+				return false;
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,329 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/** Métricas de todos los compresores y descompresores del proceso.
+ * 
+ * Para no frenar el bucle de cada carácter, cada codificador cuenta en sus propios
+ * campos (un <code>Metrics.Local</code>, sin sincronizar ni reservar memoria) y solo
+ * los suma a estos contadores atómicos al terminar cada flujo o bloque.
+ * El tiempo total se mide en cada llamada, pero su reparto entre el modelo y la
+ * codificación solo en uno de cada <code>sampleMask + 1</code> carácteres, porque
+ * medirlo siempre costaría casi tanto como comprimir.
+ * 
+ * Se pueden consultar por JMX (<code>register()</code>) o con una línea de resumen
+ * periódica (<code>startReporter</code>).
+ * 
+ * @author Javier y Maldo
+ */
+public class Metrics implements MetricsMXBean
+{
+	/** Las métricas del proceso */
+	public static final Metrics global = new Metrics();
+	
+	/** El nombre con el que se registran en JMX */
+	public static final String objectName = "org.cdi.ppm:type=Metrics";
+	
+	/** Se mide el tiempo de los carácteres cuya cuenta tiene estos bits a cero (1 de cada 256) */
+	static final int sampleMask = 255;
+	/** Órdenes distintos para los que se cuentan escapes (el último acumula los mayores) */
+	static final int maxOrders = 16;
+	/** Estimación de los bytes que ocupa cada nodo del modelo (objeto más su hueco en la arena) */
+	static final int nodeBytes = 48;
+	
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong symbols = new AtomicLong();
+	private final AtomicLongArray escapes = new AtomicLongArray(maxOrders);
+	private final AtomicLong literals = new AtomicLong();
+	private final AtomicLong searches = new AtomicLong();
+	private final AtomicLong scanSteps = new AtomicLong();
+	private final AtomicLong nodes = new AtomicLong();
+	private final AtomicLong peakNodes = new AtomicLong();
+	private final AtomicLong modelNanos = new AtomicLong();
+	private final AtomicLong codingNanos = new AtomicLong();
+	
+	/** El hilo que escribe el resumen periódico, si lo hay */
+	private static Timer reporter = null;
+	
+	/** Registra las métricas globales en el servidor de MBeans de la plataforma
+	 * (si ya estaban registradas no hace nada)
+	 */
+	public static synchronized void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(objectName);
+			if (!server.isRegistered(name))
+				server.registerMBean(global, name);
+		}
+		catch (JMException e)
+		{
+			throw new IllegalStateException("No se pueden registrar las métricas", e);
+		}
+	}
+	
+	/** Empieza a escribir periódicamente una línea con el resumen de las métricas globales
+	 * 
+	 * @param periodo cada cuántos milisegundos
+	 * @param out dónde escribirla
+	 */
+	public static synchronized void startReporter(long periodo, final PrintStream out)
+	{
+		stopReporter();
+		
+		reporter = new Timer("PPM-metricas", true);
+		reporter.schedule(new TimerTask() {
+			public void run()
+			{
+				out.println(global.getSummary());
+			}
+		}, periodo, periodo);
+	}
+	
+	/** Deja de escribir el resumen periódico
+	 */
+	public static synchronized void stopReporter()
+	{
+		if (reporter != null)
+		{
+			reporter.cancel();
+			reporter = null;
+		}
+	}
+	
+	/** Suma los bytes que han entrado y salido de un codificador
+	 * 
+	 * @param in bytes de entrada
+	 * @param out bytes de salida
+	 */
+	void addBytes(long in, long out)
+	{
+		bytesIn.addAndGet(in);
+		bytesOut.addAndGet(out);
+	}
+	
+	/** Suma las cuentas de un codificador y de su modelo, y las pone a cero
+	 * 
+	 * @param l las cuentas del codificador
+	 * @param m su modelo
+	 */
+	void add(Local l, Model m)
+	{
+		int i;
+		
+		symbols.addAndGet(l.symbols);
+		l.lastEscapes = 0;
+		for (i = 0; i < maxOrders; i++)
+		{
+			if (l.escapes[i] != 0)
+				escapes.addAndGet(i, l.escapes[i]);
+			l.lastEscapes += l.escapes[i];
+		}
+		literals.addAndGet(l.literals);
+		l.lastLiterals = l.literals;
+		
+		//Repartir el tiempo total según las muestras
+		if (l.modelNanos + l.codingNanos > 0)
+			l.lastCodingNanos = (long) ((double) l.nanos * l.codingNanos / (l.modelNanos + l.codingNanos));
+		else
+			l.lastCodingNanos = 0;
+		l.lastModelNanos = l.nanos - l.lastCodingNanos;
+		modelNanos.addAndGet(l.lastModelNanos);
+		codingNanos.addAndGet(l.lastCodingNanos);
+		
+		searches.addAndGet(m.busquedas);
+		scanSteps.addAndGet(m.pasos);
+		m.busquedas = 0;
+		m.pasos = 0;
+		
+		int n = m.getNodeCount();
+		l.lastNodes = n - l.nodes;
+		nodes.addAndGet(l.lastNodes);
+		l.nodes = n;
+		
+		long peak;
+		do
+		{
+			peak = peakNodes.get();
+		} while (n > peak && !peakNodes.compareAndSet(peak, n));
+		
+		l.symbols = 0;
+		Arrays.fill(l.escapes, 0);
+		l.literals = 0;
+		l.nanos = 0;
+		l.modelNanos = 0;
+		l.codingNanos = 0;
+	}
+	
+	public long getBytesIn()
+	{
+		return bytesIn.get();
+	}
+	
+	public long getBytesOut()
+	{
+		return bytesOut.get();
+	}
+	
+	public long getSymbols()
+	{
+		return symbols.get();
+	}
+	
+	public long[] getEscapes()
+	{
+		long[] ret = new long[maxOrders];
+		for (int i = 0; i < maxOrders; i++)
+			ret[i] = escapes.get(i);
+		return ret;
+	}
+	
+	public long getLiterals()
+	{
+		return literals.get();
+	}
+	
+	public double getAverageScanLength()
+	{
+		long n = searches.get();
+		return (n == 0) ? 0 : (double) scanSteps.get() / n;
+	}
+	
+	public long getNodesAllocated()
+	{
+		return nodes.get();
+	}
+	
+	public long getPeakNodes()
+	{
+		return peakNodes.get();
+	}
+	
+	public long getPeakNodeMemory()
+	{
+		return peakNodes.get() * nodeBytes;
+	}
+	
+	public long getModelTime()
+	{
+		return modelNanos.get() / 1000000;
+	}
+	
+	public long getCodingTime()
+	{
+		return codingNanos.get() / 1000000;
+	}
+	
+	public String getSummary()
+	{
+		StringBuilder s = new StringBuilder();
+		long[] esc = getEscapes();
+		long total = getModelTime() + getCodingTime();
+		int i, ultimo = 0;
+		
+		s.append("entrada ").append(getBytesIn()).append(" B, salida ").append(getBytesOut()).append(" B");
+		s.append(", ").append(getSymbols()).append(" car.");
+		
+		for (i = 0; i < maxOrders; i++)
+			if (esc[i] != 0) ultimo = i;
+		s.append(", escapes [");
+		for (i = 0; i <= ultimo; i++)
+			s.append(i == 0 ? "" : " ").append(esc[i]);
+		s.append("], literales ").append(getLiterals());
+		
+		s.append(String.format(", búsqueda media %.2f nodos", getAverageScanLength()));
+		s.append(", nodos máx. ").append(getPeakNodes());
+		s.append(" (~").append(getPeakNodeMemory() / (1024 * 1024)).append(" MB)");
+		
+		if (total > 0)
+			s.append(String.format(", modelo %d%% / codificación %d%%",
+					getModelTime() * 100 / total, getCodingTime() * 100 / total));
+		
+		return s.toString();
+	}
+	
+	public void reset()
+	{
+		bytesIn.set(0);
+		bytesOut.set(0);
+		symbols.set(0);
+		for (int i = 0; i < maxOrders; i++)
+			escapes.set(i, 0);
+		literals.set(0);
+		searches.set(0);
+		scanSteps.set(0);
+		nodes.set(0);
+		peakNodes.set(0);
+		modelNanos.set(0);
+		codingNanos.set(0);
+	}
+	
+	/** Las cuentas de un solo codificador o decodificador, que solo usa su hilo
+	 */
+	static final class Local
+	{
+		/** Carácteres procesados */
+		long symbols;
+		/** Escapes por orden */
+		final long[] escapes = new long[maxOrders];
+		/** Literales de orden -1 */
+		long literals;
+		/** Tiempo total dentro del codificador */
+		long nanos;
+		/** Tiempo medido en el modelo y codificando, solo en las muestras */
+		long modelNanos, codingNanos;
+		/** Nodos del modelo ya sumados a las métricas globales */
+		int nodes;
+		
+		/** Lo sumado a las métricas globales la última vez, para los eventos de cada bloque */
+		long lastEscapes, lastLiterals, lastNodes, lastModelNanos, lastCodingNanos;
+		
+		/** Cuenta un escape
+		 * 
+		 * @param order el orden del contexto desde el que se escapa
+		 */
+		void escape(int order)
+		{
+			escapes[Math.min(order, maxOrders - 1)]++;
+		}
+		
+		/** Cuenta un carácter y dice si hay que medir su tiempo
+		 * 
+		 * @return true si este carácter es una muestra
+		 */
+		boolean sample()
+		{
+			return (symbols++ & sampleMask) == 0;
+		}
+		
+		/** Suma el tiempo de una muestra
+		 * 
+		 * @param total el tiempo de todo el carácter
+		 * @param coding la parte codificando
+		 */
+		void time(long total, long coding)
+		{
+			codingNanos += coding;
+			modelNanos += total - coding;
+		}
+		
+		/** Suma lo que otras cuentas sumaron a las métricas globales la última vez
+		 * (para el evento de un bloque que se ha hecho con varios coders)
+		 * 
+		 * @param l las otras cuentas
+		 */
+		void addLast(Local l)
+		{
+			lastEscapes += l.lastEscapes;
+			lastLiterals += l.lastLiterals;
+			lastNodes += l.lastNodes;
+			lastModelNanos += l.lastModelNanos;
+			lastCodingNanos += l.lastCodingNanos;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package org.cdi.ppm;
+
+/** Las métricas de los compresores y descompresores, tal como se ven por JMX
+ * (ver <code>Metrics</code>)
+ * 
+ * @author Javier y Maldo
+ */
+public interface MetricsMXBean
+{
+	/** @return bytes que han entrado en los codificadores (originales al comprimir, comprimidos al descomprimir) */
+	long getBytesIn();
+	
+	/** @return bytes que han salido de los codificadores */
+	long getBytesOut();
+	
+	/** @return carácteres comprimidos o descomprimidos */
+	long getSymbols();
+	
+	/** @return escapes por orden del contexto desde el que se escapa (el último cuenta también los órdenes mayores) */
+	long[] getEscapes();
+	
+	/** @return carácteres enviados como literal, en orden -1 */
+	long getLiterals();
+	
+	/** @return nodos recorridos de media en cada búsqueda entre hermanos (órdenes 2 y superiores) */
+	double getAverageScanLength();
+	
+	/** @return nodos del árbol creados en total */
+	long getNodesAllocated();
+	
+	/** @return el mayor número de nodos que ha tenido un modelo */
+	long getPeakNodes();
+	
+	/** @return estimación de la memoria ocupada por el modelo más grande, en bytes */
+	long getPeakNodeMemory();
+	
+	/** @return tiempo estimado en el modelo (buscar contextos y actualizarlos), en milisegundos */
+	long getModelTime();
+	
+	/** @return tiempo estimado codificando y decodificando (Huffman), en milisegundos */
+	long getCodingTime();
+	
+	/** @return una línea con el resumen de todas las métricas */
+	String getSummary();
+	
+	/** Pone a cero todas las métricas */
+	void reset();
+}
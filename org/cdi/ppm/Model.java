@@ -1,4 +1,5 @@
 package org.cdi.ppm;
+import java.io.*;
 import java.util.*;
 
 /** Implementa el árbol de contextos y conteo de carácteres
@@ -17,13 +18,58 @@ public class Model
 	 * Una referencia al nodo que representa el carácter de escape
 	 */
 	protected final ModelNode escape;
+	
+	/**
+	 * Tabla de acceso directo a los hijos de la raíz (nodos de orden 0),
+	 * indexada por el carácter sin signo
+	 */
+	protected final ModelNode[] order0 = new ModelNode[Excluder.byteRange];
+	/**
+	 * Tabla de acceso directo a los nietos de la raíz (nodos de orden 1):
+	 * <code>order1[a][b]</code> es el hijo <code>b</code> del nodo de orden 0 <code>a</code>.
+	 * Cada fila se reserva la primera vez que se usa.
+	 */
+	protected final ModelNode[][] order1 = new ModelNode[Excluder.byteRange][];
+	
+	/**
+	 * Arena con todos los nodos reservados por este modelo.
+	 * Los nodos <code>[0, usados)</code> forman el árbol actual; el resto
+	 * se reutilizan tras un <code>reset()</code> en lugar de reservar otros nuevos.
+	 */
+	protected ModelNode[] nodos = new ModelNode[1024];
+	/**
+	 * Cuántos nodos de la arena están en uso
+	 */
+	protected int usados = 0;
 	/**
-	 * Una referencia al nodo que representa el carácter de fin de archivo
+	 * Generación actual del modelo, que se incrementa con cada <code>reset()</code>.
+	 * Las entradas de las tablas de acceso directo de nodos de otra generación no valen.
 	 */
-	protected final ModelNode eof;
+	protected int generacion = 1;
 	
 	/**
-	 * Crea un nuevo modelo con el árbol vacio (salvo escape y EOF)
+	 * Búsquedas entre hermanos (órdenes 2 y superiores) y nodos recorridos en ellas,
+	 * para las métricas (ver <code>Metrics</code>)
+	 */
+	long busquedas = 0, pasos = 0;
+	
+	/**
+	 * La lista que devuelve <code>getNodeListFor</code>, que se reutiliza
+	 */
+	protected final List<ModelNode> lista = new ArrayList<ModelNode>(Excluder.byteRange + 1);
+	/**
+	 * Los bytes que excluye <code>excludeAll</code>, como mapa de bits (igual que en <code>Excluder</code>)
+	 */
+	private final long[] mascara = new long[Excluder.byteRange / 64];
+	
+	/**
+	 * Si los modelos nuevos se crean fuera del heap (ver <code>OffHeapModel</code>).
+	 * Por defecto, lo indica la propiedad del sistema <code>ppm.offheap</code>.
+	 */
+	private static volatile boolean offHeap = Boolean.getBoolean("ppm.offheap");
+	
+	/**
+	 * Crea un nuevo modelo con el árbol vacio (salvo escape)
 	 */
 	public Model()
 	{
@@ -33,10 +79,212 @@ public class Model
 		escape = new ModelNode((byte) 0);
 		escape.count = 1;
 		escape.parent = null;
+	}
+	
+	/** Crea un modelo vacío del tipo que se esté usando (en el heap o fuera de él)
+	 * 
+	 * @return el modelo
+	 */
+	public static Model create()
+	{
+		return offHeap ? new OffHeapModel() : new Model();
+	}
+	
+	/** Indica si los modelos que se creen a partir de ahora con <code>create()</code>
+	 * guardarán sus nodos fuera del heap. Los modelos ya creados no cambian.
+	 * 
+	 * @param b true para crearlos fuera del heap
+	 */
+	public static void setOffHeap(boolean b)
+	{
+		offHeap = b;
+	}
+	
+	/** Indica si los modelos se crean fuera del heap
+	 * 
+	 * @return true si se crean fuera del heap
+	 */
+	public static boolean isOffHeap()
+	{
+		return offHeap;
+	}
+		
+	/** Vacía el modelo (salvo escape), para reutilizarlo con datos nuevos.
+	 * No libera ni recorre nada: rebobina la arena de nodos y cambia de generación,
+	 * así que las tablas de acceso directo no hay que limpiarlas.
+	 */
+	public void reset()
+	{
+		trie.firstSon = null;
+		usados = 0;
+		generacion++;
+		
+		if (generacion == Integer.MAX_VALUE)
+		{
+			//Casi imposible, pero entonces sí hay que olvidarse de todo
+			Arrays.fill(order0, null);
+			Arrays.fill(order1, null);
+			for (ModelNode node : nodos)
+				if (node != null) node.generacion = 0;
+			generacion = 1;
+		}
+	}
+	
+	/** Devuelve el número de nodos que tiene ahora el árbol
+	 * 
+	 * @return nodos en uso (sin contar raíz ni escape)
+	 */
+	public int getNodeCount()
+	{
+		return usados;
+	}
+	
+	/** Devuelve cuántos nodos caben en la arena que el modelo conserva para reutilizar,
+	 * que crece hasta el mayor árbol que ha tenido y no se reduce con <code>reset()</code>
+	 * 
+	 * @return nodos reservados
+	 */
+	public long getArenaSize()
+	{
+		return nodos.length;
+	}
+	
+	/** Escribe el árbol de contextos, para el modo estático (ver <code>Encoder.freeze</code>).
+	 * Se recorre en preorden: para cada nodo, su número de hijos y luego cada hijo
+	 * (carácter, cuenta y sus propios hijos), en el orden de los hermanos.
+	 * Los nodos del último nivel no llevan número de hijos, porque no pueden tenerlos.
+	 * Los nodos con menos de <code>minCount</code> apariciones se omiten, con todos sus hijos.
+	 * 
+	 * @param out donde escribir
+	 * @param maxDepth la profundidad máxima del árbol (el orden más uno)
+	 * @param minCount la cuenta mínima de los nodos que se escriben (1 para escribirlos todos)
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	public void write(DataOutput out, int maxDepth, int minCount) throws IOException
+	{
+		writeSons(out, trie, maxDepth, minCount);
+	}
+	
+	/** Escribe los hijos de un nodo (ver <code>write</code>)
+	 * 
+	 * @param out donde escribir
+	 * @param parent el nodo
+	 * @param depth cuántos niveles pueden quedar por debajo del nodo
+	 * @param minCount la cuenta mínima de los nodos que se escriben
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	private void writeSons(DataOutput out, ModelNode parent, int depth, int minCount) throws IOException
+	{
+		ModelNode node;
+		int n = 0;
 		
-		eof = new ModelNode((byte) 0);
-		eof.count = 1;
-		eof.parent = null;
+		if (depth == 0)
+			return;
+		
+		for (node = parent.firstSon; node != null; node = node.nextBrother)
+			if (node.count >= minCount) n++;
+		
+		writeNumber(out, n);
+		for (node = parent.firstSon; node != null; node = node.nextBrother)
+		{
+			if (node.count < minCount)
+				continue;
+			
+			out.writeByte(node.car);
+			writeNumber(out, node.count);
+			writeSons(out, node, depth - 1, minCount);
+		}
+	}
+	
+	/** Vacía el modelo y carga un árbol escrito con <code>write</code>
+	 * 
+	 * @param in de donde leer
+	 * @param maxDepth la profundidad máxima que puede tener el árbol (el orden más uno)
+	 * @throws IOException si hay un problema de entrada/salida o el árbol no es válido
+	 */
+	public void read(DataInput in, int maxDepth) throws IOException
+	{
+		reset();
+		readSons(in, trie, maxDepth);
+	}
+	
+	/** Lee los hijos de un nodo (ver <code>read</code>)
+	 * 
+	 * @param in de donde leer
+	 * @param parent el nodo, aún sin hijos
+	 * @param depth cuántos niveles pueden quedar por debajo del nodo
+	 * @throws IOException si hay un problema de entrada/salida o el árbol no es válido
+	 */
+	private void readSons(DataInput in, ModelNode parent, int depth) throws IOException
+	{
+		ModelNode ant = null, node;
+		int n;
+		
+		if (depth == 0)
+			return;
+		
+		n = readNumber(in);
+		if (n > Excluder.byteRange)
+			throw new IOException("Modelo inválido");
+		
+		for (; n > 0; n--)
+		{
+			node = nuevoNodo(parent, in.readByte());
+			node.count = readNumber(in);
+			if (node.count <= 0)
+				throw new IOException("Modelo inválido");
+			
+			if (ant == null)
+				parent.firstSon = node;
+			else
+				ant.nextBrother = node;
+			ant = node;
+			
+			readSons(in, node, depth - 1);
+		}
+	}
+	
+	/** Escribe un entero no negativo en 7 bits por byte
+	 * (el bit alto indica que quedan más bytes)
+	 * 
+	 * @param out donde escribir
+	 * @param n el entero
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	static void writeNumber(DataOutput out, int n) throws IOException
+	{
+		while ((n & ~0x7F) != 0)
+		{
+			out.writeByte((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+	
+	/** Lee un entero escrito con <code>writeNumber</code>
+	 * 
+	 * @param in de donde leer
+	 * @return el entero
+	 * @throws IOException si hay un problema de entrada/salida o el número no es válido
+	 */
+	static int readNumber(DataInput in) throws IOException
+	{
+		int n = 0, b, shift = 0;
+		
+		do
+		{
+			if (shift > 28)
+				throw new IOException("Número inválido");
+			b = in.readUnsignedByte();
+			n |= (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+		
+		if (n < 0)
+			throw new IOException("Número inválido");
+		
+		return n;
 	}
 
 	/** Tener en cuenta la aparición del carácter indicado en el contexto especificado
@@ -44,10 +292,23 @@ public class Model
 	 * @param context el contexto que ha aparecido
      */
 	public void add(Context context, byte car)
+	{
+		add(context, car, 0);
+	}
+	
+	/** Tener en cuenta la aparición del carácter indicado en el contexto especificado,
+	 * pero solo en los órdenes desde <code>minOrder</code> hacia arriba (exclusión de actualización:
+	 * si el carácter se ha codificado en un orden, los menores no aportan nada nuevo)
+	 * 
+	 * @param context el contexto que ha aparecido
+	 * @param car el carácter que ha aparecido
+	 * @param minOrder el orden más bajo a actualizar (0 para actualizarlos todos)
+	 */
+	public void add(Context context, byte car, int minOrder)
 	{
 		int i;
 		int max = context.order();
-		for (i = 0; i <= max; i++) //Tener un cuenta un orden más para añadir el carácter
+		for (i = 0; i <= max - minOrder; i++) //Tener un cuenta un orden más para añadir el carácter
 		{
 			addSubContext(context, i, max, car);
 		}
@@ -83,55 +344,111 @@ public class Model
 			cur = next;
 		}
 		
-		//Ahora añadir el carácter
-		next = searchSonsOf(cur, car);
-		
-		if (next == null) {
-			//Añadir el carácter al árbol (primera aparación)
-			next = addSonNodeTo(cur, car);
-		}
-		
-		next.count++;
+		//Ahora añadir el carácter (y mantener los hermanos ordenados)
+		next = incrementSonOf(cur, car);
 		
 		//Comprobación
 		assert next.count < Integer.MAX_VALUE : "integer overflow";
 	}
 	
-	/** Obtiene una lista con todos los carácteres posibles,
-	 * independientemente del contexto.
-	 * La probabilidad será 1/(num carácteres posibles).
+	/** Incrementa la cuenta del hijo del nodo especificado con el carácter especificado,
+	 * añadiéndolo al final si no estaba.
+	 * Si tras incrementar su cuenta supera a la de su hermano anterior, se intercambian,
+	 * de forma que la lista de hermanos queda aproximadamente ordenada de mayor a menor
+	 * cuenta y los carácteres más probables se encuentran en uno o dos saltos.
 	 * 
-	 * @param exclusions una lista de exclusiones que no se devolverán en la lista
-	 * @return la tabla de probabilidades de todos los carácteres
+	 * @param parent	El nodo entre cuyos hijos buscar
+	 * @param car		El carácter a buscar
+	 * @return El nodo incrementado
 	 */
-	public List<ModelNode> getAllCharsList(Excluder exclusions)
+	protected ModelNode incrementSonOf(ModelNode parent, byte car)
 	{
-		LinkedList<ModelNode> l = new LinkedList<ModelNode>();
-		ModelNode node;
+		ModelNode antant = null, ant = null;
+		ModelNode node = parent.firstSon;
 		
-		//Un bucle con todos los bytes posibles
-		int i;
-		for (i = Byte.MIN_VALUE; i <= Byte.MAX_VALUE; i++)
+		while (node != null && node.car != car)
 		{
-			byte b = (byte) i;
-			
-			if (exclusions.isExcluded(b))
-				continue; //Carácter excluido
-			
-			node = new ModelNode(b);
-			node.count = 1;
-			node.parent = null;
-			
-			l.add(node);
+			antant = ant;
+			ant = node;
+			node = node.nextBrother;
 		}
 	
-		l.add(escape);
-		l.add(eof);
+		if (node == null)
+		{
+			//Añadir el carácter al final de la lista (primera aparición)
+			node = nuevoNodo(parent, car);
 		
-		return l;
+			if (ant == null)
+				parent.firstSon = node;
+			else
+				ant.nextBrother = node;
+		}
+		
+		node.count++;
+		
+		if (ant != null && node.count > ant.count)
+		{
+			//Intercambiar con el hermano anterior
+			ant.nextBrother = node.nextBrother;
+			node.nextBrother = ant;
+			
+			if (antant == null)
+				parent.firstSon = node;
+			else
+				antant.nextBrother = node;
+		}
+		
+		return node;
 	}
 	
-	/** Devolver la tabla de nodos para un contexto determinado
+	/** Devuelve el número de símbolos posibles en orden -1,
+	 * independientemente del contexto: los carácteres no excluidos y el EOF.
+	 * La probabilidad de cada uno será 1/(num símbolos posibles).
+	 * 
+	 * @param exclusions una lista de exclusiones que no cuentan como posibles
+	 * @return el número de símbolos posibles
+	 */
+	public int getLiteralCount(Excluder exclusions)
+	{
+		return exclusions.countIncluded() + 1;
+	}
+	
+	/** Devuelve la posición de un carácter entre los símbolos posibles en orden -1
+	 * (su valor sin signo menos el número de excluidos por debajo de él)
+	 * 
+	 * @param car el carácter, que no debe estar excluido
+	 * @param exclusions una lista de exclusiones que no cuentan como posibles
+	 * @return posición del carácter
+	 */
+	public int getLiteralRank(byte car, Excluder exclusions)
+	{
+		return exclusions.rankOf(car);
+	}
+	
+	/** Devuelve la posición del EOF entre los símbolos posibles en orden -1
+	 * (siempre es el último)
+	 * 
+	 * @param exclusions una lista de exclusiones que no cuentan como posibles
+	 * @return posición del EOF
+	 */
+	public int getEOFRank(Excluder exclusions)
+	{
+		return exclusions.countIncluded();
+	}
+	
+	/** Devuelve el carácter que ocupa una posición entre los símbolos posibles en orden -1
+	 * 
+	 * @param rank la posición, que no debe ser la del EOF
+	 * @param exclusions una lista de exclusiones que no cuentan como posibles
+	 * @return el carácter
+	 */
+	public byte getLiteralAt(int rank, Excluder exclusions)
+	{
+		return exclusions.getIncluded(rank);
+	}
+	
+	/** Devolver la tabla de nodos para un contexto determinado.
+	 * La lista se reutiliza: solo vale hasta la siguiente llamada.
 	 * 
 	 * @param context	el contexto donde buscar
 	 * @param exclusions una lista de exclusiones que no se devolverán en la lista
@@ -168,10 +485,22 @@ public class Model
      */
 	protected ModelNode searchSonsOf(ModelNode parent, byte car)
 	{
+		//Los dos primeros niveles se buscan en las tablas de acceso directo
+		if (parent == trie)
+			return vigente(order0[car & 0xFF], parent, car);
+		
+		if (parent.parent == trie)
+		{
+			ModelNode[] fila = order1[parent.car & 0xFF];
+			return (fila == null) ? null : vigente(fila[car & 0xFF], parent, car);
+		}
+		
 		ModelNode node = parent.firstSon;
 		
+		busquedas++;
 		while (node != null)
 		{
+			pasos++;
 			if (node.car == car)
 				return node;
 			node = node.nextBrother;
@@ -195,9 +524,7 @@ public class Model
 		if (ant == null)
 		{
 			//No tiene hijos
-			sig = new ModelNode(car);
-			
-			sig.parent = parent;
+			sig = nuevoNodo(parent, car);
 			
 			parent.firstSon = sig;
 			
@@ -212,9 +539,7 @@ public class Model
 		}
 		
 		//Aquí sig es null, ant es el último de la lista
-		sig = new ModelNode(car);
-		
-		sig.parent = parent;
+		sig = nuevoNodo(parent, car);
 		
 		ant.nextBrother = sig;
 		
@@ -222,7 +547,91 @@ public class Model
 
 	}
 	
-	/** Devuelve una lista con los hijos del nodo parent, incluye el nodo de escape
+	/** Saca un nodo de la arena (o lo reserva si no quedan), sin hermanos ni hijos,
+	 * y lo apunta en la tabla de acceso directo que le corresponda.
+	 * No lo enlaza con sus hermanos: eso lo hace quien lo pide.
+	 * 
+	 * @param parent el nodo padre
+	 * @param car el carácter del nodo
+	 * @return el nodo, con cuenta 0
+	 */
+	protected ModelNode nuevoNodo(ModelNode parent, byte car)
+	{
+		ModelNode node;
+		
+		if (usados == nodos.length)
+		{
+			ModelNode[] mas = new ModelNode[nodos.length * 2];
+			System.arraycopy(nodos, 0, mas, 0, usados);
+			nodos = mas;
+		}
+		
+		node = nodos[usados];
+		if (node == null)
+		{
+			node = new ModelNode(car);
+			nodos[usados] = node;
+		}
+		else
+		{
+			node.car = car;
+			node.nextBrother = null;
+			node.firstSon = null;
+			node.count = 0;
+		}
+		usados++;
+		
+		node.parent = parent;
+		node.generacion = generacion;
+		registrar(node);
+		
+		return node;
+	}
+	
+	/** Comprueba que una entrada de las tablas de acceso directo es del árbol actual
+	 * (un nodo de otra generación, o reutilizado para otro contexto, no vale)
+	 * 
+	 * @param node la entrada de la tabla
+	 * @param parent el padre que debe tener
+	 * @param car el carácter que debe tener
+	 * @return el nodo, o null si no vale
+	 */
+	private ModelNode vigente(ModelNode node, ModelNode parent, byte car)
+	{
+		if (node != null && node.generacion == generacion && node.parent == parent && node.car == car)
+			return node;
+		
+		return null;
+	}
+	
+	/** Apunta un nodo recién añadido en la tabla de acceso directo
+	 * que le corresponda, si es de orden 0 o 1
+	 * 
+	 * @param node el nodo añadido (con su padre ya asignado)
+	 */
+	protected void registrar(ModelNode node)
+	{
+		ModelNode parent = node.parent;
+		
+		if (parent == trie)
+		{
+			order0[node.car & 0xFF] = node;
+		}
+		else if (parent.parent == trie)
+		{
+			ModelNode[] fila = order1[parent.car & 0xFF];
+			if (fila == null)
+			{
+				fila = new ModelNode[Excluder.byteRange];
+				order1[parent.car & 0xFF] = fila;
+			}
+			fila[node.car & 0xFF] = node;
+		}
+	}
+	
+	/** Devuelve una lista con los hijos del nodo parent, incluye el nodo de escape.
+	 * La lista conserva el orden de los hermanos (aproximadamente de mayor a menor cuenta),
+	 * y es siempre la misma, así que solo vale hasta la siguiente llamada.
 	 * 
 	 * @param parent el nodo del cual obtener los hijos
 	 * @param exclusions un contexto con bytes a excluir
@@ -230,8 +639,10 @@ public class Model
 	 */
 	protected List<ModelNode> getListFromSonsOf(ModelNode parent, Excluder exclusions)
 	{
-		LinkedList<ModelNode> l = new LinkedList<ModelNode>();
+		List<ModelNode> l = lista;
 		ModelNode node = parent.firstSon;
+		
+		l.clear();
 
 		while (node != null)
 		{
@@ -259,12 +670,12 @@ public class Model
 	public ModelNode searchNode(List<ModelNode> l, byte car)
 	{
 		ModelNode node;
-		ListIterator<ModelNode> iterator;
+		int i, n = l.size();
 		
-		for (iterator = l.listIterator() ; iterator.hasNext(); )
+		for (i = 0; i < n; i++)
 		{
-			node = iterator.next();
-			if (node != escape && node != eof && node.car == car)
+			node = l.get(i);
+			if (node != escape && node.car == car)
 				return node;
 		}
 		
@@ -282,18 +693,8 @@ public class Model
 		return escape;
 	}
 	
-	/** Busca, entre los nodos de una lista, el carácter de EOF
-	 * 
-	 * @param l la lista donde buscar
-	 * @return el nodo del modelo que tiene el carácter especificado
-	 */
-	public ModelNode searchEOFNode(List<ModelNode> l)
-	{
-		//Siempre es el mismo
-		return eof;
-	}
-	
-	/** Excluye todos los bytes de una lista de carácteres
+	/** Excluye todos los bytes de una lista de carácteres: los junta en un mapa de bits
+	 * y los excluye de 64 en 64 (ver <code>Excluder.exclude(long[])</code>)
 	 * 
 	 * @param l la lista de nodos a excluir
 	 * @param exclusions donde poner las exclusiones
@@ -301,14 +702,20 @@ public class Model
 	public void excludeAll(List<ModelNode> l, Excluder exclusions)
 	{
 		ModelNode node;
-		ListIterator<ModelNode> iterator;
+		int i, c, n = l.size();
 		
-		for (iterator = l.listIterator() ; iterator.hasNext(); )
+		Arrays.fill(mascara, 0);
+		for (i = 0; i < n; i++)
 		{
-			node = iterator.next();
-			if (node != escape && node != eof)
-				exclusions.exclude(node.car);
+			node = l.get(i);
+			if (node != escape)
+			{
+				c = node.car & 0xFF;
+				mascara[c >>> 6] |= 1L << c;
+			}
 		}
+		
+		exclusions.exclude(mascara);
 	}
 	
 	/** Indica si un nodo es el nodo de escape
@@ -320,14 +727,4 @@ public class Model
 	{
 		return (node == escape);
 	}
-	
-	/** Indica si un nodo es el nodo de fin de archivo
-	 * 
-	 * @param node el nodo a comprobar
-	 * @return true si node es nodo de fin de archivo
-	 */
-	public boolean isEOF(ModelNode node)
-	{
-		return (node == eof);
-	}
 }
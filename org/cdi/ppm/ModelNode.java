@@ -5,8 +5,8 @@ package org.cdi.ppm;
  */
 public class ModelNode
 {
-	/** El cáracter que representa este nodo */
-	final byte car;
+	/** El cáracter que representa este nodo (solo cambia si el modelo reutiliza el nodo) */
+	byte car;
 	
 	/** El contexto padre (con un carácter menos) */
 	ModelNode parent;
@@ -18,6 +18,9 @@ public class ModelNode
 	/** La cuenta de veces que se ha dado este contexto. */ 
 	int count = 0;
 
+	/** La generación del modelo en la que se creó (o reutilizó) el nodo */
+	int generacion = 0;
+
 	/** Construye un nuevo nodo para el carácter señalado
 	 * 
 	 * @param car el carácter indicado
@@ -0,0 +1,594 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** Un modelo PPM que guarda sus nodos fuera del heap de Java, en trozos de memoria
+ * directa (<code>ByteBuffer.allocateDirect</code>), de forma que un modelo de varios GB
+ * no hace crecer el heap ni alarga las pausas del recolector.
+ * 
+ * Cada nodo ocupa cuatro enteros (carácter, cuenta, primer hijo y siguiente hermano),
+ * y los enlaces son índices de nodo en lugar de referencias. El nodo 0 es la raíz,
+ * así que un enlace 0 significa que no hay hijo o hermano. El comportamiento es
+ * exactamente el de <code>Model</code> (mismos órdenes de hermanos, mismos códigos),
+ * así que un archivo comprimido con uno se descomprime con el otro.
+ * 
+ * Las listas que devuelve <code>getNodeListFor</code> son vistas que se reutilizan:
+ * solo valen hasta la siguiente llamada, que es como las usan los codificadores.
+ * 
+ * La memoria directa solo se devuelve cuando el recolector recoge los pocos objetos
+ * <code>ByteBuffer</code> que la representan: <code>close()</code> suelta las referencias
+ * para que pueda hacerlo (y deja el modelo inservible), pero no la libera en el momento.
+ * El modelo se puede guardar con <code>save</code> y volver a abrir con <code>map</code>,
+ * que proyecta el archivo en memoria sin leerlo.
+ * 
+ * @author Javier y Maldo
+ */
+public class OffHeapModel extends Model implements Closeable
+{
+	/** Los bytes con los que empieza un modelo guardado */
+	static final byte[] magic = {'P', 'P', 'O', 1};
+	
+	/** Cada trozo tiene 2^shift nodos (64K nodos, 1 MB) */
+	static final int shift = 16;
+	/** Para sacar la posición de un nodo dentro de su trozo */
+	static final int mask = (1 << shift) - 1;
+	/** Bytes que ocupa cada nodo */
+	static final int nodeBytes = 16;
+	
+	/** Posición de cada campo dentro del nodo */
+	private static final int CAR = 0, COUNT = 1, SON = 2, BROTHER = 3;
+	
+	/** Bytes que ocupa la cabecera de un modelo guardado (magic, nodos, tablas) */
+	private static final int headerBytes = 4 + 4 + (Excluder.byteRange + Excluder.byteRange * Excluder.byteRange) * 4;
+	
+	/** Los trozos de memoria con los nodos */
+	protected ByteBuffer[] trozos = new ByteBuffer[0];
+	/** Los mismos trozos, vistos como enteros */
+	protected IntBuffer[] enteros = new IntBuffer[0];
+	
+	/** Tabla de acceso directo a los nodos de orden 0, indexada por el carácter sin signo (0 si no está) */
+	protected final int[] tabla0 = new int[Excluder.byteRange];
+	/** Tabla de acceso directo a los nodos de orden 1: <code>tabla1[a * 256 + b]</code>
+	 * es el hijo <code>b</code> del nodo de orden 0 <code>a</code> (0 si no está) */
+	protected final int[] tabla1 = new int[Excluder.byteRange * Excluder.byteRange];
+	/** Generación en la que se apuntó cada entrada de <code>tabla0</code> y <code>tabla1</code>:
+	 * las de otra generación no valen, así que <code>reset()</code> no tiene que limpiar las tablas */
+	protected final int[] generacion0 = new int[tabla0.length], generacion1 = new int[tabla1.length];
+	
+	/** Si ya se ha cerrado el modelo */
+	private boolean cerrado = false;
+	
+	/** Las vistas de los nodos que se devuelven en las listas (una por carácter posible) */
+	private final ModelNode[] vistas = new ModelNode[Excluder.byteRange];
+	
+	/** Crea un modelo vacío fuera del heap
+	 */
+	public OffHeapModel()
+	{
+		for (int i = 0; i < vistas.length; i++)
+			vistas[i] = new ModelNode((byte) 0);
+		
+		asegurar(0);
+	}
+	
+	/** Vacía el modelo, conservando la memoria ya reservada para reutilizarla.
+	 * Como en <code>Model</code>, solo cambia de generación: las tablas no se limpian.
+	 */
+	public void reset()
+	{
+		abierto();
+		put(0, SON, 0);
+		usados = 0;
+		generacion++;
+		
+		if (generacion == Integer.MAX_VALUE)
+		{
+			Arrays.fill(generacion0, 0);
+			Arrays.fill(generacion1, 0);
+			generacion = 1;
+		}
+	}
+	
+	/** Suelta la memoria del modelo, que ya no se puede usar más (lanza
+	 * <code>IllegalStateException</code>). La memoria directa no se devuelve
+	 * hasta que el recolector recoge los búferes, como con cualquier <code>ByteBuffer</code>.
+	 */
+	public void close()
+	{
+		cerrado = true;
+		trozos = new ByteBuffer[0];
+		enteros = new IntBuffer[0];
+		usados = 0;
+	}
+	
+	/** Comprueba que el modelo no se ha cerrado
+	 */
+	private void abierto()
+	{
+		if (cerrado)
+			throw new IllegalStateException("Modelo cerrado");
+	}
+	
+	/** Devuelve la memoria fuera del heap que tiene reservada el modelo
+	 * 
+	 * @return bytes reservados
+	 */
+	public long getReservedBytes()
+	{
+		long total = 0;
+		for (ByteBuffer b : trozos)
+			if (b != null)
+				total += b.capacity();
+		return total;
+	}
+	
+	/** Devuelve cuántos nodos caben en los trozos reservados
+	 * 
+	 * @return nodos reservados
+	 */
+	public long getArenaSize()
+	{
+		return getReservedBytes() / nodeBytes;
+	}
+	
+	/** Tener en cuenta la aparición del carácter indicado en el contexto especificado,
+	 * en los órdenes desde <code>minOrder</code> hacia arriba
+	 * 
+	 * @param context el contexto que ha aparecido
+	 * @param car el carácter que ha aparecido
+	 * @param minOrder el orden más bajo a actualizar (0 para actualizarlos todos)
+	 */
+	public void add(Context context, byte car, int minOrder)
+	{
+		int i, j, cur, next;
+		int max = context.order();
+		byte contextCar;
+		
+		abierto();
+		for (i = 0; i <= max - minOrder; i++)
+		{
+			//Buscar y añadir todos los carácteres que forman el (sub)contexto
+			cur = 0;
+			for (j = i; j < max; j++)
+			{
+				contextCar = context.getByteAt(j);
+				
+				next = buscarHijo(cur, j - i, contextCar);
+				if (next == 0)
+					next = anadirHijo(cur, j - i, contextCar);
+				
+				cur = next;
+			}
+			
+			//Ahora añadir el carácter (y mantener los hermanos ordenados)
+			next = incrementarHijo(cur, max - i, car);
+			
+			assert get(next, COUNT) < Integer.MAX_VALUE : "integer overflow";
+		}
+	}
+	
+	/** Devolver la tabla de nodos para un contexto determinado.
+	 * La lista y sus nodos solo valen hasta la siguiente llamada.
+	 * 
+	 * @param context el contexto donde buscar
+	 * @param exclusions una lista de exclusiones que no se devolverán en la lista
+	 * @return La tabla de nodos, o null si el contexto no estaba.
+	 */
+	public List<ModelNode> getNodeListFor(Context context, Excluder exclusions)
+	{
+		int i, cur = 0;
+		int max = context.order();
+		
+		abierto();
+		for (i = 0; i < max; i++)
+		{
+			cur = buscarHijo(cur, i, context.getByteAt(i));
+			if (cur == 0)
+				return null;
+		}
+		
+		//Los hijos no excluidos, en el orden de los hermanos, y el escape al final
+		lista.clear();
+		int n = 0;
+		for (int node = get(cur, SON); node != 0; node = get(node, BROTHER))
+		{
+			byte car = (byte) get(node, CAR);
+			if (!exclusions.isExcluded(car))
+			{
+				ModelNode vista = vistas[n++];
+				vista.car = car;
+				vista.count = get(node, COUNT);
+				lista.add(vista);
+			}
+		}
+		lista.add(escape);
+		
+		return lista;
+	}
+	
+	/** Escribe el árbol de contextos, en el mismo formato que <code>Model.write</code>
+	 * 
+	 * @param out donde escribir
+	 * @param maxDepth la profundidad máxima del árbol (el orden más uno)
+	 * @param minCount la cuenta mínima de los nodos que se escriben (1 para escribirlos todos)
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	public void write(DataOutput out, int maxDepth, int minCount) throws IOException
+	{
+		abierto();
+		escribirHijos(out, 0, maxDepth, minCount);
+	}
+	
+	/** Escribe los hijos de un nodo (ver <code>write</code>)
+	 */
+	private void escribirHijos(DataOutput out, int parent, int depth, int minCount) throws IOException
+	{
+		int node, n = 0;
+		
+		if (depth == 0)
+			return;
+		
+		for (node = get(parent, SON); node != 0; node = get(node, BROTHER))
+			if (get(node, COUNT) >= minCount) n++;
+		
+		writeNumber(out, n);
+		for (node = get(parent, SON); node != 0; node = get(node, BROTHER))
+		{
+			if (get(node, COUNT) < minCount)
+				continue;
+			
+			out.writeByte(get(node, CAR));
+			writeNumber(out, get(node, COUNT));
+			escribirHijos(out, node, depth - 1, minCount);
+		}
+	}
+	
+	/** Vacía el modelo y carga un árbol escrito con <code>write</code>
+	 * 
+	 * @param in de donde leer
+	 * @param maxDepth la profundidad máxima que puede tener el árbol (el orden más uno)
+	 * @throws IOException si hay un problema de entrada/salida o el árbol no es válido
+	 */
+	public void read(DataInput in, int maxDepth) throws IOException
+	{
+		reset();
+		leerHijos(in, 0, 0, maxDepth);
+	}
+	
+	/** Lee los hijos de un nodo, que aún no tiene (ver <code>read</code>)
+	 */
+	private void leerHijos(DataInput in, int parent, int nivel, int maxDepth) throws IOException
+	{
+		int ant = 0, node, count;
+		int n;
+		
+		if (nivel == maxDepth)
+			return;
+		
+		n = readNumber(in);
+		if (n > Excluder.byteRange)
+			throw new IOException("Modelo inválido");
+		
+		for (; n > 0; n--)
+		{
+			node = nuevoNodo(parent, nivel, in.readByte());
+			count = readNumber(in);
+			if (count <= 0)
+				throw new IOException("Modelo inválido");
+			put(node, COUNT, count);
+			
+			if (ant == 0)
+				put(parent, SON, node);
+			else
+				put(ant, BROTHER, node);
+			ant = node;
+			
+			leerHijos(in, node, nivel + 1, maxDepth);
+		}
+	}
+	
+	/** Busca un hijo de un nodo
+	 * 
+	 * @param parent el nodo entre cuyos hijos buscar
+	 * @param nivel el orden de los hijos (0 si parent es la raíz)
+	 * @param car el carácter a buscar
+	 * @return el hijo, o 0 si no está
+	 */
+	protected int buscarHijo(int parent, int nivel, byte car)
+	{
+		//Los dos primeros niveles se buscan en las tablas de acceso directo
+		if (nivel == 0)
+			return vigente(tabla0, generacion0, car & 0xFF);
+		if (nivel == 1)
+			return vigente(tabla1, generacion1, (get(parent, CAR) & 0xFF) << 8 | (car & 0xFF));
+		
+		busquedas++;
+		for (int node = get(parent, SON); node != 0; node = get(node, BROTHER))
+		{
+			pasos++;
+			if ((byte) get(node, CAR) == car)
+				return node;
+		}
+		
+		return 0;
+	}
+	
+	/** Añade un hijo al final de los hijos de un nodo (que no lo tiene)
+	 * 
+	 * @param parent el nodo padre
+	 * @param nivel el orden del hijo
+	 * @param car el carácter del hijo
+	 * @return el hijo añadido
+	 */
+	protected int anadirHijo(int parent, int nivel, byte car)
+	{
+		int ant = get(parent, SON);
+		int node = nuevoNodo(parent, nivel, car);
+		
+		if (ant == 0)
+		{
+			put(parent, SON, node);
+			return node;
+		}
+		
+		for (int sig = get(ant, BROTHER); sig != 0; sig = get(ant, BROTHER))
+			ant = sig;
+		put(ant, BROTHER, node);
+		
+		return node;
+	}
+	
+	/** Incrementa la cuenta del hijo de un nodo, añadiéndolo al final si no estaba,
+	 * e intercambiándolo con su hermano anterior si lo supera (como <code>Model.incrementSonOf</code>)
+	 * 
+	 * @param parent el nodo padre
+	 * @param nivel el orden del hijo
+	 * @param car el carácter del hijo
+	 * @return el hijo incrementado
+	 */
+	protected int incrementarHijo(int parent, int nivel, byte car)
+	{
+		int antant = 0, ant = 0;
+		int node = get(parent, SON);
+		
+		while (node != 0 && (byte) get(node, CAR) != car)
+		{
+			antant = ant;
+			ant = node;
+			node = get(node, BROTHER);
+		}
+		
+		if (node == 0)
+		{
+			//Añadir el carácter al final de la lista (primera aparición)
+			node = nuevoNodo(parent, nivel, car);
+			
+			if (ant == 0)
+				put(parent, SON, node);
+			else
+				put(ant, BROTHER, node);
+		}
+		
+		int count = get(node, COUNT) + 1;
+		put(node, COUNT, count);
+		
+		if (ant != 0 && count > get(ant, COUNT))
+		{
+			//Intercambiar con el hermano anterior
+			put(ant, BROTHER, get(node, BROTHER));
+			put(node, BROTHER, ant);
+			
+			if (antant == 0)
+				put(parent, SON, node);
+			else
+				put(antant, BROTHER, node);
+		}
+		
+		return node;
+	}
+	
+	/** Reserva un nodo nuevo (sin enlazar con sus hermanos) y lo apunta
+	 * en la tabla de acceso directo que le corresponda
+	 * 
+	 * @param parent el nodo padre
+	 * @param nivel el orden del nodo
+	 * @param car el carácter del nodo
+	 * @return el nodo, con cuenta 0
+	 */
+	protected int nuevoNodo(int parent, int nivel, byte car)
+	{
+		if (usados == Integer.MAX_VALUE - 1)
+			throw new IllegalStateException("Demasiados nodos");
+		
+		int node = ++usados;
+		asegurar(node);
+		
+		put(node, CAR, car);
+		put(node, COUNT, 0);
+		put(node, SON, 0);
+		put(node, BROTHER, 0);
+		
+		if (nivel == 0)
+		{
+			tabla0[car & 0xFF] = node;
+			generacion0[car & 0xFF] = generacion;
+		}
+		else if (nivel == 1)
+		{
+			int i = (get(parent, CAR) & 0xFF) << 8 | (car & 0xFF);
+			tabla1[i] = node;
+			generacion1[i] = generacion;
+		}
+		
+		return node;
+	}
+	
+	/** Devuelve una entrada de una tabla de acceso directo si es de la generación actual
+	 * 
+	 * @param tabla la tabla
+	 * @param generaciones la generación de cada entrada de la tabla
+	 * @param i el índice de la entrada
+	 * @return el nodo, o 0 si no está
+	 */
+	private int vigente(int[] tabla, int[] generaciones, int i)
+	{
+		return generaciones[i] == generacion ? tabla[i] : 0;
+	}
+	
+	/** Se asegura de que hay memoria para un nodo, reservando otro trozo si hace falta
+	 * 
+	 * @param node el índice del nodo
+	 */
+	private void asegurar(int node)
+	{
+		int t = node >>> shift;
+		
+		if (t < trozos.length && trozos[t] != null)
+			return;
+		
+		if (t >= trozos.length)
+		{
+			//Los arrays crecen al doble, pero los trozos se reservan de uno en uno
+			int n = Math.max(t + 1, trozos.length * 2);
+			trozos = Arrays.copyOf(trozos, n);
+			enteros = Arrays.copyOf(enteros, n);
+		}
+		
+		trozos[t] = ByteBuffer.allocateDirect((mask + 1) * nodeBytes);
+		enteros[t] = trozos[t].asIntBuffer();
+	}
+	
+	private int get(int node, int campo)
+	{
+		return enteros[node >>> shift].get(((node & mask) << 2) + campo);
+	}
+	
+	private void put(int node, int campo, int valor)
+	{
+		enteros[node >>> shift].put(((node & mask) << 2) + campo, valor);
+	}
+	
+	/** Guarda el modelo en un archivo, para abrirlo después con <code>map</code>
+	 * 
+	 * @param f el archivo
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	public void save(File f) throws IOException
+	{
+		abierto();
+		FileOutputStream fos = new FileOutputStream(f);
+		
+		try
+		{
+			ByteBuffer cabecera = ByteBuffer.allocate(headerBytes);
+			cabecera.put(magic);
+			cabecera.putInt(usados);
+			
+			//Las entradas de otras generaciones se guardan como vacías
+			IntBuffer tablas = cabecera.asIntBuffer();
+			for (int i = 0; i < tabla0.length; i++)
+				tablas.put(vigente(tabla0, generacion0, i));
+			for (int i = 0; i < tabla1.length; i++)
+				tablas.put(vigente(tabla1, generacion1, i));
+			cabecera.clear();
+			escribir(fos.getChannel(), cabecera);
+			
+			//Los nodos, incluida la raíz
+			long total = (long) usados + 1;
+			for (int t = 0; (long) t << shift < total; t++)
+			{
+				ByteBuffer trozo = trozos[t].duplicate();
+				trozo.clear();
+				trozo.limit((int) Math.min(mask + 1, total - ((long) t << shift)) * nodeBytes);
+				escribir(fos.getChannel(), trozo);
+			}
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+	
+	/** Abre un modelo guardado con <code>save</code>, proyectando el archivo en memoria
+	 * en lugar de leerlo. Los cambios posteriores al modelo no se escriben en el archivo.
+	 * Si el archivo no se puede escribir (la proyección privada lo exige), se lee entero.
+	 * 
+	 * @param f el archivo
+	 * @return el modelo
+	 * @throws IOException si hay un problema de entrada/salida o el archivo no es un modelo
+	 */
+	public static OffHeapModel map(File f) throws IOException
+	{
+		if (!f.isFile())
+			throw new FileNotFoundException(f.getPath());
+		
+		boolean proyectar = f.canWrite();
+		RandomAccessFile raf = new RandomAccessFile(f, proyectar ? "rw" : "r");
+		OffHeapModel m = new OffHeapModel();
+		
+		try
+		{
+			FileChannel canal = raf.getChannel();
+			if (canal.size() < headerBytes)
+				throw new IOException("No es un modelo guardado");
+			
+			ByteBuffer cabecera = canal.map(FileChannel.MapMode.READ_ONLY, 0, headerBytes);
+			byte[] mg = new byte[magic.length];
+			cabecera.get(mg);
+			int usados = cabecera.getInt();
+			long total = (long) usados + 1;
+			
+			if (!Arrays.equals(mg, magic) || usados < 0 || canal.size() != headerBytes + total * nodeBytes)
+				throw new IOException("No es un modelo guardado");
+			
+			cabecera.asIntBuffer().get(m.tabla0).get(m.tabla1);
+			Arrays.fill(m.generacion0, m.generacion);
+			Arrays.fill(m.generacion1, m.generacion);
+			
+			int n = (int) ((total + mask) >>> shift);
+			m.trozos = new ByteBuffer[n];
+			m.enteros = new IntBuffer[n];
+			for (int t = 0; t < n; t++)
+			{
+				long inicio = headerBytes + ((long) t << shift) * nodeBytes;
+				long nodos = Math.min(mask + 1, total - ((long) t << shift));
+				
+				if (proyectar && nodos == mask + 1)
+				{
+					//Trozo completo: proyectarlo (copia al escribir, sin tocar el archivo)
+					m.trozos[t] = canal.map(FileChannel.MapMode.PRIVATE, inicio, nodos * nodeBytes);
+				}
+				else
+				{
+					//El último, incompleto, se copia a un trozo entero para que pueda crecer
+					//(y todos si no se puede proyectar)
+					m.trozos[t] = ByteBuffer.allocateDirect((mask + 1) * nodeBytes);
+					m.trozos[t].put(canal.map(FileChannel.MapMode.READ_ONLY, inicio, nodos * nodeBytes));
+					m.trozos[t].clear();
+				}
+				m.enteros[t] = m.trozos[t].asIntBuffer();
+			}
+			m.usados = usados;
+		}
+		finally
+		{
+			raf.close();
+		}
+		
+		return m;
+	}
+	
+	/** Escribe todo un búfer en un canal
+	 * 
+	 * @param canal el canal
+	 * @param b el búfer
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	private static void escribir(WritableByteChannel canal, ByteBuffer b) throws IOException
+	{
+		while (b.hasRemaining())
+			canal.write(b);
+	}
+}
@@ -0,0 +1,191 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Elige automáticamente el orden del modelo para un bloque de datos,
+ * comprimiendo de prueba una muestra con varios órdenes en paralelo.
+ * 
+ * Se queda con el orden que menos tiempo de CPU gasta entre los que
+ * comprimen la muestra, como mucho, un <code>tolerance</code> peor que el mejor de ellos.
+ * 
+ * El selector no guarda nada de una elección a otra, así que se puede compartir entre
+ * hilos y entradas; quien lo usa es quien recuerda el orden si no se elige por bloque
+ * (ver <code>isPerBlock()</code>).
+ * 
+ * @author Javier y Maldo
+ */
+public class OrderSelector
+{
+	/** Órdenes que se prueban por defecto */
+	public static final int[] defaultOrders = {1, 2, 3, 4, 5, 6};
+	/** Tolerancia por defecto: un 2% más de tamaño que el mejor orden */
+	public static final double defaultTolerance = 0.02;
+	/** Tamaño por defecto de la muestra a comprimir de prueba */
+	public static final int defaultSampleSize = 64 * 1024;
+	
+	/** Los órdenes a probar */
+	protected final int[] orders;
+	/** Cuánto peor que el mejor tamaño se admite a cambio de ir más rápido (0.02 = 2%) */
+	protected final double tolerance;
+	/** Cuántos bytes del principio del bloque se comprimen de prueba */
+	protected final int sampleSize;
+	/** Si es cierto, se elige un orden nuevo para cada bloque;
+	 * si no, se elige con el primero de cada stream y se mantiene */
+	protected final boolean perBlock;
+	
+	/** Los hilos que comprimen las muestras */
+	protected final ExecutorService pool;
+	
+	/** Crea un selector con los valores por defecto,
+	 * que elige un orden para cada bloque
+	 */
+	public OrderSelector()
+	{
+		this(defaultOrders, defaultTolerance, defaultSampleSize, true);
+	}
+	
+	/** Crea un selector que elige un orden para cada bloque
+	 * 
+	 * @param tolerance cuánto peor que el mejor tamaño se admite (0.02 = 2%)
+	 */
+	public OrderSelector(double tolerance)
+	{
+		this(defaultOrders, tolerance, defaultSampleSize, true);
+	}
+	
+	/** Crea un selector
+	 * 
+	 * @param orders los órdenes a probar
+	 * @param tolerance cuánto peor que el mejor tamaño se admite (0.02 = 2%)
+	 * @param sampleSize cuántos bytes del principio del bloque se comprimen de prueba
+	 * @param perBlock si se elige un orden nuevo para cada bloque
+	 */
+	public OrderSelector(int[] orders, double tolerance, int sampleSize, boolean perBlock)
+	{
+		if (orders.length == 0)
+			throw new IllegalArgumentException("Sin órdenes que probar");
+		if (tolerance < 0)
+			throw new IllegalArgumentException("Tolerancia negativa");
+		
+		this.orders = orders.clone();
+		this.tolerance = tolerance;
+		this.sampleSize = sampleSize;
+		this.perBlock = perBlock;
+		
+		int hilos = Math.min(orders.length, Runtime.getRuntime().availableProcessors());
+		pool = Executors.newFixedThreadPool(hilos, new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				//Que no impidan terminar al programa
+				Thread t = new Thread(r, "PPM-orden");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/** Indica si hay que elegir un orden nuevo para cada bloque, o si basta
+	 * con elegirlo para el primero de cada stream y mantenerlo en los demás
+	 * 
+	 * @return true si se elige para cada bloque
+	 */
+	public boolean isPerBlock()
+	{
+		return perBlock;
+	}
+	
+	/** Elige el orden con el que comprimir un bloque, siempre con una prueba nueva
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @return el orden elegido
+	 * @throws IOException si alguna compresión de prueba falla
+	 */
+	public int choose(byte[] b, int off, int len) throws IOException
+	{
+		int muestra = Math.min(len, sampleSize);
+		List<Future<long[]>> pruebas = new ArrayList<Future<long[]>>(orders.length);
+		long[][] resultados = new long[orders.length][];
+		int i;
+		
+		for (i = 0; i < orders.length; i++)
+			pruebas.add(pool.submit(new Prueba(b, off, muestra, orders[i])));
+		
+		try
+		{
+			for (i = 0; i < orders.length; i++)
+				resultados[i] = pruebas.get(i).get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Elección de orden interrumpida");
+		}
+		catch (ExecutionException e)
+		{
+			IOException ex = new IOException("Problema al comprimir la muestra");
+			ex.initCause(e.getCause());
+			throw ex;
+		}
+		
+		//El mejor tamaño
+		long mejor = Long.MAX_VALUE;
+		for (i = 0; i < orders.length; i++)
+			mejor = Math.min(mejor, resultados[i][0]);
+		
+		//El más rápido de los que se acercan lo suficiente al mejor
+		int elegido = -1;
+		for (i = 0; i < orders.length; i++)
+		{
+			if (resultados[i][0] > mejor * (1 + tolerance))
+				continue;
+			if (elegido < 0 || resultados[i][1] < resultados[elegido][1])
+				elegido = i;
+		}
+		
+		return orders[elegido];
+	}
+	
+	/** Termina los hilos del selector
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+	
+	/** Una compresión de prueba, que devuelve {tamaño comprimido, tiempo de CPU}
+	 */
+	protected static class Prueba implements Callable<long[]>
+	{
+		private final byte[] b;
+		private final int off, len, order;
+		
+		Prueba(byte[] b, int off, int len, int order)
+		{
+			this.b = b;
+			this.off = off;
+			this.len = len;
+			this.order = order;
+		}
+		
+		public long[] call() throws IOException
+		{
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			boolean cpu = bean.isCurrentThreadCpuTimeSupported();
+			ByteArrayOutputStream comprimido = new ByteArrayOutputStream(len);
+			
+			long inicio = cpu ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+			
+			Encoder enc = CoderPool.getEncoder(comprimido, order);
+			enc.write(b, off, len);
+			enc.finish();
+			
+			long fin = cpu ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+			
+			return new long[] {comprimido.size(), fin - inicio};
+		}
+	}
+}
@@ -10,11 +10,13 @@ public class PPM
 {
 	/** Tamaño del búfer para operaciones de I/O */
 	private final static int buf_len = 1024;
+	/** Cada cuántos bytes sin comprimir se avisa del progreso */
+	private final static long paso_progreso = 1024 * 1024;
 	
 	/** Acciones que puede realizar este programa */
 	private static enum ActionType
 	{
-		COMPRESS, DECOMPRESS
+		COMPRESS, DECOMPRESS, ARCHIVE, EXTRACT
 	}
 	
 	//Parámetros:
@@ -22,8 +24,43 @@ public class PPM
 	private static String archivo = "";
 	/** El orden máximo */
 	private static int order = -1;
+	/** El selector de orden, si el orden es automático */
+	private static OrderSelector selector = null;
 	/** La acción a realizar */
 	private static ActionType action;
+	/** Si se procesa un lote de archivos en lugar de uno solo */
+	private static boolean lote = false;
+	/** Si la lectura y la escritura se hacen en otros hilos, solapadas con la compresión */
+	private static boolean tuberia = false;
+	/** Si se muestran métricas mientras se trabaja */
+	private static boolean metricas = false;
+	/** Si se muestra el progreso de la compresión o descompresión */
+	private static boolean progreso = false;
+	/** Si se guardan puntos de control para poder continuar una compresión interrumpida */
+	private static boolean reanudable = false;
+	/** Si se comprime en modo estático (modelo guardado en el archivo, descompresión rápida) */
+	private static boolean estatico = false;
+	/** Si se comprime con exclusión de actualización */
+	private static boolean exclusion = false;
+	/** Si se filtran los datos en registros de tamaño fijo (ver <code>DeltaFilter</code>) */
+	private static boolean delta = false;
+	/** Si se transforma el texto (ver <code>TextFilter</code>) */
+	private static boolean texto = false;
+	/** Si se comprime con el modelo de coincidencias largas (ver <code>MatchModel</code>) */
+	private static boolean coincidencias = false;
+	/** Si se busca para cada bloque un contexto disperso por columnas (ver <code>SparseContext</code>) */
+	private static boolean columnas = false;
+	/** Si los bloques de registros se separan por campos (ver <code>FieldFilter</code>) */
+	private static boolean campos = false;
+	/** Si al descomprimir se siguen leyendo los bloques que hay detrás de uno dañado */
+	private static boolean continuar = false;
+	/** Si los trozos incompresibles se guardan tal cual (ver <code>PPMOutputStream.setStoreIncompressible</code>) */
+	private static boolean almacenar = true;
+	/** Si los bloques llevan CRC32C (ver <code>PPMOutputStream.setChecksum</code>) */
+	private static boolean crc = true;
+	
+	/** Cada cuántos milisegundos se muestra el resumen de métricas */
+	private final static long periodo_metricas = 5000;
 	
 	/** Punto de entrada del programa PPM
 	 * 
@@ -33,9 +70,32 @@ public class PPM
 
 		InputStream in;
 		OutputStream out;
+		long perdidos = 0;
+		boolean fallo = false;
 		
 		leer_parametros(args);
 		
+		if (metricas)
+			metricas();
+		
+		if (lote)
+		{
+			lote();
+			return;
+		}
+		
+		if (action == ActionType.ARCHIVE || action == ActionType.EXTRACT)
+		{
+			empaquetar();
+			return;
+		}
+		
+		if (reanudable && action == ActionType.COMPRESS && !archivo.equals("-"))
+		{
+			reanudar();
+			return;
+		}
+
 		if (archivo.equals("-"))
 		{
 			in = System.in;
@@ -79,8 +139,23 @@ public class PPM
 				return;
 			}
 			
-			in = new BufferedInputStream(inFile);
-			out = new BufferedOutputStream(outFile);
+			if (tuberia)
+			{
+				in = new ReadAheadInputStream(inFile);
+				out = new WriteBehindOutputStream(outFile);
+			}
+			else
+			{
+				in = new BufferedInputStream(inFile);
+				out = new BufferedOutputStream(outFile);
+			}
+		}
+		
+		ProgressListener indicador = null;
+		if (progreso)
+		{
+			long total = archivo.equals("-") ? -1 : new File(archivo).length();
+			indicador = new Indicador(total, action == ActionType.COMPRESS);
 		}
 		
 		try
@@ -88,18 +163,25 @@ public class PPM
 			switch (action)
 			{
 				case COMPRESS:
-					compress(in, out, order);
+					if (selector != null)
+						compress(in, out, selector, indicador);
+					else
+						compress(in, out, order, indicador);
 				break;
 				case DECOMPRESS:
-					decompress(in, out, order);
+					perdidos = decompress(in, out, indicador);
 				break;
 			}
 		}
 		catch (IOException e) {
 			System.err.println("Problema de entrada/salida");
 			e.printStackTrace();
+			fallo = true;
 		}
 		
+		if (progreso)
+			System.err.println();
+		
 		try
 		{
 			in.close();
@@ -109,6 +191,15 @@ public class PPM
 			System.err.println("Problema al cerrar archivos");
 			e.printStackTrace();
 		}
+		
+		//Con 'k' la salida está incompleta aunque se haya llegado al final
+		if (perdidos > 0)
+		{
+			System.err.println("Se han saltado " + perdidos + " bloques dañados");
+			fallo = true;
+		}
+		if (fallo)
+			System.exit(1);
 	}
 	
 	/** Lee los parámetros enviados al programa (desde linea de comandos o modo interactivo)
@@ -118,14 +209,14 @@ public class PPM
 	public static void leer_parametros(String[] args)
 	{
 		String accion;
-		String orden;
+		String orden = null;
 		
-		if (args.length < 3 || args[1] == "i")
+		if (args.length < 2 || args[0].equals("i"))
 		{
 			//Modo interactivo
 
 			//Leer el nombre del archivo de entrada
-			System.out.print("Acción (C/D): ");
+			System.out.print("Acción (C/D/A/E): ");
 			try
 			{
 
@@ -166,33 +257,37 @@ public class PPM
 			if (archivo.length() == 0) return; //Salir
 			
 			
-			//Leer el orden
-			System.out.print("Orden: ");
-			try
+			//Leer el orden (solo para comprimir, al descomprimir va en el archivo)
+			if (accion.toLowerCase().indexOf('c') >= 0 || accion.toLowerCase().indexOf('a') >= 0)
 			{
+				System.out.print("Orden (número o auto): ");
+				try
+				{
 
-				BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+					BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 				
-				orden = br.readLine();
+					orden = br.readLine();
 
-			}
-			catch (Exception e)
-			{
-				System.err.println("Problema al leer el orden");
-				e.printStackTrace();
-				System.exit(1);
-				return;
-			}
+				}
+				catch (Exception e)
+				{
+					System.err.println("Problema al leer el orden");
+					e.printStackTrace();
+					System.exit(1);
+					return;
+				}
 			
-			if (orden == null || orden.length() == 0)
-				return; //Salir
+				if (orden == null || orden.length() == 0)
+					return; //Salir
+			}
 		}
 		else
 		{
 			//Modo no interactivo
 			accion = args[0];
 			archivo = args[1];
-			orden = args[2];
+			if (args.length > 2)
+				orden = args[2];
 			
 		}
 		
@@ -207,6 +302,108 @@ public class PPM
 		{
 			action = ActionType.DECOMPRESS;
 		}
+		if (accion.indexOf('a') >= 0)
+		{
+			action = ActionType.ARCHIVE;
+		}
+		if (accion.indexOf('e') >= 0)
+		{
+			action = ActionType.EXTRACT;
+		}
+		if (accion.indexOf('l') >= 0)
+		{
+			lote = true;
+		}
+		if (accion.indexOf('p') >= 0)
+		{
+			tuberia = true;
+		}
+		if (accion.indexOf('m') >= 0)
+		{
+			metricas = true;
+		}
+		if (accion.indexOf('v') >= 0)
+		{
+			progreso = true;
+		}
+		if (accion.indexOf('r') >= 0)
+		{
+			reanudable = true;
+		}
+		if (accion.indexOf('o') >= 0)
+		{
+			Model.setOffHeap(true);
+		}
+		if (accion.indexOf('s') >= 0)
+		{
+			estatico = true;
+		}
+		if (accion.indexOf('u') >= 0)
+		{
+			exclusion = true;
+		}
+		if (accion.indexOf('f') >= 0)
+		{
+			delta = true;
+		}
+		if (accion.indexOf('t') >= 0)
+		{
+			texto = true;
+		}
+		if (accion.indexOf('h') >= 0)
+		{
+			coincidencias = true;
+		}
+		if (accion.indexOf('g') >= 0)
+		{
+			columnas = true;
+		}
+		if (accion.indexOf('j') >= 0)
+		{
+			campos = true;
+		}
+		if (accion.indexOf('k') >= 0)
+		{
+			continuar = true;
+		}
+		if (accion.indexOf('n') >= 0)
+		{
+			almacenar = false;
+		}
+		if (accion.indexOf('q') >= 0)
+		{
+			crc = false;
+		}
+		
+		if (action != ActionType.COMPRESS && action != ActionType.ARCHIVE)
+			return; //Al descomprimir el orden se lee del archivo
+		
+		if (orden == null)
+		{
+			System.err.println("Falta el orden");
+			System.exit(1);
+			return;
+		}
+		
+		//Orden automático: "auto" o "auto:tolerancia"
+		if (orden.toLowerCase().startsWith("auto"))
+		{
+			int dospuntos = orden.indexOf(':');
+			try
+			{
+				if (dospuntos < 0)
+					selector = new OrderSelector();
+				else
+					selector = new OrderSelector(Double.parseDouble(orden.substring(dospuntos + 1)));
+			}
+			catch (Exception e)
+			{
+				System.err.println("Problema al leer la tolerancia del orden automático");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			return;
+		}
 		
 		//Convertir el orden a valor numérico
 		try
@@ -226,7 +423,127 @@ public class PPM
 		}
 	}
 	
-	/** Comprime
+	/** Procesa un lote de archivos en un mismo proceso, con un hilo por procesador:
+	 * todos los de un directorio, los de una lista ("@lista.txt")
+	 * o peticiones enmarcadas por la entrada estándar ("-", ver <code>BatchCompressor.serve</code>)
+	 */
+	private static void lote()
+	{
+		BatchCompressor batch = new BatchCompressor(action == ActionType.COMPRESS, order, selector);
+		long inicio = System.currentTimeMillis();
+		
+		try
+		{
+			if (archivo.equals("-"))
+				batch.serve(System.in, System.out);
+			else if (archivo.startsWith("@"))
+				batch.submitList(new File(archivo.substring(1)));
+			else
+				batch.submitDirectory(new File(archivo));
+			
+			batch.shutdown();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problema de entrada/salida");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("Interrumpido");
+			System.exit(1);
+		}
+		
+		System.err.println(batch.summary() + " en " + (System.currentTimeMillis() - inicio) + " ms");
+		System.exit(batch.getErrors() == 0 ? 0 : 1);
+	}
+	
+	/** Publica las métricas por JMX, escribe un resumen periódico por la salida de error
+	 * y otro al terminar el programa
+	 */
+	private static void metricas()
+	{
+		Metrics.register();
+		Metrics.startReporter(periodo_metricas, System.err);
+		
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run()
+			{
+				System.err.println(Metrics.global.getSummary());
+			}
+		});
+	}
+	
+	/** Comprime guardando un punto de control (<code>archivo.ppm.ckpt</code>) tras cada bloque,
+	 * o continúa desde el último si una compresión anterior se interrumpió
+	 */
+	private static void reanudar()
+	{
+		ResumableCompressor compresor = new ResumableCompressor(order, selector,
+				PPMOutputStream.defaultBlockSize, ResumableCompressor.defaultInterval) {
+			protected PPMOutputStream crearSalida(OutputStream out)
+			{
+				PPMOutputStream pout = super.crearSalida(out);
+				configurar(pout);
+				return pout;
+			}
+		};
+		
+		if (progreso)
+			compresor.setProgressListener(new Indicador(-1, true), paso_progreso);
+		
+		try
+		{
+			long hecho = compresor.compress(new File(archivo), new File(archivo + ".ppm"),
+					new File(archivo + ".ppm.ckpt"));
+			
+			if (progreso)
+				System.err.println();
+			if (hecho > 0)
+				System.err.println("Continuado desde el byte " + hecho);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problema de entrada/salida");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		if (selector != null)
+			selector.shutdown();
+	}
+	
+	/** Empaqueta un directorio en un solo archivo (<code>directorio.ppa</code>),
+	 * o extrae un archivo empaquetado (en <code>archivo.dir</code>)
+	 */
+	private static void empaquetar()
+	{
+		try
+		{
+			if (action == ActionType.ARCHIVE)
+			{
+				new ArchiveWriter(order, selector).write(new File(archivo), new File(archivo + ".ppa"));
+			}
+			else
+			{
+				ArchiveReader lector = new ArchiveReader(new File(archivo));
+				lector.extractAll(new File(archivo + ".dir"));
+				System.err.println(lector.list().size() + " archivos extraídos");
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Problema de entrada/salida");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		if (selector != null)
+			selector.shutdown();
+	}
+	
+	/** Comprime con un orden fijo
 	 * 
 	 * @param in desde donde
 	 * @param out hacia donde
@@ -235,44 +552,182 @@ public class PPM
 	 */
 	public static void compress(InputStream in, OutputStream out, int order) throws IOException
 	{
-		Encoder enc;
-		enc = new HuffmanEncoder(out, order);
-
-		
-		byte[] buf = new byte[buf_len];
-		int read;
-		read = in.read(buf);
-		while (read > 0)
-		{
-			enc.write(buf, 0, read);
-			read = in.read(buf);
-		};
-		enc.close();
+		compress(in, out, order, null);
 	}
-
-	/** Descomprime
+	
+	/** Comprime con un orden fijo, avisando del progreso cada MB
 	 * 
 	 * @param in desde donde
 	 * @param out hacia donde
 	 * @param order orden máximo
+	 * @param listener a quién avisar del progreso, o null
 	 * @throws IOException si hay un problema de entrada/salida o defecto con el archivo
 	 */
-	public static void decompress(InputStream in, OutputStream out, int order) throws IOException
+	public static void compress(InputStream in, OutputStream out, int order, ProgressListener listener) throws IOException
 	{
-		Decoder dec;
-		dec = new HuffmanDecoder(in, order);
+		PPMOutputStream enc = new PPMOutputStream(out, order);
+		enc.setProgressListener(listener, paso_progreso);
+		configurar(enc);
+		copy(in, enc);
+	}
 
+	/** Comprime eligiendo el orden de cada bloque automáticamente
+	 * 
+	 * @param in desde donde
+	 * @param out hacia donde
+	 * @param selector el selector de orden
+	 * @throws IOException si hay un problema de entrada/salida o defecto con el archivo
+	 */
+	public static void compress(InputStream in, OutputStream out, OrderSelector selector) throws IOException
+	{
+		compress(in, out, selector, null);
+	}
+	
+	/** Comprime eligiendo el orden de cada bloque automáticamente, avisando del progreso cada MB
+	 * 
+	 * @param in desde donde
+	 * @param out hacia donde
+	 * @param selector el selector de orden
+	 * @param listener a quién avisar del progreso, o null
+	 * @throws IOException si hay un problema de entrada/salida o defecto con el archivo
+	 */
+	public static void compress(InputStream in, OutputStream out, OrderSelector selector, ProgressListener listener) throws IOException
+	{
+		PPMOutputStream enc = new PPMOutputStream(out, selector);
+		enc.setProgressListener(listener, paso_progreso);
+		configurar(enc);
+		copy(in, enc);
+	}
+
+	/** Aplica a una stream de compresión las opciones elegidas en la acción
+	 * (modo estático, exclusión, filtros, coincidencias, contexto por columnas, campos,
+	 * guardar tal cual lo incompresible, CRC)
+	 * 
+	 * @param enc la stream, antes de escribir nada
+	 */
+	private static void configurar(PPMOutputStream enc)
+	{
+		enc.setStaticModel(estatico, PPMOutputStream.defaultMinCount);
+		enc.setUpdateExclusion(exclusion);
+		enc.setDeltaFilter(delta);
+		enc.setTextFilter(texto);
+		enc.setMatchModel(coincidencias);
+		enc.setColumnContext(columnas);
+		enc.setFieldSplit(campos);
+		enc.setStoreIncompressible(almacenar);
+		enc.setChecksum(crc);
+	}
+	
+	/** Descomprime (el orden de cada bloque va en el archivo)
+	 * 
+	 * @param in desde donde
+	 * @param out hacia donde
+	 * @return cuántos bloques dañados se han saltado (solo si se ha pedido seguir tras ellos)
+	 * @throws IOException si hay un problema de entrada/salida o defecto con el archivo
+	 */
+	public static long decompress(InputStream in, OutputStream out) throws IOException
+	{
+		return decompress(in, out, null);
+	}
+	
+	/** Descomprime, avisando del progreso cada MB
+	 * 
+	 * @param in desde donde
+	 * @param out hacia donde
+	 * @param listener a quién avisar del progreso, o null
+	 * @return cuántos bloques dañados se han saltado (solo si se ha pedido seguir tras ellos)
+	 * @throws IOException si hay un problema de entrada/salida o defecto con el archivo
+	 */
+	public static long decompress(InputStream in, OutputStream out, ProgressListener listener) throws IOException
+	{
+		PPMInputStream dec = new PPMInputStream(in);
+		dec.setProgressListener(listener, paso_progreso);
 		
 		byte[] buf = new byte[buf_len];
 		int read;
+		long perdidos = 0;
 		
-		read = dec.read(buf);
-		while (read > 0)
+		while (true)
 		{
+			try
+			{
+				read = dec.read(buf);
+			}
+			catch (CorruptBlockException e)
+			{
+				//El bloque dañado ya está saltado: seguir con el siguiente, si se ha pedido
+				if (!continuar)
+					throw e;
+				perdidos++;
+				if (!e.isRecoverable())
+				{
+					//Con la cabecera dañada no se sabe dónde sigue: quedarse con lo leído
+					System.err.println(e.getMessage() + ", se pierde el resto del archivo");
+					break;
+				}
+				System.err.println(e.getMessage() + ", se pierden " + e.getLength() + " bytes");
+				continue;
+			}
+			
+			if (read <= 0)
+				break;
 			out.write(buf, 0, read);
-			read = dec.read(buf);
 		}
 		dec.close();
+		
+		return perdidos;
 	}
 
-}
+	/** Copia toda la entrada en la stream de compresión y la cierra
+	 * 
+	 * @param in desde donde
+	 * @param enc hacia donde
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	private static void copy(InputStream in, OutputStream enc) throws IOException
+	{
+		byte[] buf = new byte[buf_len];
+		int read;
+		read = in.read(buf);
+		while (read > 0)
+		{
+			enc.write(buf, 0, read);
+			read = in.read(buf);
+		};
+		enc.close();
+	}
+	
+	/** Muestra el progreso en una línea de la salida de error, que se va reescribiendo
+	 */
+	private static class Indicador implements ProgressListener
+	{
+		/** El tamaño del archivo de entrada, o -1 si no se conoce */
+		private final long total;
+		/** Si se comprime (la entrada son los bytes originales) o se descomprime */
+		private final boolean comprimiendo;
+		
+		Indicador(long total, boolean comprimiendo)
+		{
+			this.total = total;
+			this.comprimiendo = comprimiendo;
+		}
+		
+		public void progress(long originales, long comprimidos, double ratio, double mbPorSegundo)
+		{
+			double mb = originales / (1024.0 * 1024);
+			long hecho = Math.min(comprimiendo ? originales : comprimidos, total);
+			
+			String linea = String.format("\r%9.1f MB  %5.1f%%  %6.2f MB/s", mb, ratio * 100, mbPorSegundo);
+			
+			//Tiempo restante, suponiendo que se sigue a la misma velocidad
+			if (total > 0 && hecho > 0 && mbPorSegundo > 0)
+			{
+				double segundos = mb / mbPorSegundo;
+				long quedan = Math.round(segundos * (total - hecho) / hecho);
+				linea += String.format("  %3d%%  quedan %d:%02d  ", hecho * 100 / total, quedan / 60, quedan % 60);
+			}
+			
+			System.err.print(linea);
+		}
+	}
+}
\ No newline at end of file
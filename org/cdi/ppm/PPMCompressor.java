@@ -0,0 +1,194 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.nio.*;
+
+/** Compresor PPM orientado a búferes, al estilo de <code>java.util.zip.Deflater</code>.
+ * 
+ * Produce el mismo formato que <code>PPMOutputStream</code>. Después de
+ * <code>finish()</code> hay que seguir llamando a <code>compress</code> hasta que
+ * <code>finished()</code> sea cierto; con <code>reset()</code> se puede comprimir
+ * otro mensaje reutilizando el modelo ya reservado.
+ * 
+ * <pre>
+ * c.compress(entrada, salida);
+ * c.finish();
+ * while (!c.finished())
+ *     c.compress(vacio, salida); //vaciando salida cuando haga falta
+ * c.reset();
+ * </pre>
+ * 
+ * @author Javier y Maldo
+ */
+public class PPMCompressor
+{
+	/** Los datos comprimidos que aún no se han entregado */
+	protected final Pendiente pendiente = new Pendiente();
+	/** La stream que comprime hacia <code>pendiente</code> */
+	protected final PPMOutputStream ppm;
+	
+	/** Indica si se ha llamado a <code>finish()</code> */
+	protected boolean finishCalled = false;
+	/** Total de bytes recibidos desde el último <code>reset()</code> */
+	protected long totalIn = 0;
+	/** Total de bytes entregados desde el último <code>reset()</code> */
+	protected long totalOut = 0;
+	
+	/** Crea un compresor con un orden fijo
+	 * 
+	 * @param order orden del modelo PPM
+	 */
+	public PPMCompressor(int order)
+	{
+		this(order, PPMOutputStream.defaultBlockSize);
+	}
+	
+	/** Crea un compresor con un orden fijo
+	 * 
+	 * @param order orden del modelo PPM
+	 * @param blockSize tamaño de los bloques (lo más que se guarda antes de comprimir)
+	 */
+	public PPMCompressor(int order, int blockSize)
+	{
+		ppm = new PPMOutputStream(pendiente, order, null, blockSize);
+	}
+	
+	/** Crea un compresor que elige el orden de cada bloque automáticamente
+	 * 
+	 * @param selector el selector de orden
+	 * @param blockSize tamaño de los bloques (lo más que se guarda antes de comprimir)
+	 */
+	public PPMCompressor(OrderSelector selector, int blockSize)
+	{
+		ppm = new PPMOutputStream(pendiente, -1, selector, blockSize);
+	}
+	
+	/** Indica si los bloques llevan CRC32C (por defecto sí, ver <code>PPMOutputStream.setChecksum</code>).
+	 * En mensajes cortos los CRC son casi la mitad de lo que ocupa el formato: un mensaje
+	 * de 2 bytes queda en 32 bytes con ellos y en 20 sin ellos. Sirve para los mensajes que
+	 * empiecen después (y se mantiene tras <code>reset()</code>).
+	 * 
+	 * @param checksum true para añadir los CRC
+	 */
+	public void setChecksum(boolean checksum)
+	{
+		ppm.setChecksum(checksum);
+	}
+	
+	/** Consume todos los bytes que le quedan a <code>in</code> y copia en <code>out</code>
+	 * todos los datos comprimidos que quepan
+	 * 
+	 * @param in los datos a comprimir (puede estar vacío)
+	 * @param out donde dejar los datos comprimidos
+	 * @return el número de bytes escritos en <code>out</code>
+	 * @throws IOException si hay un problema al comprimir
+	 * @throws IllegalStateException si se dan datos después de <code>finish()</code>
+	 */
+	public int compress(ByteBuffer in, ByteBuffer out) throws IOException
+	{
+		if (in.hasRemaining())
+		{
+			if (finishCalled)
+				throw new IllegalStateException("Compresión ya terminada");
+			
+			totalIn += in.remaining();
+			ppm.write(in);
+		}
+		
+		int n = pendiente.drainTo(out);
+		totalOut += n;
+		
+		return n;
+	}
+	
+	/** Indica que ya no hay más datos: comprime el último bloque y la marca de final,
+	 * que se entregarán en las siguientes llamadas a <code>compress</code>
+	 * 
+	 * @throws IOException si hay un problema al comprimir
+	 */
+	public void finish() throws IOException
+	{
+		finishCalled = true;
+		ppm.finish();
+	}
+	
+	/** Indica si se ha terminado y ya se han entregado todos los datos comprimidos
+	 * 
+	 * @return true si no queda nada por entregar
+	 */
+	public boolean finished()
+	{
+		return finishCalled && pendiente.size() == 0;
+	}
+	
+	/** Prepara el compresor para un mensaje nuevo, descartando lo pendiente
+	 * pero conservando el modelo y los búferes reservados
+	 */
+	public void reset()
+	{
+		pendiente.reset();
+		ppm.reset();
+		finishCalled = false;
+		totalIn = 0;
+		totalOut = 0;
+	}
+	
+	/** Devuelve el total de bytes recibidos desde el último <code>reset()</code>
+	 * 
+	 * @return bytes sin comprimir consumidos
+	 */
+	public long getTotalIn()
+	{
+		return totalIn;
+	}
+	
+	/** Devuelve el total de bytes entregados desde el último <code>reset()</code>
+	 * 
+	 * @return bytes comprimidos entregados
+	 */
+	public long getTotalOut()
+	{
+		return totalOut;
+	}
+	
+	/** Búfer de salida que se va vaciando en <code>ByteBuffer</code>s
+	 */
+	protected static class Pendiente extends ByteArrayOutputStream
+	{
+		/** Siguiente byte por entregar */
+		private int pos = 0;
+		
+		/** Copia en <code>dst</code> todo lo que quepa
+		 * 
+		 * @param dst donde copiar
+		 * @return el número de bytes copiados
+		 */
+		int drainTo(ByteBuffer dst)
+		{
+			int n = Math.min(dst.remaining(), count - pos);
+			dst.put(buf, pos, n);
+			pos += n;
+			
+			if (pos == count)
+				reset();
+			
+			return n;
+		}
+		
+		/** Lo que queda por entregar
+		 * 
+		 * @return bytes pendientes
+		 */
+		public int size()
+		{
+			return count - pos;
+		}
+		
+		/** Olvida todo lo pendiente
+		 */
+		public void reset()
+		{
+			super.reset();
+			pos = 0;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+/** Decompresor PPM orientado a búferes, al estilo de <code>java.util.zip.Inflater</code>.
+ * 
+ * Lee el formato de <code>PPMOutputStream</code> (y de <code>PPMCompressor</code>).
+ * Los datos comprimidos pueden llegar troceados de cualquier manera; cada bloque
+ * se descomprime en cuanto está completo. Con <code>reset()</code> se puede
+ * descomprimir otro mensaje reutilizando el modelo ya reservado.
+ * 
+ * @author Javier y Maldo
+ */
+public class PPMDecompressor
+{
+	/** Los datos comprimidos recibidos y aún no descomprimidos */
+	protected final Acumulado entrada = new Acumulado();
+	/** La stream que descomprime desde <code>entrada</code> */
+	protected final PPMInputStream ppm = new PPMInputStream(entrada);
+	
+	/** Para comprobar el CRC32C de las cabeceras de los bloques antes de fiarse de su longitud */
+	protected final CRC32C crc = new CRC32C();
+	
+	/** Total de bytes recibidos desde el último <code>reset()</code> */
+	protected long totalIn = 0;
+	/** Total de bytes entregados desde el último <code>reset()</code> */
+	protected long totalOut = 0;
+	
+	/** Consume todos los bytes que le quedan a <code>in</code> y copia en <code>out</code>
+	 * todos los datos descomprimidos que quepan
+	 * 
+	 * @param in los datos comprimidos (puede estar vacío)
+	 * @param out donde dejar los datos descomprimidos
+	 * @return el número de bytes escritos en <code>out</code>
+	 * @throws IOException si los datos comprimidos están mal formados
+	 */
+	public int decompress(ByteBuffer in, ByteBuffer out) throws IOException
+	{
+		int n = 0;
+		
+		totalIn += in.remaining();
+		entrada.append(in);
+		
+		while (out.hasRemaining())
+		{
+			if (ppm.available() > 0)
+				n += ppm.drainTo(out);
+			else if (ppm.eofReached || !blockReady() || !ppm.readBlock())
+				break;
+		}
+		
+		entrada.compact();
+		totalOut += n;
+		
+		return n;
+	}
+	
+	/** Indica si hace falta recibir más datos comprimidos para poder seguir
+	 * 
+	 * @return true si no hay nada descomprimido por entregar ni un bloque completo
+	 */
+	public boolean needsInput()
+	{
+		return !ppm.eofReached && ppm.available() == 0 && !blockReady();
+	}
+	
+	/** Indica si se ha llegado a la marca de final y ya se han entregado todos los datos
+	 * 
+	 * @return true si el mensaje está completo
+	 */
+	public boolean finished()
+	{
+		return ppm.eofReached && ppm.available() == 0;
+	}
+	
+	/** Devuelve cuántos bytes de la entrada sobran tras la marca de final
+	 * 
+	 * @return bytes recibidos y no usados
+	 */
+	public int getRemaining()
+	{
+		return entrada.available();
+	}
+	
+	/** Prepara el decompresor para un mensaje nuevo, descartando lo pendiente
+	 * pero conservando el modelo y los búferes reservados
+	 */
+	public void reset()
+	{
+		entrada.clear();
+		ppm.restart();
+		totalIn = 0;
+		totalOut = 0;
+	}
+	
+	/** Devuelve el total de bytes recibidos desde el último <code>reset()</code>
+	 * 
+	 * @return bytes comprimidos consumidos
+	 */
+	public long getTotalIn()
+	{
+		return totalIn;
+	}
+	
+	/** Devuelve el total de bytes entregados desde el último <code>reset()</code>
+	 * 
+	 * @return bytes descomprimidos entregados
+	 */
+	public long getTotalOut()
+	{
+		return totalOut;
+	}
+	
+	/** Comprueba si la entrada ya tiene el siguiente bloque (o la marca de final) completo,
+	 * siguiendo el formato descrito en <code>PPMOutputStream</code>
+	 * 
+	 * @return true si <code>ppm.readBlock()</code> no se quedará sin datos
+	 */
+	protected boolean blockReady()
+	{
+		int necesario = 0, control = 0, inicio, flags, clen;
+		
+		if (ppm.perdido)
+			return true; //Que readBlock lance la excepción
+		if (!ppm.headerRead)
+		{
+			necesario = PPMOutputStream.magic.length;
+			if (entrada.available() < necesario)
+				return false;
+			if (entrada.peekByte(necesario - 1) >= PPMOutputStream.checkedVersion)
+				control = 4;
+		}
+		else if (ppm.cabeceras)
+			control = 4;
+		
+		if (entrada.available() < necesario + 4 + control)
+			return false;
+		if (entrada.peekInt(necesario) == 0)
+			return true; //Marca de final
+		
+		inicio = necesario;
+		necesario += 4 + 1 + 1 + 4;
+		if (entrada.available() < necesario)
+			return false;
+		flags = entrada.peekByte(inicio + 5);
+		clen = entrada.peekInt(necesario - 4);
+		
+		if (control != 0)
+		{
+			necesario += control;
+			if (entrada.available() < necesario)
+				return false;
+			//Con la cabecera dañada no se puede esperar a clen bytes: que readBlock lance la excepción
+			PPMOutputStream.crcCabecera(crc, entrada.peekInt(inicio), entrada.peekByte(inicio + 4), flags, clen);
+			if (entrada.peekInt(necesario - 4) != (int) crc.getValue())
+				return true;
+		}
+		
+		return clen < 0 || entrada.available() - necesario >= clen;
+	}
+	
+	/** Entrada que se va llenando desde <code>ByteBuffer</code>s
+	 */
+	protected static class Acumulado extends InputStream
+	{
+		/** Los datos */
+		private byte[] buf = new byte[1024];
+		/** Siguiente byte por leer */
+		private int pos = 0;
+		/** Fin de los datos */
+		private int count = 0;
+		
+		/** Añade todos los bytes que le quedan a <code>src</code>
+		 * 
+		 * @param src los bytes
+		 */
+		void append(ByteBuffer src)
+		{
+			int n = src.remaining();
+			
+			if (count + n > buf.length)
+			{
+				compact();
+				if (count + n > buf.length)
+				{
+					byte[] nuevo = new byte[Math.max(buf.length * 2, count + n)];
+					System.arraycopy(buf, 0, nuevo, 0, count);
+					buf = nuevo;
+				}
+			}
+			
+			src.get(buf, count, n);
+			count += n;
+		}
+		
+		/** Mueve los datos sin leer al principio del búfer
+		 */
+		void compact()
+		{
+			if (pos == 0) return;
+			
+			System.arraycopy(buf, pos, buf, 0, count - pos);
+			count -= pos;
+			pos = 0;
+		}
+		
+		/** Olvida todos los datos
+		 */
+		void clear()
+		{
+			pos = 0;
+			count = 0;
+		}
+		
+		/** Lee un byte sin consumirlo
+		 * 
+		 * @param off a cuántos bytes del siguiente por leer
+		 * @return el byte (0 a 255)
+		 */
+		int peekByte(int off)
+		{
+			return buf[pos + off] & 0xFF;
+		}
+		
+		/** Lee un entero (big-endian) sin consumirlo
+		 * 
+		 * @param off a cuántos bytes del siguiente por leer
+		 * @return el entero
+		 */
+		int peekInt(int off)
+		{
+			int p = pos + off;
+			return ((buf[p] & 0xFF) << 24) | ((buf[p + 1] & 0xFF) << 16)
+				| ((buf[p + 2] & 0xFF) << 8) | (buf[p + 3] & 0xFF);
+		}
+		
+		public int read()
+		{
+			return (pos < count) ? (buf[pos++] & 0xFF) : -1;
+		}
+		
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0) return 0;
+			if (pos == count) return -1;
+			
+			int n = Math.min(len, count - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			
+			return n;
+		}
+		
+		public int available()
+		{
+			return count - pos;
+		}
+	}
+}
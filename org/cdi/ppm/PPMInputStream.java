@@ -0,0 +1,414 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+/** Lee un archivo PPM escrito por <code>PPMOutputStream</code>,
+ * descomprimiendo sus bloques cada uno con el orden que tenga guardado.
+ * 
+ * Si un bloque lleva CRC y no coincide, la lectura lanza una <code>CorruptBlockException</code>
+ * sin llegar a descomprimirlo. El bloque queda saltado, así que se puede seguir leyendo
+ * desde el siguiente (perdiendo solo los datos de ese bloque). Si lo que no coincide es
+ * el CRC de la cabecera (desde la versión 4), ya no se puede seguir.
+ * 
+ * @author Javier y Maldo
+ */
+public class PPMInputStream extends FilterInputStream
+{
+	/** De cuánto en cuánto se reserva memoria para los datos comprimidos de un bloque */
+	protected static final int trozoLectura = 1024 * 1024;
+	
+	/** Entrada de datos con formato */
+	protected final DataInputStream din;
+	
+	/** El bloque descomprimido actual */
+	protected byte[] block = new byte[0];
+	/** Cuántos bytes tiene el bloque actual */
+	protected int blockLen = 0;
+	/** Siguiente byte por leer del bloque actual */
+	protected int blockPos = 0;
+	/** Donde se decodifican los bloques transformados por <code>TextFilter</code> */
+	protected byte[] texto = new byte[0];
+	
+	/** Cuántos bloques se han leído (incluidos los dañados) */
+	protected long bloques = 0;
+	/** Para comprobar el CRC32C de los bloques */
+	protected final CRC32C crc = new CRC32C();
+	
+	/** Indica si ya se ha leído la cabecera */
+	protected boolean headerRead = false;
+	/** Indica si los bloques llevan las distancias de su contexto (desde la versión 2, ver <code>PPMOutputStream.setSparseContext</code>) */
+	protected boolean dispersos = false;
+	/** Indica si los bloques pueden ir separados por campos (versión 3, ver <code>PPMOutputStream.setFieldSplit</code>) */
+	protected boolean campos = false;
+	/** Indica si las cabeceras de los bloques llevan su CRC32C (versión 4, ver <code>PPMOutputStream.setChecksum</code>) */
+	protected boolean cabeceras = false;
+	/** Indica si se ha dañado una cabecera: no se sabe dónde sigue el archivo */
+	protected boolean perdido = false;
+	/** Indica si hemos llegado a la marca de final */
+	protected boolean eofReached = false;
+	
+	/** A quién avisar del progreso, o null */
+	protected Progreso progreso = null;
+	
+	/** Crea una nueva stream de lectura
+	 * 
+	 * @param in de donde leer el archivo comprimido
+	 */
+	public PPMInputStream(InputStream in)
+	{
+		super(in);
+		din = new DataInputStream(in);
+	}
+	
+	/** Pide que se avise del progreso cada cierto número de bytes descomprimidos
+	 * (también dentro de cada bloque, y una vez más al final)
+	 * 
+	 * @param listener a quién avisar, o null para dejar de hacerlo
+	 * @param cada cada cuántos bytes sin comprimir
+	 */
+	public void setProgressListener(ProgressListener listener, long cada)
+	{
+		progreso = (listener == null) ? null : new Progreso(listener, cada);
+	}
+	
+	/** Lee un byte descomprimido
+	 * 
+	 * @return el byte (0 a 255), o -1 si se ha llegado al final
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	public int read() throws IOException
+	{
+		if (blockPos == blockLen && !readBlock())
+			return -1;
+		
+		return block[blockPos++] & 0xFF;
+	}
+	
+	/** Lee hasta <code>len</code> bytes descomprimidos
+	 * 
+	 * @param b el array de bytes
+	 * @param off el índice del primer byte usable del búffer
+	 * @param len la longitud del buffer
+	 * @return el número de bytes leídos, o -1 si se ha llegado al final
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0) return 0;
+		
+		if (blockPos == blockLen && !readBlock())
+			return -1;
+		
+		int n = Math.min(len, blockLen - blockPos);
+		System.arraycopy(block, blockPos, b, off, n);
+		blockPos += n;
+		
+		return n;
+	}
+	
+	/** Copia en un <code>ByteBuffer</code> todos los bytes que quepan del bloque actual
+	 * (sin descomprimir otro)
+	 * 
+	 * @param dst donde copiar
+	 * @return el número de bytes copiados
+	 */
+	int drainTo(ByteBuffer dst)
+	{
+		int n = Math.min(dst.remaining(), blockLen - blockPos);
+		dst.put(block, blockPos, n);
+		blockPos += n;
+		
+		return n;
+	}
+	
+	/** Olvida el estado de la stream, para leer un archivo nuevo
+	 * de la misma entrada
+	 */
+	void restart()
+	{
+		blockLen = 0;
+		blockPos = 0;
+		headerRead = false;
+		eofReached = false;
+		perdido = false;
+	}
+	
+	/** Salta hasta <code>n</code> bytes descomprimidos
+	 * 
+	 * @param n el número de bytes a saltar
+	 * @return el número de bytes saltados
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	public long skip(long n) throws IOException
+	{
+		if (n <= 0 || (blockPos == blockLen && !readBlock()))
+			return 0;
+		
+		int saltar = (int) Math.min(n, blockLen - blockPos);
+		blockPos += saltar;
+		
+		return saltar;
+	}
+	
+	/** Devuelve cuántos bytes se pueden leer sin descomprimir otro bloque
+	 * 
+	 * @return bytes disponibles en el bloque actual
+	 */
+	public int available()
+	{
+		return blockLen - blockPos;
+	}
+	
+	/** No se puede volver atrás
+	 * 
+	 * @return false
+	 */
+	public boolean markSupported()
+	{
+		return false;
+	}
+	
+	/** Comprueba la cabecera, si aún no se ha hecho
+	 * 
+	 * @throws IOException si no es un archivo PPM
+	 */
+	protected void readHeader() throws IOException
+	{
+		if (headerRead) return;
+		
+		byte[] cabecera = new byte[PPMOutputStream.magic.length];
+		din.readFully(cabecera);
+		
+		int i;
+		for (i = 0; i < cabecera.length - 1; i++)
+		{
+			if (cabecera[i] != PPMOutputStream.magic[i])
+				throw new IOException("No es un archivo PPM");
+		}
+		
+		//La versión
+		if (cabecera[i] < PPMOutputStream.magic[i] || cabecera[i] > PPMOutputStream.checkedVersion)
+			throw new IOException("No es un archivo PPM");
+		dispersos = cabecera[i] >= PPMOutputStream.sparseVersion;
+		campos = cabecera[i] >= PPMOutputStream.fieldVersion;
+		cabeceras = cabecera[i] >= PPMOutputStream.checkedVersion;
+		
+		headerRead = true;
+	}
+	
+	/** Lee y descomprime el siguiente bloque
+	 * 
+	 * @return false si ya no quedan bloques
+	 * @throws IOException si ocurre un error de entrada/salida o el archivo está mal formado
+	 */
+	protected boolean readBlock() throws IOException
+	{
+		//Si se lanza una excepción, el bloque anterior ya no está
+		blockLen = 0;
+		blockPos = 0;
+		
+		if (eofReached) return false;
+		if (perdido)
+			throw new IOException("No se puede seguir leyendo tras una cabecera dañada");
+		
+		readHeader();
+		
+		int len = din.readInt();
+		if (len == 0)
+		{
+			//Un int dañado a 0 no puede pasar por la marca de final
+			if (cabeceras && din.readInt() != PPMOutputStream.crcFinal(crc))
+			{
+				perdido = true;
+				throw new CorruptBlockException(bloques);
+			}
+			eofReached = true;
+			if (progreso != null)
+				progreso.terminar();
+			return false;
+		}
+		
+		int order = din.readUnsignedByte();
+		int flags = din.readUnsignedByte();
+		int clen = din.readInt();
+		
+		//Comprobar la cabecera antes de fiarse de las longitudes
+		PPMOutputStream.crcCabecera(crc, len, order, flags, clen);
+		if (cabeceras && din.readInt() != (int) crc.getValue())
+		{
+			perdido = true;
+			throw new CorruptBlockException(bloques);
+		}
+		
+		if (len < 0 || clen < 0)
+			throw new IOException("Bloque inválido");
+		
+		byte[] datos = leerDatos(clen);
+		long numero = bloques++;
+		
+		//Comprobar el CRC antes que nada, porque si no coincide todo lo demás puede estar mal
+		if ((flags & PPMOutputStream.crcFlag) != 0)
+		{
+			if (clen < 4)
+				throw new CorruptBlockException(numero, len);
+			clen -= 4;
+			PPMOutputStream.crcCabecera(crc, len, order, flags, clen + 4);
+			crc.update(datos, 0, clen);
+			if ((int) crc.getValue() != ByteBuffer.wrap(datos, clen, 4).getInt())
+				throw new CorruptBlockException(numero, len);
+		}
+		
+		if (block.length < len)
+			block = new byte[len];
+		
+		if ((flags & PPMOutputStream.storedFlag) != 0)
+		{
+			//Bloque almacenado: los datos van tal cual, sin modelo ni filtros
+			if ((flags & ~(PPMOutputStream.storedFlag | PPMOutputStream.crcFlag)) != 0 || clen != len)
+				throw new IOException("Bloque inválido");
+			System.arraycopy(datos, 0, block, 0, len);
+			Metrics.global.addBytes(datos.length, len);
+			if (progreso != null)
+				progreso.bloque(len, 10 + datos.length);
+			
+			blockLen = len;
+			blockPos = 0;
+			
+			return true;
+		}
+		
+		BlockEvent evento = new BlockEvent();
+		evento.begin();
+		
+		ByteArrayInputStream entrada = new ByteArrayInputStream(datos, 0, clen);
+		int delta = 0;
+		if ((flags & PPMOutputStream.deltaFlag) != 0)
+		{
+			delta = Model.readNumber(new DataInputStream(entrada));
+			if ((delta >>> 1) == 0)
+				throw new IOException("Bloque inválido");
+		}
+		
+		//Lo que se decodifica: el bloque, o el bloque transformado por TextFilter
+		byte[] destino = block;
+		int tlen = len;
+		if ((flags & PPMOutputStream.textFlag) != 0)
+		{
+			tlen = Model.readNumber(new DataInputStream(entrada));
+			if (tlen > 2 * len)
+				throw new IOException("Bloque inválido");
+			if (texto.length < tlen)
+				texto = new byte[tlen];
+			destino = texto;
+		}
+		
+		int[] contexto = null;
+		if (dispersos)
+			contexto = SparseContext.read(new DataInputStream(entrada), order);
+		int codigo = 0;
+		if (campos)
+			codigo = Model.readNumber(new DataInputStream(entrada));
+		
+		Metrics.Local stats;
+		if (codigo != 0)
+		{
+			//Separado por campos: las columnas no pasan por los otros filtros
+			if (!FieldFilter.valido(codigo) || (flags & (PPMOutputStream.deltaFlag
+					| PPMOutputStream.textFlag | PPMOutputStream.x86Flag)) != 0)
+				throw new IOException("Bloque inválido");
+			int k = codigo >>> 8, j;
+			int[] longitudes = new int[k], comprimidas = new int[k];
+			long total = 0, ctotal = 0;
+			for (j = 0; j < k; j++)
+				total += longitudes[j] = Model.readNumber(new DataInputStream(entrada));
+			for (j = 0; j < k; j++)
+				ctotal += comprimidas[j] = Model.readNumber(new DataInputStream(entrada));
+			if (total != len || ctotal != entrada.available())
+				throw new IOException("Bloque inválido");
+			
+			stats = new Metrics.Local();
+			byte[][] partes = FieldCoder.decode(datos, clen - entrada.available(), comprimidas, longitudes,
+					order, contexto, flags, stats);
+			FieldFilter.decode(partes, codigo, block, len);
+		}
+		else
+		{
+			Decoder dec = CoderPool.getDecoder(entrada, order);
+			dec.setProgreso(progreso);
+			dec.setSparseContext(contexto);
+			decodificar(dec, entrada, flags, destino, tlen);
+			if (destino != block && TextFilter.decode(texto, 0, tlen, block, len) != len)
+				throw new IOException("Bloque truncado");
+			if (delta != 0)
+				DeltaFilter.decode(block, 0, len, delta);
+			if ((flags & PPMOutputStream.x86Flag) != 0)
+				X86Filter.decode(block, 0, len);
+			dec.publishMetrics();
+			stats = dec.stats;
+		}
+		Metrics.global.addBytes(datos.length, len);
+		if (progreso != null)
+			progreso.bloque(len, 10 + datos.length);
+		
+		evento.end();
+		if (evento.shouldCommit())
+			evento.commit(false, order, len, clen, stats);
+		
+		blockLen = len;
+		blockPos = 0;
+		
+		return true;
+	}
+	
+	/** Lee los datos comprimidos de un bloque, reservando memoria según van llegando
+	 * en lugar de toda de una vez: en un archivo sin CRC en las cabeceras la longitud
+	 * puede estar dañada, y así no se reserva mucho más de lo que de verdad hay
+	 * 
+	 * @param clen la longitud comprimida del bloque
+	 * @return los datos
+	 * @throws IOException si ocurre un error de entrada/salida o el archivo se acaba antes
+	 */
+	protected byte[] leerDatos(int clen) throws IOException
+	{
+		byte[] datos = new byte[Math.min(clen, trozoLectura)];
+		int n = 0;
+		
+		while (true)
+		{
+			din.readFully(datos, n, datos.length - n);
+			if (datos.length == clen)
+				return datos;
+			n = datos.length;
+			datos = Arrays.copyOf(datos, (int) Math.min(clen, 2L * n));
+		}
+	}
+	
+	/** Decodifica unos datos con un decodificador recién sacado de <code>CoderPool</code>,
+	 * usando el modelo como indican los flags del bloque (ver <code>PPMOutputStream.codificar</code>)
+	 * 
+	 * @param dec el decodificador, que lee de <code>entrada</code>
+	 * @param entrada de donde se lee el modelo estático, si lo hay
+	 * @param flags los flags del bloque
+	 * @param destino donde dejar los datos
+	 * @param len cuántos bytes hay que decodificar
+	 * @throws IOException si ocurre un error de entrada/salida o los datos se acaban antes
+	 */
+	static void decodificar(Decoder dec, InputStream entrada, int flags, byte[] destino, int len) throws IOException
+	{
+		int n = 0, read;
+		
+		if ((flags & PPMOutputStream.staticFlag) != 0)
+			dec.freeze(new DataInputStream(entrada));
+		dec.setUpdateExclusion((flags & PPMOutputStream.exclusionFlag) != 0);
+		dec.setMatchModel((flags & PPMOutputStream.matchFlag) != 0);
+		while (n < len)
+		{
+			read = dec.read(destino, n, len - n);
+			if (read <= 0)
+				throw new IOException("Bloque truncado");
+			n += read;
+		}
+	}
+}
@@ -0,0 +1,872 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+/** Escribe un archivo PPM completo: una cabecera y una serie de bloques,
+ * cada uno comprimido de forma independiente con su propio orden.
+ * 
+ * Formato (enteros en big-endian):
+ * <pre>
+ * cabecera:  'P' 'P' 'M' versión (1; 2 si los bloques pueden tener un contexto disperso;
+ *                                 3 si además pueden ir separados por campos;
+ *                                 4 si además las cabeceras de los bloques llevan su CRC32C)
+ * bloque:    int longitud original (mayor que 0)
+ *            byte orden
+ *            byte flags (ver <code>staticFlag</code>, <code>exclusionFlag</code>, <code>x86Flag</code>,
+ *                        <code>deltaFlag</code>, <code>textFlag</code>, <code>matchFlag</code>, <code>crcFlag</code>
+ *                        y <code>storedFlag</code>)
+ *            int longitud comprimida (incluido el CRC, si lo hay)
+ *            [int CRC32C de los campos anteriores del bloque, desde la versión 4]
+ *            [código del filtro de <code>DeltaFilter</code>, si lo indican los flags (ver <code>Model.writeNumber</code>)]
+ *            [longitud tras <code>TextFilter</code>, si lo indican los flags (ver <code>Model.writeNumber</code>)]
+ *            [distancias del contexto disperso, desde la versión 2 (ver <code>SparseContext.write</code>)]
+ *            [reparto en columnas, en la versión 3 (ver <code>FieldFilter</code>; 0 si no se separa)]
+ *            [modelo estático, si lo indican los flags (ver <code>Model.write</code>)]
+ *            datos comprimidos (un flujo de HuffmanEncoder, con su EOF),
+ *            o los datos tal cual si es un bloque almacenado,
+ *            o si se ha separado en k columnas: las k longitudes sin comprimir, las k longitudes
+ *            comprimidas y los k flujos, cada uno con su modelo estático si lo hay
+ *            [int CRC32C de la cabecera del bloque y todo lo anterior, si lo indican los flags]
+ * final:     int 0
+ *            [int CRC32C del int 0, desde la versión 4]
+ * </pre>
+ * El orden de cada bloque queda guardado, así que para descomprimir
+ * no hace falta conocerlo (ver <code>PPMInputStream</code>).
+ * 
+ * Como los bloques se comprimen enteros, la salida solo avanza cada
+ * <code>blockSize</code> bytes y al llamar a <code>finish()</code> o <code>close()</code>.
+ * 
+ * @author Javier y Maldo
+ */
+public class PPMOutputStream extends FilterOutputStream
+{
+	/** Los bytes con los que empieza todo archivo PPM */
+	static final byte[] magic = {'P', 'P', 'M', 1};
+	/** La versión de los archivos cuyos bloques llevan las distancias de su contexto (ver <code>setSparseContext</code>) */
+	static final int sparseVersion = 2;
+	/** La versión de los archivos cuyos bloques pueden ir separados por campos (ver <code>setFieldSplit</code>) */
+	static final int fieldVersion = 3;
+	/** La versión de los archivos en que cada cabecera de bloque, y la marca de final, llevan su CRC32C (ver <code>setChecksum</code>) */
+	static final int checkedVersion = 4;
+	
+	/** Tamaño por defecto de los bloques */
+	public static final int defaultBlockSize = 4 * 1024 * 1024;
+	
+	/** Flag de bloque: el bloque empieza con su modelo y se codifica sin actualizarlo (modo estático) */
+	static final int staticFlag = 0x01;
+	/** Flag de bloque: el modelo se actualiza con exclusión de actualización (ver <code>Encoder.setUpdateExclusion</code>) */
+	static final int exclusionFlag = 0x02;
+	/** Flag de bloque: el bloque parecía código x86 y se ha pasado por <code>X86Filter</code> antes de comprimirlo */
+	static final int x86Flag = 0x04;
+	/** Flag de bloque: el bloque se ha pasado por <code>DeltaFilter</code>, con el código que va delante de los datos */
+	static final int deltaFlag = 0x08;
+	/** Flag de bloque: el bloque parecía texto y se ha pasado por <code>TextFilter</code>, con la longitud transformada delante de los datos */
+	static final int textFlag = 0x10;
+	/** Flag de bloque: se codifica con el modelo de coincidencias largas (ver <code>Encoder.setMatchModel</code>) */
+	static final int matchFlag = 0x20;
+	/** Flag de bloque: el bloque termina con su CRC32C, para detectar si se ha dañado (ver <code>setChecksum</code>) */
+	static final int crcFlag = 0x40;
+	/** Flag de bloque: el bloque no se comprimía y va tal cual, sin modelo ni filtros (ver <code>setStoreIncompressible</code>) */
+	static final int storedFlag = 0x80;
+	
+	/** Tamaño de los trozos en que se mira si el bloque es incompresible */
+	static final int segmentSize = 64 * 1024;
+	/** Entropía de orden 0 (bits por byte) a partir de la que un trozo puede ser incompresible.
+	 * Los datos comprimidos o aleatorios están por encima de 7.99, y el texto o los binarios
+	 * normales bastante por debajo de 7 */
+	static final double maxEntropy = 7.9;
+	/** Cuántos bytes de un trozo que parece incompresible se comprimen de prueba */
+	static final int muestraAlmacenar = 4 * 1024;
+	/** Cuenta mínima por defecto de los nodos que se guardan en modo estático */
+	public static final int defaultMinCount = 16;
+	
+	/** Salida de datos con formato */
+	protected final DataOutputStream dout;
+	
+	/** El orden fijo de todos los bloques (si no hay selector) */
+	protected final int order;
+	/** El selector de orden automático, o null si el orden es fijo */
+	protected final OrderSelector selector;
+	/** El orden que eligió el selector para el primer bloque, que se mantiene
+	 * si el selector no elige por bloque (-1 si aún no ha elegido) */
+	protected int ordenElegido = -1;
+	
+	/** Tamaño de los bloques */
+	protected final int blockSize;
+	/** El bloque que se está llenando (crece según hace falta, hasta <code>blockSize</code>) */
+	protected byte[] block;
+	/** Cuántos bytes tiene el bloque que se está llenando */
+	protected int blockLen = 0;
+	/** Donde se comprime cada bloque antes de escribirlo */
+	protected final ByteArrayOutputStream comprimido = new ByteArrayOutputStream();
+	
+	/** Indica si ya se ha escrito la cabecera */
+	protected boolean headerWritten = false;
+	/** La versión escrita en la cabecera, que ya no cambia aunque cambien las opciones */
+	protected int versionArchivo = 0;
+	/** Indica si ya se ha escrito la marca de final */
+	protected boolean finished = false;
+	
+	/** A quién avisar del progreso, o null */
+	protected Progreso progreso = null;
+	
+	/** Si los bloques se comprimen en modo estático (ver <code>setStaticModel</code>) */
+	protected boolean estatico = false;
+	/** La cuenta mínima de los nodos que se guardan en modo estático */
+	protected int minCount = defaultMinCount;
+	/** Si los bloques se comprimen con exclusión de actualización */
+	protected boolean exclusion = false;
+	/** Si se pasan por <code>X86Filter</code> los bloques que parezcan código x86 */
+	protected boolean filtroX86 = true;
+	/** Si se pasan por <code>DeltaFilter</code> los bloques con registros de tamaño fijo */
+	protected boolean filtroDelta = false;
+	/** Si se pasan por <code>TextFilter</code> los bloques que parezcan texto */
+	protected boolean filtroTexto = false;
+	/** Si los bloques se comprimen con el modelo de coincidencias largas */
+	protected boolean coincidencias = false;
+	/** Si los bloques llevan su CRC32C */
+	protected boolean checksum = true;
+	/** Las distancias del contexto disperso de todos los bloques, o null */
+	protected int[] distancias = null;
+	/** Si se busca para cada bloque un contexto disperso por columnas */
+	protected boolean columnas = false;
+	/** Si los bloques de registros se separan por campos */
+	protected boolean separar = false;
+	/** Si los trozos incompresibles se guardan tal cual */
+	protected boolean almacenar = true;
+	/** El CRC32C de cada bloque */
+	protected final CRC32C crc = new CRC32C();
+	
+	/** Crea una nueva stream que comprime con un orden fijo
+	 * 
+	 * @param out donde escribir el archivo comprimido
+	 * @param order orden del modelo PPM
+	 */
+	public PPMOutputStream(OutputStream out, int order)
+	{
+		this(out, order, null, defaultBlockSize);
+	}
+	
+	/** Crea una nueva stream que elige el orden de cada bloque automáticamente
+	 * 
+	 * @param out donde escribir el archivo comprimido
+	 * @param selector el selector de orden
+	 */
+	public PPMOutputStream(OutputStream out, OrderSelector selector)
+	{
+		this(out, -1, selector, defaultBlockSize);
+	}
+	
+	/** Crea una nueva stream
+	 * 
+	 * @param out donde escribir el archivo comprimido
+	 * @param order orden del modelo PPM (si no hay selector)
+	 * @param selector el selector de orden, o null para usar siempre <code>order</code>
+	 * @param blockSize tamaño de los bloques
+	 */
+	public PPMOutputStream(OutputStream out, int order, OrderSelector selector, int blockSize)
+	{
+		super(out);
+		
+		if (selector == null && (order < 0 || order > 255))
+			throw new IllegalArgumentException("Orden inválido");
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Tamaño de bloque inválido");
+		
+		dout = new DataOutputStream(out);
+		this.order = order;
+		this.selector = selector;
+		this.blockSize = blockSize;
+		block = new byte[Math.min(blockSize, 64 * 1024)];
+	}
+	
+	/** Pide que se avise del progreso cada cierto número de bytes sin comprimir
+	 * (también dentro de cada bloque, y una vez más al final)
+	 * 
+	 * @param listener a quién avisar, o null para dejar de hacerlo
+	 * @param cada cada cuántos bytes sin comprimir
+	 */
+	public void setProgressListener(ProgressListener listener, long cada)
+	{
+		progreso = (listener == null) ? null : new Progreso(listener, cada);
+	}
+	
+	/** Indica si los bloques se comprimen en modo estático: en dos pasadas, la primera
+	 * para construir el modelo con todo el bloque y la segunda para codificar sin actualizarlo.
+	 * El modelo se guarda (podado) delante de los datos de cada bloque, y al descomprimir
+	 * ya no hay que actualizarlo, así que es mucho más rápido; a cambio, comprimir cuesta
+	 * el doble y el archivo suele ser mayor, salvo con órdenes bajos.
+	 * Interesa para archivos que se escriben una vez y se leen muchas.
+	 * 
+	 * @param estatico true para comprimir en modo estático los bloques siguientes
+	 * @param minCount la cuenta mínima de los nodos que se guardan (1 para guardarlos todos);
+	 *        con más se guardan menos nodos, a cambio de predecir algo peor
+	 */
+	public void setStaticModel(boolean estatico, int minCount)
+	{
+		if (minCount < 1)
+			throw new IllegalArgumentException("Cuenta mínima inválida");
+		
+		this.estatico = estatico;
+		this.minCount = minCount;
+	}
+	
+	/** Indica si los bloques se comprimen con exclusión de actualización: el modelo
+	 * solo se actualiza en el orden que ha codificado cada carácter y los superiores
+	 * (ver <code>Encoder.setUpdateExclusion</code>). Queda indicado en cada bloque,
+	 * así que al descomprimir no hace falta saberlo. No afecta a los bloques estáticos,
+	 * que no actualizan el modelo.
+	 * 
+	 * @param exclusion true para usar exclusión de actualización en los bloques siguientes
+	 */
+	public void setUpdateExclusion(boolean exclusion)
+	{
+		this.exclusion = exclusion;
+	}
+	
+	/** Indica si los bloques que parezcan código x86 (según <code>X86Filter.detect</code>)
+	 * se pasan por <code>X86Filter</code> antes de comprimirlos, lo que se hace por defecto.
+	 * Queda indicado en cada bloque, así que al descomprimir se deshace solo.
+	 * 
+	 * @param filtro true para filtrar los bloques de código x86
+	 */
+	public void setX86Filter(boolean filtro)
+	{
+		filtroX86 = filtro;
+	}
+	
+	/** Indica si los bloques formados por registros de tamaño fijo (imágenes, tablas numéricas)
+	 * se pasan por <code>DeltaFilter</code> antes de comprimirlos, si mejora una compresión
+	 * de prueba. Comprime algo mejor estos datos, pero suele ser más lento (los bytes filtrados
+	 * están más repartidos en cada contexto), así que por defecto no se hace.
+	 * Queda indicado en cada bloque, así que al descomprimir se deshace solo.
+	 * 
+	 * @param filtro true para filtrar los bloques con registros de tamaño fijo
+	 */
+	public void setDeltaFilter(boolean filtro)
+	{
+		filtroDelta = filtro;
+	}
+	
+	/** Indica si los bloques que parezcan texto ASCII (según <code>TextFilter.detect</code>)
+	 * se pasan por <code>TextFilter</code> antes de comprimirlos. En textos en inglés quedan
+	 * algo menos de símbolos que codificar, pero la velocidad apenas cambia y el tamaño
+	 * mejora o empeora un poco según el texto, así que por defecto no se hace.
+	 * Queda indicado en cada bloque, así que al descomprimir se deshace solo.
+	 * 
+	 * @param filtro true para transformar los bloques de texto
+	 */
+	public void setTextFilter(boolean filtro)
+	{
+		filtroTexto = filtro;
+	}
+	
+	/** Indica si los bloques se comprimen con el modelo de coincidencias largas (ver <code>MatchModel</code>).
+	 * Con datos que repiten trozos largos (registros, listados) comprime más y va mucho más rápido,
+	 * y en el resto apenas cambia nada, pero gasta algo más de 4 MB por compresor.
+	 * Queda indicado en cada bloque, así que al descomprimir se usa solo.
+	 * 
+	 * @param coincidencias true para usar el modelo de coincidencias
+	 */
+	public void setMatchModel(boolean coincidencias)
+	{
+		this.coincidencias = coincidencias;
+	}
+	
+	/** Usa en todos los bloques un contexto disperso (ver <code>SparseContext</code>): el modelo ve
+	 * los carácteres que están a esas distancias en lugar de los últimos seguidos, y el orden de
+	 * cada bloque es el número de distancias (el orden y el selector se ignoran).
+	 * Por ejemplo {3, 2} se salta el último carácter, y {ancho, 2, 1} añade el de la fila anterior.
+	 * Hay que elegirlo antes de escribir nada, porque el archivo lleva otra versión.
+	 * 
+	 * @param distancias las distancias, de mayor a menor, o null para el contexto contiguo
+	 * @throws IllegalArgumentException si las distancias no son válidas
+	 * @throws IllegalStateException si ya se ha escrito la cabecera
+	 */
+	public void setSparseContext(int[] distancias)
+	{
+		if (distancias != null && !SparseContext.validas(distancias))
+			throw new IllegalArgumentException("Distancias de contexto inválidas");
+		if (headerWritten)
+			throw new IllegalStateException("El contexto se elige antes de escribir nada");
+		
+		this.distancias = (distancias == null) ? null : distancias.clone();
+	}
+	
+	/** Indica si se busca para cada bloque un contexto disperso por columnas (por defecto no):
+	 * el ancho de fila con el que más bytes coinciden con el de la fila anterior, que se añade
+	 * como el carácter más lejano al contexto de los últimos <code>orden</code> carácteres si al
+	 * comprimir de prueba una muestra del bloque sale mejor (ver <code>SparseContext.choose</code>).
+	 * En imágenes y tablas en filas de tamaño fijo comprime mucho más con el mismo orden, a cambio
+	 * de buscar el ancho en cada bloque. Hay que elegirlo antes de escribir nada.
+	 * 
+	 * @param columnas true para buscar un contexto por columnas
+	 * @throws IllegalStateException si ya se ha escrito la cabecera
+	 */
+	public void setColumnContext(boolean columnas)
+	{
+		if (headerWritten)
+			throw new IllegalStateException("El contexto se elige antes de escribir nada");
+		
+		this.columnas = columnas;
+	}
+	
+	/** Indica si los bloques de registros de texto (CSV, líneas JSON, logs) se separan por
+	 * campos (por defecto no): cada campo va a su propia columna, que se comprime con su propio
+	 * modelo, en paralelo si hay varios procesadores (ver <code>FieldFilter</code> y <code>FieldCoder</code>).
+	 * Para cada bloque se busca el separador y el número de columnas, y solo se separa si al
+	 * comprimir de prueba una muestra sale mejor. Hay que elegirlo antes de escribir nada,
+	 * porque el archivo lleva otra versión.
+	 * 
+	 * @param separar true para separar por campos
+	 * @throws IllegalStateException si ya se ha escrito la cabecera
+	 */
+	public void setFieldSplit(boolean separar)
+	{
+		if (headerWritten)
+			throw new IllegalStateException("La separación por campos se elige antes de escribir nada");
+		
+		this.separar = separar;
+	}
+	
+	/** Indica si cada bloque termina con un CRC32C de su cabecera y sus datos comprimidos
+	 * (por defecto sí). Al descomprimir se comprueba antes de decodificar el bloque, y si
+	 * no coincide <code>PPMInputStream</code> lanza una <code>CorruptBlockException</code>
+	 * en lugar de devolver datos erróneos, pudiendo seguir con el bloque siguiente.
+	 * Ocupa 4 bytes por bloque y apenas cuesta tiempo.
+	 * 
+	 * Si está activado al escribir la cabecera, el archivo es de la versión 4 y además cada
+	 * cabecera de bloque lleva su propio CRC32C, que se comprueba antes de fiarse de las
+	 * longitudes: una longitud dañada ya no hace reservar memoria de más ni se confunde
+	 * con la marca de final. Tras una cabecera dañada no se sabe dónde empieza el bloque
+	 * siguiente, así que no se puede seguir leyendo.
+	 * 
+	 * @param checksum true para añadir el CRC a los bloques siguientes
+	 */
+	public void setChecksum(boolean checksum)
+	{
+		this.checksum = checksum;
+	}
+	
+	/** Indica si los trozos del bloque que no se pueden comprimir (datos ya comprimidos,
+	 * imágenes JPEG, datos aleatorios...) se guardan tal cual (por defecto sí).
+	 * 
+	 * Se miran en trozos de <code>segmentSize</code> bytes, y los trozos seguidos del mismo
+	 * tipo se escriben como un bloque aparte: los incompresibles sin modelo ni filtros, que
+	 * con PPM ocupaban más que el original y se comprimían muy despacio (casi cada byte
+	 * es un escape hasta el orden -1), y los demás comprimidos como siempre. Si aun así
+	 * un bloque comprimido ocupa lo mismo o más que el original, también se guarda tal cual.
+	 * 
+	 * @param almacenar true para guardar tal cual los trozos incompresibles
+	 */
+	public void setStoreIncompressible(boolean almacenar)
+	{
+		this.almacenar = almacenar;
+	}
+	
+	/** Añade un byte al bloque actual
+	 * 
+	 * @param b el byte
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	public void write(int b) throws IOException
+	{
+		if (finished)
+			throw new IOException("Compresión ya terminada");
+		
+		if (blockLen == block.length)
+			makeRoom();
+		
+		block[blockLen++] = (byte) b;
+	}
+	
+	/** Añade <code>len</code> bytes al bloque actual,
+	 * comprimiendo y escribiendo los bloques que se llenen
+	 * 
+	 * @param b el array de bytes
+	 * @param off el índice del primer byte del array a añadir
+	 * @param len el número de bytes a añadir
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		int n;
+		
+		if (finished)
+			throw new IOException("Compresión ya terminada");
+		
+		while (len > 0)
+		{
+			if (blockLen == block.length)
+				makeRoom();
+			
+			n = Math.min(len, block.length - blockLen);
+			System.arraycopy(b, off, block, blockLen, n);
+			blockLen += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/** Añade todos los bytes que le quedan a un <code>ByteBuffer</code> al bloque actual
+	 * 
+	 * @param src los bytes a añadir
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	void write(ByteBuffer src) throws IOException
+	{
+		int n;
+		
+		if (src.hasArray())
+		{
+			write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+			src.position(src.limit());
+			return;
+		}
+		
+		if (finished && src.hasRemaining())
+			throw new IOException("Compresión ya terminada");
+		
+		while (src.hasRemaining())
+		{
+			if (blockLen == block.length)
+				makeRoom();
+			
+			n = Math.min(src.remaining(), block.length - blockLen);
+			src.get(block, blockLen, n);
+			blockLen += n;
+		}
+	}
+	
+	/** Hace sitio en el bloque actual, que está lleno: lo agranda si aún
+	 * no ha llegado a <code>blockSize</code>, o si no lo comprime y lo escribe
+	 * 
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	protected void makeRoom() throws IOException
+	{
+		if (block.length < blockSize)
+		{
+			byte[] mayor = new byte[(int) Math.min((long) block.length * 2, blockSize)];
+			System.arraycopy(block, 0, mayor, 0, blockLen);
+			block = mayor;
+		}
+		else
+		{
+			writeBlock();
+		}
+	}
+	
+	/** Escribe la cabecera, si aún no se ha hecho
+	 * 
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	protected void writeHeader() throws IOException
+	{
+		if (headerWritten) return;
+		
+		versionArchivo = version();
+		dout.write(magic, 0, magic.length - 1);
+		dout.write(versionArchivo);
+		headerWritten = true;
+	}
+	
+	/** Comprime y escribe el bloque actual, dejándolo vacío.
+	 * Si hay que guardar tal cual los trozos incompresibles, cada tramo de trozos
+	 * del mismo tipo se escribe como un bloque aparte.
+	 * 
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	protected void writeBlock() throws IOException
+	{
+		int ini, fin;
+		boolean crudo, siguiente;
+		
+		writeHeader();
+		
+		if (blockLen == 0) return;
+		
+		if (almacenar)
+		{
+			ini = 0;
+			crudo = incompressible(block, 0, Math.min(segmentSize, blockLen));
+			for (fin = segmentSize; fin < blockLen; fin += segmentSize)
+			{
+				siguiente = incompressible(block, fin, Math.min(segmentSize, blockLen - fin));
+				if (siguiente != crudo)
+				{
+					writeBlock(ini, fin - ini, crudo);
+					ini = fin;
+					crudo = siguiente;
+				}
+			}
+			writeBlock(ini, blockLen - ini, crudo);
+		}
+		else
+			writeBlock(0, blockLen, false);
+		
+		blockLen = 0;
+	}
+	
+	/** Comprime y escribe una parte del bloque actual como un bloque del archivo
+	 * 
+	 * @param off el índice del primer byte de la parte
+	 * @param len la longitud de la parte, mayor que 0
+	 * @param crudo true para guardarla tal cual, sin intentar comprimirla
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	protected void writeBlock(int off, int len, boolean crudo) throws IOException
+	{
+		int blockOrder = 0, flags = 0, delta = 0, campos = 0, j;
+		int[] contexto = null;
+		Encoder enc;
+		Metrics.Local stats;
+		//Lo que se codifica: el bloque, o el bloque transformado por TextFilter
+		byte[] datos = block;
+		int inicio = off, n = len;
+		//Las columnas, si se separa por campos
+		byte[][] partes = null;
+		
+		comprimido.reset();
+		if (!crudo)
+		{
+			if (filtroX86 && X86Filter.detect(block, off, len))
+			{
+				//El bloque se descarta después, así que se puede filtrar sobre él mismo
+				X86Filter.encode(block, off, len);
+				flags |= x86Flag;
+			}
+			else if (separar && (campos = FieldFilter.choose(block, off, len)) != 0)
+			{
+				//Las columnas son arrays nuevos: el bloque queda como estaba
+				partes = FieldFilter.encode(block, off, len, campos);
+			}
+			else if (filtroTexto && TextFilter.detect(block, off, len))
+			{
+				datos = TextFilter.encode(block, off, len);
+				inicio = 0;
+				n = datos.length;
+				flags |= textFlag;
+			}
+			else if (filtroDelta)
+			{
+				delta = DeltaFilter.choose(block, off, len);
+				if (delta != 0)
+				{
+					DeltaFilter.encode(block, off, len, delta);
+					flags |= deltaFlag;
+				}
+			}
+			
+			if (distancias != null)
+				contexto = distancias;
+			else if (selector != null)
+			{
+				if (ordenElegido < 0 || selector.isPerBlock())
+					ordenElegido = selector.choose(datos, inicio, n);
+				blockOrder = ordenElegido;
+			}
+			else
+				blockOrder = order;
+			if (columnas && contexto == null)
+			{
+				contexto = SparseContext.choose(datos, inicio, n, blockOrder);
+				//En filas de tamaño fijo el contexto por columnas ya separa los campos, y mejor
+				if (contexto != null && partes != null)
+				{
+					partes = null;
+					campos = 0;
+				}
+			}
+			if (contexto != null)
+				blockOrder = contexto.length;
+			
+			if (estatico)
+				flags |= staticFlag;
+			else if (exclusion)
+				flags |= exclusionFlag;
+			if (coincidencias)
+				flags |= matchFlag;
+			
+			BlockEvent evento = new BlockEvent();
+			evento.begin();
+			
+			if (delta != 0)
+				Model.writeNumber(new DataOutputStream(comprimido), delta);
+			if (datos != block)
+				Model.writeNumber(new DataOutputStream(comprimido), n);
+			if (versionArchivo >= sparseVersion)
+				SparseContext.write(new DataOutputStream(comprimido), contexto);
+			if (versionArchivo >= fieldVersion)
+				Model.writeNumber(new DataOutputStream(comprimido), campos);
+			if (partes != null)
+			{
+				//Cada columna con su modelo, y todas con el mismo orden, contexto y flags
+				stats = new Metrics.Local();
+				byte[][] flujos = FieldCoder.encode(partes, blockOrder, contexto, flags, minCount, stats);
+				for (j = 0; j < partes.length; j++)
+					Model.writeNumber(new DataOutputStream(comprimido), partes[j].length);
+				for (j = 0; j < partes.length; j++)
+					Model.writeNumber(new DataOutputStream(comprimido), flujos[j].length);
+				for (j = 0; j < partes.length; j++)
+					comprimido.write(flujos[j]);
+			}
+			else
+			{
+				enc = CoderPool.getEncoder(comprimido, blockOrder);
+				enc.setProgreso(progreso);
+				enc.setSparseContext(contexto);
+				codificar(enc, comprimido, datos, inicio, n, flags, minCount);
+				stats = enc.stats;
+			}
+			
+			evento.end();
+			if (evento.shouldCommit())
+				evento.commit(true, blockOrder, len, comprimido.size(), stats);
+			
+			if (almacenar && comprimido.size() >= len)
+			{
+				//No se ha ganado nada: deshacer los filtros aplicados sobre el bloque y guardarlo tal cual
+				if (delta != 0)
+					DeltaFilter.decode(block, off, len, delta);
+				if ((flags & x86Flag) != 0)
+					X86Filter.decode(block, off, len);
+				crudo = true;
+			}
+		}
+		
+		if (crudo)
+		{
+			//Cada bloque tiene su propio modelo, así que no hay ninguno que mantener al día
+			comprimido.reset();
+			comprimido.write(block, off, len);
+			blockOrder = 0;
+			flags = storedFlag;
+		}
+		
+		int clen = comprimido.size();
+		if (checksum)
+		{
+			flags |= crcFlag;
+			clen += 4;
+		}
+		
+		dout.writeInt(len);
+		dout.writeByte(blockOrder);
+		dout.writeByte(flags);
+		dout.writeInt(clen);
+		//El CRC de la cabecera es el principio del de los datos
+		crcCabecera(crc, len, blockOrder, flags, clen);
+		if (versionArchivo >= checkedVersion)
+			dout.writeInt((int) crc.getValue());
+		if (checksum)
+		{
+			//El CRC se calcula según se escriben los datos, sin copiarlos
+			comprimido.writeTo(new CheckedOutputStream(dout, crc));
+			dout.writeInt((int) crc.getValue());
+		}
+		else
+			comprimido.writeTo(dout);
+		Metrics.global.addBytes(len, clen);
+		if (progreso != null)
+			progreso.bloque(len, 10 + clen);
+	}
+	
+	/** Codifica unos datos con un codificador recién sacado de <code>CoderPool</code>,
+	 * usando el modelo como indican los flags del bloque (estático, con exclusión de
+	 * actualización, con el modelo de coincidencias), y termina
+	 * 
+	 * @param enc el codificador, que escribe en <code>dest</code>
+	 * @param dest donde se escribe el modelo estático, si lo hay
+	 * @param b el array con los datos
+	 * @param off el índice del primer byte
+	 * @param len cuántos bytes
+	 * @param flags los flags del bloque
+	 * @param minCount la cuenta mínima de los nodos del modelo estático
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	static void codificar(Encoder enc, OutputStream dest, byte[] b, int off, int len, int flags, int minCount) throws IOException
+	{
+		if ((flags & staticFlag) != 0)
+		{
+			//Primera pasada: el modelo de todos los datos, que va delante de ellos
+			enc.train(b, off, len);
+			enc.freeze(new DataOutputStream(dest), minCount);
+		}
+		enc.setUpdateExclusion((flags & exclusionFlag) != 0);
+		enc.setMatchModel((flags & matchFlag) != 0);
+		enc.write(b, off, len);
+		enc.finish();
+	}
+	
+	/** Devuelve la versión del archivo, que dice qué llevan los bloques
+	 * 
+	 * @return 1; 2 si se usa o se busca un contexto disperso; 3 si se separa por campos;
+	 *         4 si hay CRC (que comprueba también las cabeceras)
+	 */
+	protected int version()
+	{
+		if (checksum)
+			return checkedVersion;
+		if (separar)
+			return fieldVersion;
+		if (distancias != null || columnas)
+			return sparseVersion;
+		return magic[magic.length - 1];
+	}
+	
+	/** Devuelve las opciones de compresión elegidas, como una máscara de bits.
+	 * Sirve para comprobar que se sigue un archivo con las mismas (ver <code>ResumableCompressor</code>);
+	 * lo que hace falta para descomprimir ya va en la versión y en cada bloque.
+	 * 
+	 * @return un bit por cada opción activa
+	 */
+	int opciones()
+	{
+		boolean[] o = {estatico, exclusion, filtroX86, filtroDelta, filtroTexto,
+				coincidencias, checksum, columnas, separar, almacenar, distancias != null};
+		int bits = 0;
+		
+		for (int i = 0; i < o.length; i++)
+			if (o[i])
+				bits |= 1 << i;
+		
+		return bits;
+	}
+	
+	/** Estima si un trozo de datos es incompresible: la entropía de orden 0 de sus bytes
+	 * tiene que estar muy cerca de 8 bits por byte, como en los datos comprimidos o aleatorios,
+	 * y además no tiene que ganarse nada al comprimir de prueba una muestra del centro
+	 * (una rampa o un contador tienen todos los bytes igual de frecuentes, pero se comprimen muy bien).
+	 * La prueba se hace con <code>Deflater</code> en su modo rápido: con PPM, en datos aleatorios
+	 * costaría más que guardarlos.
+	 * 
+	 * @param b el array con los datos
+	 * @param off el índice del primer byte
+	 * @param len la longitud del trozo
+	 * @return true si su entropía pasa de <code>maxEntropy</code> y la muestra no se comprime
+	 */
+	protected static boolean incompressible(byte[] b, int off, int len)
+	{
+		int[] cuentas = new int[Excluder.byteRange];
+		double suma = 0;
+		int i;
+		
+		for (i = off; i < off + len; i++)
+			cuentas[b[i] & 0xFF]++;
+		for (i = 0; i < cuentas.length; i++)
+		{
+			if (cuentas[i] > 0)
+				suma += cuentas[i] * Math.log(cuentas[i]);
+		}
+		
+		//H = log(len) - suma(c log c) / len, pasado a bits
+		if ((Math.log(len) - suma / len) / Math.log(2) <= maxEntropy)
+			return false;
+		
+		int n = Math.min(len, muestraAlmacenar), m;
+		Deflater prueba = new Deflater(Deflater.BEST_SPEED);
+		try
+		{
+			prueba.setInput(b, off + (len - n) / 2, n);
+			prueba.finish();
+			m = prueba.deflate(new byte[n]);
+			return !prueba.finished() || m >= n;
+		}
+		finally
+		{
+			prueba.end();
+		}
+	}
+	
+	/** Comprime el último bloque y escribe la marca de final, sin cerrar la salida.
+	 * Después ya no se pueden escribir más datos.
+	 * 
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	public void finish() throws IOException
+	{
+		if (finished) return;
+		
+		writeBlock();
+		dout.writeInt(0);
+		if (versionArchivo >= checkedVersion)
+			dout.writeInt(crcFinal(crc));
+		dout.flush();
+		finished = true;
+		
+		if (progreso != null)
+			progreso.terminar();
+	}
+	
+	/** Empieza el CRC32C de un bloque con los campos de su cabecera, para que
+	 * también se detecte si se han dañado
+	 * 
+	 * @param crc el CRC, que se reinicia
+	 * @param len la longitud original del bloque
+	 * @param order el orden del bloque
+	 * @param flags los flags del bloque
+	 * @param clen la longitud comprimida del bloque (con el CRC)
+	 */
+	static void crcCabecera(CRC32C crc, int len, int order, int flags, int clen)
+	{
+		ByteBuffer cabecera = ByteBuffer.allocate(10);
+		cabecera.putInt(len).put((byte) order).put((byte) flags).putInt(clen);
+		
+		crc.reset();
+		crc.update(cabecera.array(), 0, cabecera.position());
+	}
+	
+	/** Calcula el CRC32C de la marca de final, que va detrás de ella desde la versión 4
+	 * 
+	 * @param crc el CRC, que se reinicia
+	 * @return el CRC del int 0
+	 */
+	static int crcFinal(CRC32C crc)
+	{
+		crc.reset();
+		crc.update(new byte[4], 0, 4);
+		return (int) crc.getValue();
+	}
+	
+	/** Comprime y escribe ya el bloque actual aunque no esté lleno, y vacía la salida,
+	 * de forma que todo lo escrito hasta ahora queda en un límite de bloque
+	 * 
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	void flushBlock() throws IOException
+	{
+		writeBlock();
+		dout.flush();
+	}
+	
+	/** Da la cabecera por escrita, para seguir escribiendo bloques
+	 * al final de un archivo ya empezado
+	 */
+	void skipHeader()
+	{
+		versionArchivo = version();
+		headerWritten = true;
+	}
+	
+	/** Olvida el bloque a medias y el estado de la stream, para empezar
+	 * un archivo nuevo en la misma salida
+	 */
+	void reset()
+	{
+		blockLen = 0;
+		headerWritten = false;
+		finished = false;
+	}
+	
+	/** Comprime el último bloque, escribe la marca de final y cierra la salida
+	 * 
+	 * @throws IOException si ocurre un error de entrada/salida
+	 */
+	public void close() throws IOException
+	{
+		finish();
+		out.close();
+	}
+}
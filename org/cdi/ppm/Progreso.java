@@ -0,0 +1,76 @@
+package org.cdi.ppm;
+
+/** Lleva la cuenta del progreso de una compresión o descompresión para un
+ * <code>ProgressListener</code>: cuándo toca avisar, cuánto tiempo ha pasado y
+ * cuánto llevaban los bloques ya terminados (cada bloque usa un codificador que empieza de cero).
+ * 
+ * @author Javier y Maldo
+ */
+final class Progreso
+{
+	/** A quién avisar */
+	final ProgressListener listener;
+	/** Cada cuántos bytes sin comprimir se avisa */
+	final long cada;
+	/** Cuándo empezó */
+	private final long inicio = System.nanoTime();
+	
+	/** Bytes sin comprimir y comprimidos de los bloques ya terminados */
+	private long baseOriginales = 0, baseComprimidos = 0;
+	/** El total en el último aviso, o -1 si aún no se ha avisado */
+	private long avisado = -1;
+	
+	/** Crea el contador
+	 * 
+	 * @param listener a quién avisar
+	 * @param cada cada cuántos bytes sin comprimir se avisa
+	 */
+	Progreso(ProgressListener listener, long cada)
+	{
+		if (cada <= 0)
+			throw new IllegalArgumentException("Intervalo de progreso no positivo");
+		
+		this.listener = listener;
+		this.cada = cada;
+	}
+	
+	/** Avisa del progreso dentro del bloque actual
+	 * 
+	 * @param originales bytes sin comprimir del bloque actual
+	 * @param comprimidos bytes comprimidos del bloque actual
+	 */
+	void avisar(long originales, long comprimidos)
+	{
+		originales += baseOriginales;
+		comprimidos += baseComprimidos;
+		avisado = originales;
+		
+		double segundos = (System.nanoTime() - inicio) / 1e9;
+		double ratio = (originales == 0) ? 0 : (double) comprimidos / originales;
+		double velocidad = (segundos <= 0) ? 0 : originales / (1024.0 * 1024) / segundos;
+		
+		listener.progress(originales, comprimidos, ratio, velocidad);
+	}
+	
+	/** Da por terminado un bloque, y avisa si desde el último aviso se ha pasado el intervalo
+	 * 
+	 * @param originales bytes sin comprimir del bloque
+	 * @param comprimidos bytes comprimidos del bloque
+	 */
+	void bloque(long originales, long comprimidos)
+	{
+		baseOriginales += originales;
+		baseComprimidos += comprimidos;
+		
+		if (baseOriginales - avisado >= cada)
+			avisar(0, 0);
+	}
+	
+	/** Avisa con el total al terminar, si no se ha hecho ya
+	 */
+	void terminar()
+	{
+		if (avisado != baseOriginales)
+			avisar(0, 0);
+	}
+}
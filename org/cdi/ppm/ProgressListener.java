@@ -0,0 +1,20 @@
+package org.cdi.ppm;
+
+/** Recibe avisos del progreso de una compresión o descompresión, cada cierto número de bytes
+ * (ver <code>Encoder.setProgressListener</code>, <code>PPMOutputStream.setProgressListener</code>...)
+ * 
+ * Se llama desde el hilo que comprime, así que debe volver enseguida.
+ * 
+ * @author Javier y Maldo
+ */
+public interface ProgressListener
+{
+	/** Avisa del progreso
+	 * 
+	 * @param originales bytes sin comprimir procesados hasta ahora
+	 * @param comprimidos bytes comprimidos correspondientes (escritos al comprimir, leídos al descomprimir)
+	 * @param ratio <code>comprimidos / originales</code>
+	 * @param mbPorSegundo velocidad media desde el principio, en MB (2^20 bytes) sin comprimir por segundo
+	 */
+	void progress(long originales, long comprimidos, double ratio, double mbPorSegundo);
+}
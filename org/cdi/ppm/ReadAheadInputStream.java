@@ -0,0 +1,207 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.util.concurrent.*;
+
+/** Lee por adelantado la stream de entrada en otro hilo, para que la lectura
+ * (por ejemplo de un disco o de la red) se solape con la compresión.
+ * 
+ * El hilo lector va llenando unos pocos búferes reutilizables, que se le devuelven
+ * según se consumen; si todos están llenos, el lector espera.
+ * 
+ * @author Javier y Maldo
+ */
+public class ReadAheadInputStream extends FilterInputStream
+{
+	/** Número de búferes por defecto */
+	public static final int defaultBuffers = 4;
+	/** Tamaño de cada búfer por defecto */
+	public static final int defaultBufferSize = 64 * 1024;
+	
+	/** Los trozos leídos, en orden */
+	private final BlockingQueue<Trozo> llenos;
+	/** Los trozos ya consumidos, que el lector puede volver a llenar */
+	private final BlockingQueue<Trozo> libres;
+	/** El hilo lector */
+	private final Thread lector;
+	
+	/** El trozo que se está consumiendo, o null */
+	private Trozo actual = null;
+	/** Siguiente byte por consumir de <code>actual</code> */
+	private int pos = 0;
+	
+	/** Crea una nueva stream con los valores por defecto
+	 * 
+	 * @param in de donde leer
+	 */
+	public ReadAheadInputStream(InputStream in)
+	{
+		this(in, defaultBuffers, defaultBufferSize);
+	}
+	
+	/** Crea una nueva stream
+	 * 
+	 * @param in de donde leer
+	 * @param buffers cuántos búferes se pueden tener leídos por adelantado
+	 * @param bufferSize tamaño de cada búfer
+	 */
+	public ReadAheadInputStream(InputStream in, int buffers, int bufferSize)
+	{
+		super(in);
+		
+		llenos = new ArrayBlockingQueue<Trozo>(buffers);
+		libres = new ArrayBlockingQueue<Trozo>(buffers);
+		
+		int i;
+		for (i = 0; i < buffers; i++)
+			libres.add(new Trozo(bufferSize));
+		
+		lector = new Thread("PPM-lector") {
+			public void run()
+			{
+				leer();
+			}
+		};
+		lector.setDaemon(true);
+		lector.start();
+	}
+	
+	/** Bucle del hilo lector: llena trozos hasta el final de la entrada o un error
+	 */
+	private void leer()
+	{
+		Trozo t;
+		int n;
+		
+		try
+		{
+			do
+			{
+				t = libres.take();
+				t.len = 0;
+				
+				try
+				{
+					//Llenar el trozo entero, para no pasar trozos pequeños
+					while (t.len < t.buf.length && (n = in.read(t.buf, t.len, t.buf.length - t.len)) >= 0)
+						t.len += n;
+				}
+				catch (IOException e)
+				{
+					t.error = e;
+				}
+				
+				if (t.len == 0 && t.error == null)
+					t.len = -1; //Final de la entrada
+				
+				llenos.put(t);
+			}
+			while (t.len > 0 && t.error == null);
+		}
+		catch (InterruptedException e)
+		{
+			//Se ha cerrado la stream
+		}
+	}
+	
+	/** Se asegura de que hay un trozo con bytes por consumir
+	 * 
+	 * @return false si se ha llegado al final de la entrada
+	 * @throws IOException si el lector ha tenido un error
+	 */
+	private boolean siguiente() throws IOException
+	{
+		if (actual != null && actual.error != null)
+			throw actual.error;
+		if (actual != null && pos < actual.len)
+			return true;
+		if (actual != null && actual.len < 0)
+			return false;
+		
+		try
+		{
+			if (actual != null)
+				libres.put(actual);
+			actual = llenos.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		pos = 0;
+		
+		if (actual.error != null)
+			throw actual.error;
+		
+		return actual.len > 0;
+	}
+	
+	public int read() throws IOException
+	{
+		if (!siguiente())
+			return -1;
+		
+		return actual.buf[pos++] & 0xFF;
+	}
+	
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0) return 0;
+		if (!siguiente())
+			return -1;
+		
+		int n = Math.min(len, actual.len - pos);
+		System.arraycopy(actual.buf, pos, b, off, n);
+		pos += n;
+		
+		return n;
+	}
+	
+	public long skip(long n) throws IOException
+	{
+		if (n <= 0 || !siguiente())
+			return 0;
+		
+		int saltar = (int) Math.min(n, actual.len - pos);
+		pos += saltar;
+		
+		return saltar;
+	}
+	
+	public int available()
+	{
+		return (actual != null && actual.len > 0) ? actual.len - pos : 0;
+	}
+	
+	public boolean markSupported()
+	{
+		return false;
+	}
+	
+	/** Para el hilo lector y cierra la entrada
+	 * 
+	 * @throws IOException si hay un problema al cerrar
+	 */
+	public void close() throws IOException
+	{
+		lector.interrupt();
+		in.close();
+	}
+	
+	/** Un búfer con los bytes leídos (o el final, o un error)
+	 */
+	private static class Trozo
+	{
+		/** Los bytes */
+		final byte[] buf;
+		/** Cuántos bytes válidos tiene, o -1 si es el final */
+		int len = 0;
+		/** El error al leerlo, si lo hubo */
+		IOException error = null;
+		
+		Trozo(int size)
+		{
+			buf = new byte[size];
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Comprime un archivo guardando puntos de control, de forma que si el proceso
+ * muere se puede continuar desde el último en lugar de empezar de cero.
+ * 
+ * Como cada bloque se comprime con un modelo nuevo (ver <code>PPMOutputStream</code>),
+ * en el límite entre dos bloques no hay estado del modelo, del contexto ni de los bits
+ * que guardar: basta con saber cuántos bytes de la entrada y de la salida están ya hechos.
+ * Después de cada <code>interval</code> bloques se fuerza la salida a disco y se escribe
+ * el punto de control; al continuar, se corta la salida en ese punto, se salta esa parte
+ * de la entrada y se siguen añadiendo bloques.
+ * 
+ * Los bloques nuevos tienen que ir con las mismas opciones que los ya escritos, y sobre
+ * todo con la misma versión de archivo, que dice qué lleva cada bloque: el punto de control
+ * guarda ambas cosas, y no se continúa con otras. Para elegir las opciones, se redefine
+ * <code>crearSalida</code>.
+ * 
+ * Formato del punto de control (big-endian):
+ * <pre>
+ * 'P' 'P' 'K' versión
+ * long tamaño de la entrada, long fecha de modificación de la entrada,
+ * int orden (-1 si es automático), int tamaño de bloque,
+ * int opciones de compresión (ver <code>PPMOutputStream.opciones</code>),
+ * byte versión del archivo comprimido,
+ * long bytes de la entrada comprimidos, long bytes de la salida escritos
+ * </pre>
+ * 
+ * @author Javier y Maldo
+ */
+public class ResumableCompressor
+{
+	/** Los bytes con los que empieza todo punto de control */
+	static final byte[] magic = {'P', 'P', 'K', 2};
+	
+	/** Cada cuántos bloques se guarda por defecto un punto de control */
+	public static final int defaultInterval = 1;
+	
+	/** El orden fijo, si no hay selector */
+	protected final int order;
+	/** El selector de orden automático, o null */
+	protected final OrderSelector selector;
+	/** Tamaño de los bloques */
+	protected final int blockSize;
+	/** Cada cuántos bloques se guarda un punto de control */
+	protected final int interval;
+	
+	/** A quién avisar del progreso, o null */
+	protected ProgressListener listener = null;
+	/** Cada cuántos bytes se avisa del progreso */
+	protected long cada = 1;
+	
+	/** Crea un compresor con un orden fijo y los valores por defecto
+	 * 
+	 * @param order orden del modelo PPM
+	 */
+	public ResumableCompressor(int order)
+	{
+		this(order, null, PPMOutputStream.defaultBlockSize, defaultInterval);
+	}
+	
+	/** Crea un compresor
+	 * 
+	 * @param order orden del modelo PPM (si no hay selector)
+	 * @param selector el selector de orden automático, o null
+	 * @param blockSize tamaño de los bloques
+	 * @param interval cada cuántos bloques se guarda un punto de control
+	 */
+	public ResumableCompressor(int order, OrderSelector selector, int blockSize, int interval)
+	{
+		if (interval <= 0)
+			throw new IllegalArgumentException("Intervalo de puntos de control no positivo");
+		
+		this.order = (selector == null) ? order : -1;
+		this.selector = selector;
+		this.blockSize = blockSize;
+		this.interval = interval;
+	}
+	
+	/** Pide que se avise del progreso (de la parte que se comprime en esta llamada)
+	 * 
+	 * @param listener a quién avisar, o null
+	 * @param cada cada cuántos bytes sin comprimir
+	 */
+	public void setProgressListener(ProgressListener listener, long cada)
+	{
+		this.listener = listener;
+		this.cada = cada;
+	}
+	
+	/** Comprime un archivo, continuando desde el punto de control si lo hay y vale.
+	 * Un punto de control que no corresponde a esta entrada o a la salida que hay en disco
+	 * se ignora y se empieza de cero. Si corresponde pero es de una compresión con otro orden,
+	 * otro tamaño de bloque u otras opciones, no se continúa ni se borra nada, para no
+	 * perder lo hecho por error (borrando el punto de control se empieza de cero).
+	 * Al terminar se borra.
+	 * 
+	 * @param entrada el archivo a comprimir
+	 * @param salida el archivo comprimido
+	 * @param control el archivo del punto de control
+	 * @return los bytes de la entrada que ya estaban comprimidos (0 si se ha empezado de cero)
+	 * @throws IOException si hay un problema de entrada/salida, o el punto de control
+	 *         es de una compresión con otros parámetros
+	 */
+	public long compress(File entrada, File salida, File control) throws IOException
+	{
+		long hecho = 0, escrito = 0;
+		DataInputStream din;
+		int bloques = 0, n;
+		boolean distinta = false;
+		//Solo para saber las opciones y la versión: en esta no se escribe nada
+		PPMOutputStream prueba = crearSalida(new ByteArrayOutputStream());
+		
+		//¿Hay un punto de control que valga?
+		if (control.isFile())
+		{
+			din = new DataInputStream(new BufferedInputStream(new FileInputStream(control)));
+			try
+			{
+				byte[] m = new byte[magic.length];
+				din.readFully(m);
+				
+				if (Arrays.equals(m, magic)
+						&& din.readLong() == entrada.length()
+						&& din.readLong() == entrada.lastModified())
+				{
+					distinta = din.readInt() != order
+							| din.readInt() != blockSize
+							| din.readInt() != prueba.opciones()
+							| din.readUnsignedByte() != prueba.version();
+					hecho = din.readLong();
+					escrito = din.readLong();
+				}
+			}
+			catch (EOFException e)
+			{
+				//Punto de control incompleto: no vale
+			}
+			finally
+			{
+				din.close();
+			}
+			
+			if (escrito > salida.length() || hecho > entrada.length())
+				hecho = escrito = 0;
+			else if (distinta && escrito > 0)
+				throw new IOException("El punto de control " + control
+						+ " es de una compresión con otros parámetros u opciones");
+		}
+		
+		//Cortar la salida en el punto de control (o vaciarla)
+		RandomAccessFile raf = new RandomAccessFile(salida, "rw");
+		try
+		{
+			raf.setLength(escrito);
+		}
+		finally
+		{
+			raf.close();
+		}
+		
+		FileInputStream in = new FileInputStream(entrada);
+		FileOutputStream fos = new FileOutputStream(salida, true);
+		PPMOutputStream pout = crearSalida(new BufferedOutputStream(fos, 64 * 1024));
+		byte[] buf = new byte[blockSize];
+		long inicio = hecho;
+		
+		try
+		{
+			in.getChannel().position(hecho);
+			if (escrito > 0)
+				pout.skipHeader();
+			pout.setProgressListener(listener, cada);
+			
+			while ((n = leer(in, buf)) > 0)
+			{
+				pout.write(buf, 0, n);
+				pout.flushBlock();
+				hecho += n;
+				
+				if (++bloques % interval == 0)
+				{
+					fos.getFD().sync();
+					guardar(control, entrada, pout, hecho, fos.getChannel().position());
+				}
+			}
+			
+			pout.finish();
+			fos.getFD().sync();
+		}
+		finally
+		{
+			//Sin pout.close(): si algo ha fallado no hay que terminar el archivo,
+			//para poder seguir desde el último punto de control
+			in.close();
+			fos.close();
+		}
+		
+		Files.deleteIfExists(control.toPath());
+		return inicio;
+	}
+	
+	/** Crea la stream con la que se comprime. Se puede redefinir para elegir sus opciones
+	 * (modo estático, filtros, etc.), siempre las mismas para un mismo archivo.
+	 * 
+	 * @param out donde escribir
+	 * @return la stream, con el orden, el selector y el tamaño de bloque de este compresor
+	 */
+	protected PPMOutputStream crearSalida(OutputStream out)
+	{
+		return new PPMOutputStream(out, order, selector, blockSize);
+	}
+	
+	/** Escribe un punto de control, de forma atómica (en un archivo temporal que luego se renombra)
+	 * 
+	 * @param control el archivo del punto de control
+	 * @param entrada el archivo que se comprime
+	 * @param pout la stream con la que se comprime, por sus opciones y su versión
+	 * @param hecho los bytes de la entrada ya comprimidos
+	 * @param escrito los bytes de la salida ya escritos (y en disco)
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	protected void guardar(File control, File entrada, PPMOutputStream pout, long hecho, long escrito) throws IOException
+	{
+		File temporal = new File(control.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temporal);
+		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(fos));
+		
+		try
+		{
+			dout.write(magic);
+			dout.writeLong(entrada.length());
+			dout.writeLong(entrada.lastModified());
+			dout.writeInt(order);
+			dout.writeInt(blockSize);
+			dout.writeInt(pout.opciones());
+			dout.writeByte(pout.version());
+			dout.writeLong(hecho);
+			dout.writeLong(escrito);
+			dout.flush();
+			fos.getFD().sync();
+		}
+		finally
+		{
+			dout.close();
+		}
+		
+		Files.move(temporal.toPath(), control.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/** Lee hasta llenar el búfer o llegar al final
+	 * 
+	 * @param in de donde leer
+	 * @param buf donde dejar los bytes
+	 * @return los bytes leídos (menos que el tamaño del búfer solo al final)
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	private static int leer(InputStream in, byte[] buf) throws IOException
+	{
+		int n = 0, read;
+		
+		while (n < buf.length && (read = in.read(buf, n, buf.length - n)) > 0)
+			n += read;
+		
+		return n;
+	}
+}
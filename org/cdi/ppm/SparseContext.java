@@ -0,0 +1,243 @@
+package org.cdi.ppm;
+import java.io.*;
+
+/** Contexto disperso: en lugar de los últimos carácteres seguidos, los que están a unas
+ * distancias determinadas (1 es el último carácter). Por ejemplo, {3, 2} se salta el último
+ * carácter, y {ancho, 2, 1} añade a los dos últimos el de la misma columna en la fila anterior.
+ * 
+ * Las distancias van de mayor a menor y, como en <code>Context</code>, el primer byte es el más
+ * lejano: al escapar (<code>drop</code>) se olvida primero el de la distancia mayor. Así, con
+ * {ancho, 2, 1} el modelo prueba primero la predicción de la columna, y si no sirve, la de orden 2
+ * normal. El modelo no cambia: solo ve contextos de <code>distancias.length</code> bytes.
+ * 
+ * En datos en filas de tamaño fijo (imágenes, tablas) el byte que más predice es el de la fila
+ * anterior, que un contexto contiguo solo ve con un orden tan alto como la fila.
+ * 
+ * @author Javier y Maldo
+ */
+public class SparseContext extends Context
+{
+	/** La mayor distancia permitida */
+	public static final int maxDistance = 1 << 16;
+	/** El mayor número de distancias (el orden máximo que cabe en un bloque) */
+	public static final int maxDistances = 255;
+	
+	/** La mayor distancia que se prueba al buscar columnas */
+	static final int maxStride = DeltaFilter.maxStride;
+	/** Cuántos bytes se miran para buscar el ancho de las filas */
+	static final int muestraAncho = 16 * 1024;
+	/** Cuántos bytes se comprimen de prueba */
+	static final int muestraPrueba = 64 * 1024;
+	/** Cuánto tiene que mejorar la compresión de prueba para usar el contexto (0.01 = 1%) */
+	static final double minGanancia = 0.01;
+	
+	/** Las distancias, de mayor a menor */
+	protected final int[] distancias;
+	/** Los últimos carácteres vistos, como buffer circular */
+	protected final byte[] historia;
+	/** Máscara para convertir una posición en un índice del historial */
+	protected final int mascara;
+	/** Cuántos carácteres se han visto desde el último clear */
+	protected long vistos = 0;
+	
+	/** Crea un contexto disperso vacío
+	 * 
+	 * @param distancias las distancias, de mayor a menor (sin repetir, y la menor al menos 1)
+	 * @throws IllegalArgumentException si las distancias no son válidas
+	 */
+	public SparseContext(int[] distancias)
+	{
+		super(distancias.length);
+		
+		if (!validas(distancias))
+			throw new IllegalArgumentException("Distancias de contexto inválidas");
+		
+		this.distancias = distancias.clone();
+		historia = new byte[Integer.highestOneBit(distancias[0]) * 2];
+		mascara = historia.length - 1;
+	}
+	
+	/** Devuelve las distancias del contexto
+	 * 
+	 * @return una copia de las distancias, de mayor a menor
+	 */
+	public int[] getDistances()
+	{
+		return distancias.clone();
+	}
+	
+	/** Vacía el contexto, olvidando también los carácteres vistos
+	 */
+	public void clear()
+	{
+		super.clear();
+		vistos = 0;
+	}
+	
+	/** Añade un byte, y vuelve a tomar los bytes de cada distancia.
+	 * Al principio solo están las distancias que ya se han visto, que son las menores
+	 * (las últimas), así que el orden crece como en un contexto contiguo.
+	 * 
+	 * @param a el byte a añadir
+	 */
+	public void append(byte a)
+	{
+		int n = distancias.length;
+		int i;
+		
+		historia[(int) vistos & mascara] = a;
+		vistos++;
+		
+		while (pos < n && distancias[n - 1 - pos] <= vistos)
+			pos++;
+		for (i = 0; i < pos; i++)
+			buf[i] = historia[(int) (vistos - distancias[n - pos + i]) & mascara];
+	}
+	
+	/** Elige un contexto por columnas para un bloque: busca el ancho de fila con el que más
+	 * bytes coinciden con el de la fila anterior, y si al comprimir de prueba una muestra del
+	 * centro del bloque sale mejor, devuelve las distancias {ancho, order, ..., 1}
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @param order el orden con el que se iba a comprimir el bloque
+	 * @return las distancias, o null si no merece la pena
+	 * @throws IOException si falla alguna compresión de prueba
+	 */
+	public static int[] choose(byte[] b, int off, int len, int order) throws IOException
+	{
+		int n = Math.min(len, muestraAncho);
+		int centro = off + (len - n) / 2;
+		int i, s, iguales, mejor = 0, maximo = 0;
+		
+		if (order >= maxDistances)
+			return null;
+		
+		//Las distancias hasta order ya están en el contexto contiguo
+		for (s = order + 1; s <= maxStride && s < n / 2; s++)
+		{
+			iguales = 0;
+			for (i = centro + s; i < centro + n; i++)
+			{
+				if (b[i] == b[i - s])
+					iguales++;
+			}
+			if (iguales > maximo)
+			{
+				maximo = iguales;
+				mejor = s;
+			}
+		}
+		
+		if (mejor == 0)
+			return null;
+		
+		int[] distancias = new int[order + 1];
+		distancias[0] = mejor;
+		for (i = 1; i <= order; i++)
+			distancias[i] = order + 1 - i;
+		
+		//Comprimir de prueba con el contexto contiguo y con el disperso
+		n = Math.min(len, muestraPrueba);
+		centro = off + (len - n) / 2;
+		long sin = prueba(b, centro, n, order, null);
+		long con = prueba(b, centro, n, order + 1, distancias);
+		
+		if (con > sin * (1 - minGanancia))
+			return null;
+		
+		return distancias;
+	}
+	
+	/** Escribe las distancias de un contexto: cuántas son (0 para el contexto contiguo)
+	 * y cada una (ver <code>Model.writeNumber</code>)
+	 * 
+	 * @param out donde escribir
+	 * @param distancias las distancias, o null para el contexto contiguo
+	 * @throws IOException si hay un problema de entrada/salida
+	 */
+	static void write(DataOutput out, int[] distancias) throws IOException
+	{
+		int i;
+		
+		if (distancias == null)
+		{
+			Model.writeNumber(out, 0);
+			return;
+		}
+		
+		Model.writeNumber(out, distancias.length);
+		for (i = 0; i < distancias.length; i++)
+			Model.writeNumber(out, distancias[i]);
+	}
+	
+	/** Lee las distancias escritas con <code>write</code>
+	 * 
+	 * @param in de donde leer
+	 * @param order el orden del bloque, que tiene que ser el número de distancias
+	 * @return las distancias, o null para el contexto contiguo
+	 * @throws IOException si hay un problema de entrada/salida o las distancias no son válidas
+	 */
+	static int[] read(DataInput in, int order) throws IOException
+	{
+		int n = Model.readNumber(in);
+		int i;
+		
+		if (n == 0)
+			return null;
+		if (n != order)
+			throw new IOException("Bloque inválido");
+		
+		int[] distancias = new int[n];
+		for (i = 0; i < n; i++)
+			distancias[i] = Model.readNumber(in);
+		
+		if (!validas(distancias))
+			throw new IOException("Bloque inválido");
+		
+		return distancias;
+	}
+	
+	/** Comprueba unas distancias: entre 1 y <code>maxDistance</code>, de mayor a menor y sin repetir
+	 * 
+	 * @param distancias las distancias
+	 * @return true si son válidas
+	 */
+	static boolean validas(int[] distancias)
+	{
+		int i;
+		
+		if (distancias.length == 0 || distancias.length > maxDistances)
+			return false;
+		if (distancias[0] > maxDistance || distancias[distancias.length - 1] < 1)
+			return false;
+		for (i = 1; i < distancias.length; i++)
+		{
+			if (distancias[i] >= distancias[i - 1])
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/** Comprime de prueba un trozo
+	 * 
+	 * @param b el array
+	 * @param off el índice del primer byte
+	 * @param len cuántos bytes
+	 * @param order el orden
+	 * @param distancias las distancias del contexto, o null para el contiguo
+	 * @return el tamaño comprimido
+	 * @throws IOException si falla la compresión
+	 */
+	private static long prueba(byte[] b, int off, int len, int order, int[] distancias) throws IOException
+	{
+		HuffmanEncoder enc = CoderPool.getEncoder(new ByteArrayOutputStream(len), order);
+		enc.setSparseContext(distancias);
+		enc.write(b, off, len);
+		enc.finish();
+		
+		return (enc.compressedBits() + 7) / 8;
+	}
+}
@@ -0,0 +1,230 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.util.*;
+
+/** Transformación reversible para texto en inglés, que reduce el número de símbolos a codificar:
+ * <ul>
+ * <li>Las palabras escritas con mayúscula inicial ("The") se pasan a minúsculas precedidas de
+ *     una marca (<code>cap</code>), así que comparten contextos con su forma en minúsculas.</li>
+ * <li>Las palabras más frecuentes, de un diccionario fijo, se cambian por un solo byte
+ *     a partir de <code>primerCodigo</code>.</li>
+ * <li>Los bytes del texto original de <code>primerCodigo</code> en adelante van precedidos
+ *     de <code>esc</code>, para poder distinguirlos.</li>
+ * </ul>
+ * Funciona con cualquier dato, pero solo compensa con texto ASCII (ver <code>detect</code>).
+ * 
+ * @author Javier y Maldo
+ */
+public final class TextFilter
+{
+	/** Marca de byte literal: el siguiente byte va tal cual */
+	static final int esc = 0xFF;
+	/** Marca de mayúscula: la siguiente letra (o la primera de la siguiente palabra del diccionario) es mayúscula */
+	static final int cap = 0xFE;
+	/** El código de la primera palabra del diccionario */
+	static final int primerCodigo = 0x80;
+	
+	/** Las palabras del diccionario, en minúsculas, de la más frecuente a la menos.
+	 * Son pocas a propósito: cada código es un símbolo más en los contextos donde aparece
+	 * (sobre todo tras un espacio), y construir los árboles de Huffman de esos contextos
+	 * cuesta más de lo que se ahorra con una lista larga. */
+	static final String[] palabras = {"the", "of", "and", "to", "in", "is", "that", "for"};
+	
+	/** El código de cada palabra del diccionario */
+	private static final Map<String, Integer> codigos = new HashMap<String, Integer>();
+	/** Las palabras del diccionario en bytes, por código menos <code>primerCodigo</code> */
+	private static final byte[][] diccionario = new byte[palabras.length][];
+	/** La palabra más larga del diccionario */
+	private static int maxPalabra = 0;
+	
+	static
+	{
+		assert primerCodigo + palabras.length <= cap;
+		
+		for (int i = 0; i < palabras.length; i++)
+		{
+			codigos.put(palabras[i], primerCodigo + i);
+			diccionario[i] = palabras[i].getBytes();
+			maxPalabra = Math.max(maxPalabra, palabras[i].length());
+		}
+	}
+	
+	/** No se instancia */
+	private TextFilter()
+	{
+	}
+	
+	/** Decide si un bloque parece texto ASCII: al menos la mitad son letras,
+	 * y como mucho un 1% son bytes que habría que escapar
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @return true si merece la pena transformarlo
+	 */
+	public static boolean detect(byte[] b, int off, int len)
+	{
+		int i, letras = 0, altos = 0;
+		
+		for (i = off; i < off + len; i++)
+		{
+			if (letra(b[i]))
+				letras++;
+			else if ((b[i] & 0xFF) >= primerCodigo)
+				altos++;
+		}
+		
+		return letras * 2 >= len && altos * 100 <= len;
+	}
+	
+	/** Transforma un bloque
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @return el bloque transformado (como mucho el doble de largo)
+	 */
+	public static byte[] encode(byte[] b, int off, int len)
+	{
+		byte[] t = new byte[len * 2];
+		int i = off, j, n = 0;
+		int fin = off + len;
+		
+		while (i < fin)
+		{
+			if (!letra(b[i]))
+			{
+				if ((b[i] & 0xFF) >= primerCodigo)
+					t[n++] = (byte) esc;
+				t[n++] = b[i++];
+				continue;
+			}
+			
+			//Una palabra entera: b[i..j)
+			for (j = i + 1; j < fin && letra(b[j]); j++);
+			
+			boolean mayuscula = j - i > 1 && mayuscula(b[i]) && minusculas(b, i + 1, j);
+			if (mayuscula)
+				t[n++] = (byte) cap;
+			
+			Integer codigo = null;
+			if (j - i <= maxPalabra && (mayuscula || minusculas(b, i, j)))
+			{
+				char[] c = new char[j - i];
+				for (int k = 0; k < c.length; k++)
+					c[k] = (char) (b[i + k] | 0x20);
+				codigo = codigos.get(new String(c));
+			}
+			
+			if (codigo != null)
+			{
+				t[n++] = (byte) codigo.intValue();
+			}
+			else
+			{
+				t[n++] = mayuscula ? (byte) (b[i] | 0x20) : b[i];
+				System.arraycopy(b, i + 1, t, n, j - i - 1);
+				n += j - i - 1;
+			}
+			i = j;
+		}
+		
+		return Arrays.copyOf(t, n);
+	}
+	
+	/** Deshace la transformación
+	 * 
+	 * @param t el array con el bloque transformado
+	 * @param off el índice del primer byte del bloque transformado
+	 * @param len la longitud del bloque transformado
+	 * @param b donde dejar el bloque original
+	 * @param max cuántos bytes caben en <code>b</code>
+	 * @return la longitud del bloque original
+	 * @throws IOException si el bloque transformado no es válido o no cabe
+	 */
+	public static int decode(byte[] t, int off, int len, byte[] b, int max) throws IOException
+	{
+		int i = off, n = 0, c;
+		int fin = off + len;
+		boolean mayuscula = false;
+		
+		while (i < fin)
+		{
+			c = t[i++] & 0xFF;
+			
+			if (c == cap)
+			{
+				if (mayuscula)
+					throw new IOException("Texto inválido");
+				mayuscula = true;
+				continue;
+			}
+			
+			if (c >= primerCodigo)
+			{
+				byte[] palabra;
+				if (c == esc)
+				{
+					if (i == fin || mayuscula)
+						throw new IOException("Texto inválido");
+					palabra = new byte[] {t[i++]};
+				}
+				else if (c - primerCodigo < diccionario.length)
+				{
+					palabra = diccionario[c - primerCodigo];
+				}
+				else
+				{
+					throw new IOException("Texto inválido");
+				}
+				
+				if (n + palabra.length > max)
+					throw new IOException("Texto demasiado largo");
+				System.arraycopy(palabra, 0, b, n, palabra.length);
+			}
+			else
+			{
+				if (n == max || (mayuscula && !letra((byte) c)))
+					throw new IOException("Texto inválido");
+				b[n] = (byte) c;
+			}
+			
+			if (mayuscula)
+			{
+				b[n] &= ~0x20;
+				mayuscula = false;
+			}
+			n += (c >= primerCodigo && c != esc) ? diccionario[c - primerCodigo].length : 1;
+		}
+		
+		if (mayuscula)
+			throw new IOException("Texto inválido");
+		
+		return n;
+	}
+	
+	/** Indica si un byte es una letra ASCII
+	 */
+	private static boolean letra(byte c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+	
+	/** Indica si un byte es una letra mayúscula ASCII
+	 */
+	private static boolean mayuscula(byte c)
+	{
+		return c >= 'A' && c <= 'Z';
+	}
+	
+	/** Indica si todos los bytes de <code>b[i..j)</code> son letras minúsculas ASCII
+	 */
+	private static boolean minusculas(byte[] b, int i, int j)
+	{
+		for (; i < j; i++)
+			if (b[i] < 'a' || b[i] > 'z')
+				return false;
+		
+		return true;
+	}
+}
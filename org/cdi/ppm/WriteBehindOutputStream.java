@@ -0,0 +1,209 @@
+package org.cdi.ppm;
+import java.io.*;
+import java.util.concurrent.*;
+
+/** Escribe la stream de salida desde otro hilo, para que la escritura
+ * (por ejemplo a un disco o a la red) se solape con la compresión.
+ * 
+ * Los datos se copian en unos pocos búferes reutilizables que el hilo escritor
+ * va vaciando; si todos están pendientes de escribir, quien escribe espera.
+ * Los errores del escritor se lanzan en la siguiente escritura, <code>flush()</code> o <code>close()</code>.
+ * 
+ * @author Javier y Maldo
+ */
+public class WriteBehindOutputStream extends FilterOutputStream
+{
+	/** Los búferes pendientes de escribir, en orden */
+	private final BlockingQueue<byte[]> llenos;
+	/** Los búferes ya escritos, que se pueden volver a llenar */
+	private final BlockingQueue<byte[]> libres;
+	/** Cuántos bytes válidos tiene cada búfer pendiente, en el mismo orden */
+	private final BlockingQueue<Integer> longitudes;
+	/** Número total de búferes */
+	private final int buffers;
+	/** El hilo escritor */
+	private final Thread escritor;
+	
+	/** El búfer que se está llenando */
+	private byte[] actual;
+	/** Cuántos bytes tiene <code>actual</code> */
+	private int len = 0;
+	/** El error del escritor, si lo ha habido */
+	private volatile IOException error = null;
+	
+	/** Crea una nueva stream con los valores por defecto
+	 * 
+	 * @param out donde escribir
+	 */
+	public WriteBehindOutputStream(OutputStream out)
+	{
+		this(out, ReadAheadInputStream.defaultBuffers, ReadAheadInputStream.defaultBufferSize);
+	}
+	
+	/** Crea una nueva stream
+	 * 
+	 * @param out donde escribir
+	 * @param buffers cuántos búferes puede haber pendientes de escribir
+	 * @param bufferSize tamaño de cada búfer
+	 */
+	public WriteBehindOutputStream(OutputStream out, int buffers, int bufferSize)
+	{
+		super(out);
+		
+		this.buffers = buffers;
+		llenos = new ArrayBlockingQueue<byte[]>(buffers);
+		libres = new ArrayBlockingQueue<byte[]>(buffers);
+		longitudes = new ArrayBlockingQueue<Integer>(buffers);
+		
+		int i;
+		for (i = 1; i < buffers; i++)
+			libres.add(new byte[bufferSize]);
+		actual = new byte[bufferSize];
+		
+		escritor = new Thread("PPM-escritor") {
+			public void run()
+			{
+				escribir();
+			}
+		};
+		escritor.setDaemon(true);
+		escritor.start();
+	}
+	
+	/** Bucle del hilo escritor: escribe los búferes pendientes en orden
+	 */
+	private void escribir()
+	{
+		byte[] b;
+		int n;
+		
+		try
+		{
+			while (true)
+			{
+				b = llenos.take();
+				n = longitudes.take();
+				
+				try
+				{
+					if (error == null)
+						out.write(b, 0, n);
+				}
+				catch (IOException e)
+				{
+					error = e;
+				}
+				
+				libres.put(b);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			//Se ha cerrado la stream
+		}
+	}
+	
+	/** Pasa el búfer actual al escritor y toma otro libre
+	 * 
+	 * @throws IOException si el escritor ha tenido un error
+	 */
+	private void enviar() throws IOException
+	{
+		comprobar();
+		
+		if (len == 0) return;
+		
+		try
+		{
+			longitudes.put(len);
+			llenos.put(actual);
+			actual = libres.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		len = 0;
+	}
+	
+	/** Lanza el error del escritor, si lo ha habido
+	 * 
+	 * @throws IOException el error del escritor
+	 */
+	private void comprobar() throws IOException
+	{
+		if (error != null)
+			throw error;
+	}
+	
+	public void write(int b) throws IOException
+	{
+		if (len == actual.length)
+			enviar();
+		
+		actual[len++] = (byte) b;
+	}
+	
+	public void write(byte[] b, int off, int n) throws IOException
+	{
+		int copiar;
+		
+		while (n > 0)
+		{
+			if (len == actual.length)
+				enviar();
+			
+			copiar = Math.min(n, actual.length - len);
+			System.arraycopy(b, off, actual, len, copiar);
+			len += copiar;
+			off += copiar;
+			n -= copiar;
+		}
+	}
+	
+	/** Espera a que se escriba todo lo pendiente y vacía la salida
+	 * 
+	 * @throws IOException si hay un problema al escribir
+	 */
+	public void flush() throws IOException
+	{
+		enviar();
+		
+		//Cuando todos los búferes han vuelto, el escritor está parado
+		byte[][] todos = new byte[buffers - 1][];
+		int i;
+		try
+		{
+			for (i = 0; i < todos.length; i++)
+				todos[i] = libres.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		for (i = 0; i < todos.length; i++)
+			libres.add(todos[i]);
+		
+		comprobar();
+		out.flush();
+	}
+	
+	/** Escribe todo lo pendiente, para el hilo escritor y cierra la salida
+	 * 
+	 * @throws IOException si hay un problema al escribir o cerrar
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			escritor.interrupt();
+			out.close();
+		}
+	}
+}
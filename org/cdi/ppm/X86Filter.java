@@ -0,0 +1,130 @@
+package org.cdi.ppm;
+/** Filtro reversible para código máquina x86: convierte los destinos relativos de las
+ * instrucciones CALL (E8) y JMP (E9) en direcciones absolutas (respecto al principio del bloque).
+ * 
+ * En un ejecutable, las llamadas a una misma función tienen desplazamientos relativos distintos
+ * en cada punto del código, que para el modelo parecen ruido; las direcciones absolutas se repiten
+ * y se predicen bien. Solo se convierten los desplazamientos de menos de 16 MB (en cualquier sentido),
+ * que son los que suelen ser instrucciones de verdad, y el resultado se recorta a 25 bits con signo,
+ * de forma que el filtro inverso reconoce exactamente los mismos.
+ * 
+ * @author Javier y Maldo
+ */
+public final class X86Filter
+{
+	/** Cuántas instrucciones plausibles por cada 1000 bytes hacen falta para considerar
+	 * que un bloque es código x86 (el código real tiene más de 10; otros binarios, menos de 1) */
+	static final int minPorMil = 2;
+	
+	/** No se instancia */
+	private X86Filter()
+	{
+	}
+	
+	/** Decide si un bloque parece código x86: tiene bastantes E8/E9 seguidos de
+	 * un desplazamiento plausible, y son la mayoría de los E8/E9 que tiene
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @return true si merece la pena filtrarlo
+	 */
+	public static boolean detect(byte[] b, int off, int len)
+	{
+		int i, total = 0, validas = 0;
+		int fin = off + len - 4;
+		
+		for (i = off; i < fin; i++)
+		{
+			if ((b[i] & 0xFE) == 0xE8)
+			{
+				total++;
+				if (plausible(leer(b, i + 1)))
+					validas++;
+				i += 4;
+			}
+		}
+		
+		return (long) validas * 1000 >= (long) minPorMil * len && validas * 2 >= total;
+	}
+	
+	/** Aplica el filtro a un bloque, sobre el mismo array
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 */
+	public static void encode(byte[] b, int off, int len)
+	{
+		convertir(b, off, len, true);
+	}
+	
+	/** Deshace el filtro de un bloque, sobre el mismo array
+	 * 
+	 * @param b el array con el bloque filtrado
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 */
+	public static void decode(byte[] b, int off, int len)
+	{
+		convertir(b, off, len, false);
+	}
+	
+	/** Convierte los desplazamientos relativos en absolutos o al revés. Los dos sentidos
+	 * recorren el bloque igual (tras un E8/E9 se saltan siempre sus 4 bytes), así que
+	 * encuentran las mismas instrucciones.
+	 * 
+	 * @param b el array con el bloque
+	 * @param off el índice del primer byte del bloque
+	 * @param len la longitud del bloque
+	 * @param absoluto true para pasar a absolutos, false para volver a relativos
+	 */
+	private static void convertir(byte[] b, int off, int len, boolean absoluto)
+	{
+		int i, dir;
+		int fin = off + len - 4;
+		
+		for (i = off; i < fin; i++)
+		{
+			if ((b[i] & 0xFE) != 0xE8)
+				continue;
+			
+			dir = leer(b, i + 1);
+			if (plausible(dir))
+			{
+				//La instrucción siguiente, respecto al principio del bloque
+				int ip = i - off + 5;
+				dir = absoluto ? dir + ip : dir - ip;
+				
+				//Recortar a 25 bits con signo, para que siga siendo plausible
+				dir = (dir << 7) >> 7;
+				escribir(b, i + 1, dir);
+			}
+			i += 4;
+		}
+	}
+	
+	/** Indica si un desplazamiento es plausible (entre -16 MB y 16 MB)
+	 */
+	private static boolean plausible(int dir)
+	{
+		return ((dir + 0x1000000) & 0xFE000000) == 0;
+	}
+	
+	/** Lee un entero de 4 bytes en little-endian
+	 */
+	private static int leer(byte[] b, int i)
+	{
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+	}
+	
+	/** Escribe un entero de 4 bytes en little-endian
+	 */
+	private static void escribir(byte[] b, int i, int v)
+	{
+		b[i] = (byte) v;
+		b[i + 1] = (byte) (v >> 8);
+		b[i + 2] = (byte) (v >> 16);
+		b[i + 3] = (byte) (v >> 24);
+	}
+}